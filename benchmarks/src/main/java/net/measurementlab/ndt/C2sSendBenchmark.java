@@ -0,0 +1,128 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The C2S send loops, filling loopback connections that a peer keeps
+ * draining.
+ *
+ * Each operation is one data window of {@link #WINDOW_MILLIS}, run the way
+ * test_c2s runs it: through {@link ChannelSender} or through the blocking
+ * stream loop, with a started {@link ThroughputSampler}. The "bytes" counter
+ * is the rate the loop sustained, which is the most the client can upload
+ * from this machine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class C2sSendBenchmark {
+  static final int WINDOW_MILLIS = 100;
+
+  /** Bytes sent, reported by JMH per second. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  /** Connections for the channel loop, which switches them to non-blocking. */
+  @State(Scope.Benchmark)
+  public static class Channels {
+    @Param({"1", "4"})
+    public int streams;
+
+    LoopbackPeer peer;
+    ChannelSender sender;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      peer = new LoopbackPeer(streams, false);
+      sender = new ChannelSender();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      peer.close();
+    }
+  }
+
+  @Benchmark
+  public long channel(Channels state, Counters counters) throws IOException {
+    ThroughputSampler sampler = new ThroughputSampler(
+        NdtTests.DEFAULT_SAMPLE_INTERVAL, WINDOW_MILLIS);
+    sampler.start();
+    long sent =
+        state.sender.send(state.peer.channels(), WINDOW_MILLIS, sampler);
+    sampler.finish();
+    counters.bytes += sent;
+    return sent;
+  }
+
+  /** Connections for the stream loop, which needs them blocking. */
+  @State(Scope.Benchmark)
+  public static class Streams {
+    @Param({"1", "4"})
+    public int streams;
+
+    LoopbackPeer peer;
+    byte[] buff;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      peer = new LoopbackPeer(streams, false);
+      // The same payload test_c2s writes.
+      buff = new byte[64 * 1024];
+      byte c = '0';
+      for (int i = 0; i < buff.length; i++) {
+        if (c == 'z') {
+          c = '0';
+        }
+        buff[i] = c++;
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      peer.close();
+    }
+  }
+
+  @Benchmark
+  public long stream(Streams state, Counters counters) throws IOException {
+    ThroughputSampler sampler = new ThroughputSampler(
+        NdtTests.DEFAULT_SAMPLE_INTERVAL, WINDOW_MILLIS);
+    sampler.start();
+    long[] bytes = NdtTests.runStreams(state.peer.sockets(), true, state.buff,
+        System.currentTimeMillis() + WINDOW_MILLIS, sampler, null);
+    sampler.finish();
+    long sent = 0;
+    for (long b : bytes) {
+      sent += b;
+    }
+    counters.bytes += sent;
+    return sent;
+  }
+}
@@ -0,0 +1,104 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The far end of the data connections in the loop benchmarks.
+ *
+ * Opens any number of loopback connections and serves each one on a thread
+ * of its own, either writing test data as fast as the connection takes it
+ * (the server side of S2C) or reading and dropping everything (the server
+ * side of C2S), until it is closed.
+ */
+class LoopbackPeer {
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final boolean source;
+  private final SocketChannel[] channels;
+  private final Socket[] peers;
+
+  /**
+   * @param streams the number of connections
+   * @param source true to send data to the benchmark, false to sink it
+   */
+  LoopbackPeer(int streams, boolean source) throws IOException {
+    this.source = source;
+    channels = new SocketChannel[streams];
+    peers = new Socket[streams];
+    ServerSocket listener =
+        new ServerSocket(0, streams, InetAddress.getByName("127.0.0.1"));
+    try {
+      for (int i = 0; i < streams; ++i) {
+        channels[i] = SocketChannel.open(new InetSocketAddress(
+            listener.getInetAddress(), listener.getLocalPort()));
+        peers[i] = listener.accept();
+        start(peers[i]);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    } finally {
+      listener.close();
+    }
+  }
+
+  /** The benchmark's end of the connections, in blocking mode. */
+  SocketChannel[] channels() {
+    return channels;
+  }
+
+  /** The benchmark's end of the connections, as blocking sockets. */
+  Socket[] sockets() {
+    Socket[] sockets = new Socket[channels.length];
+    for (int i = 0; i < channels.length; ++i) {
+      sockets[i] = channels[i].socket();
+    }
+    return sockets;
+  }
+
+  void close() {
+    for (int i = 0; i < channels.length; ++i) {
+      try {
+        if (channels[i] != null) {
+          channels[i].close();
+        }
+        if (peers[i] != null) {
+          peers[i].close();
+        }
+      } catch (IOException e) {
+        // Nothing left to do with them.
+      }
+    }
+  }
+
+  private void start(final Socket peer) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+          if (source) {
+            OutputStream out = peer.getOutputStream();
+            while (true) {
+              out.write(chunk, 0, chunk.length);
+            }
+          } else {
+            InputStream in = peer.getInputStream();
+            while (in.read(chunk, 0, chunk.length) >= 0) {
+            }
+          }
+        } catch (IOException e) {
+          // The benchmark closed the connection.
+        }
+      }
+    }, "LoopbackPeer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,27 @@
+package net.measurementlab.ndt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the NDT client benchmarks.
+ *
+ * Takes the usual JMH command line, e.g. a benchmark name pattern or
+ * "-p streams=1". The GC profiler is always on, so every result comes with
+ * the allocation rate per operation and the collections it caused next to
+ * the throughput.
+ */
+public class NdtBenchmarks {
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException {
+    CommandLineOptions options = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+        .parent(options)
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
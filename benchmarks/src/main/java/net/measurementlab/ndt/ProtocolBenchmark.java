@@ -0,0 +1,109 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Control-channel framing: {@link NdtTests.Protocol#send_msg} and
+ * {@link NdtTests.Protocol#recv_msg} over in-memory streams, so only the
+ * framing is measured.
+ *
+ * The body sizes cover a one-byte TEST_START, a typical TEST_MSG and a
+ * web100 chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+  @Param({"1", "64", "8192"})
+  public int bodySize;
+
+  private byte[] body;
+  private NdtTests.Protocol sender;
+  private NdtTests.Protocol receiver;
+  private NdtTests.Message msg;
+
+  @Setup
+  public void setUp() {
+    body = new byte[bodySize];
+    for (int i = 0; i < bodySize; ++i) {
+      body[i] = (byte) ('0' + i % 10);
+    }
+    byte[] frame = new byte[3 + bodySize];
+    frame[0] = NdtTests.TEST_MSG;
+    frame[1] = (byte) (bodySize >> 8);
+    frame[2] = (byte) bodySize;
+    System.arraycopy(body, 0, frame, 3, bodySize);
+
+    sender = new NdtTests.Protocol(new Replay(new byte[1]), new Discard());
+    receiver = new NdtTests.Protocol(new Replay(frame), new Discard());
+    msg = new NdtTests.Message();
+  }
+
+  @Benchmark
+  public long sendMsg() throws IOException {
+    sender.send_msg(NdtTests.TEST_MSG, body);
+    return sender.getBytesSent();
+  }
+
+  @Benchmark
+  public int recvMsg() throws IOException {
+    if (receiver.recv_msg(msg) != 0) {
+      throw new IOException("Short read");
+    }
+    return msg.length;
+  }
+
+  /** Returns the same bytes over and over, as if the server never stopped. */
+  static class Replay extends InputStream {
+    private final byte[] data;
+    private int position;
+
+    Replay(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      int b = data[position] & 0xFF;
+      position = (position + 1) % data.length;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      int count = Math.min(length, data.length - position);
+      System.arraycopy(data, position, buffer, offset, count);
+      position = (position + count) % data.length;
+      return count;
+    }
+  }
+
+  /** Throws everything away. */
+  static class Discard extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package net.measurementlab.ndt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole runs of {@link NdtTests} against a {@link LocalNdtServer} that plays
+ * back a recorded control channel, so an operation is the client's protocol
+ * handling, parsing and result reporting without the data phases.
+ *
+ * With "-p transcript=FILE" the run is a transcript captured in the field
+ * with {@link NdtTests#setTranscript}; by default it is a run recorded
+ * against the canned server at setup. "headless" leaves out the text
+ * reports that the applet shows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+  @Param({""})
+  public String transcript;
+
+  @Param({"true", "false"})
+  public boolean headless;
+
+  private LocalNdtServer server;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    server = new LocalNdtServer();
+    server.start();
+    Transcript run;
+    if (transcript.isEmpty()) {
+      server.setTestDuration(500);
+      ByteArrayOutputStream recording = new ByteArrayOutputStream();
+      NdtTests tests = newTests();
+      tests.setTranscript(recording);
+      tests.run();
+      run = Transcript.read(new ByteArrayInputStream(recording.toByteArray()));
+    } else {
+      InputStream in = new FileInputStream(transcript);
+      try {
+        run = Transcript.read(in);
+      } finally {
+        in.close();
+      }
+    }
+    server.setReplay(run);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Benchmark
+  public NdtResult replay() {
+    NdtTests tests = newTests();
+    tests.run();
+    if (tests.failed) {
+      throw new IllegalStateException(tests.errmsg);
+    }
+    return tests.result;
+  }
+
+  private NdtTests newTests() {
+    return new NdtTests("127.0.0.1", new Quiet(), NdtTests.NETWORK_UNKNOWN,
+        headless);
+  }
+
+  /** Takes the client's reports and does nothing with them. */
+  static class Quiet implements UiServices {
+    public void appendString(String str, int viewId) {
+    }
+
+    public void incrementProgress() {
+    }
+
+    public void onBeginTest() {
+    }
+
+    public void onEndTest() {
+    }
+
+    public void onFailure(String errorMessage) {
+    }
+
+    public void onThroughputSamples(String test, int intervalMillis,
+        long[] bytes) {
+    }
+
+    public void onDataPhaseEnd(String test, int durationMillis,
+        String stopReason) {
+    }
+
+    public void onStreamThroughput(String test, double totalMbps,
+        double[] streamMbps) {
+    }
+
+    public void onReceiveStats(String test, ReceiveStats reads) {
+    }
+
+    public void onLatency(String test, LatencyStats rtt) {
+    }
+
+    public void onResultVariable(String name, Number value) {
+    }
+
+    public void onPacketQueuingDetected() {
+    }
+
+    public void onLoginSent() {
+    }
+
+    public void logError(String str) {
+    }
+
+    public void updateStatus(String status) {
+    }
+
+    public void updateStatusPanel(String status) {
+    }
+
+    public boolean wantToStop() {
+      return false;
+    }
+
+    public String getClientApp() {
+      return "benchmark";
+    }
+
+    public void setVariable(String name, int value) {
+    }
+
+    public void setVariable(String name, double value) {
+    }
+
+    public void setVariable(String name, Object value) {
+    }
+  }
+}
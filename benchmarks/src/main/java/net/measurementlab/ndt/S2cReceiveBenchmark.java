@@ -0,0 +1,122 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The S2C receive loops, draining loopback connections that a peer keeps
+ * full.
+ *
+ * Each operation is one data window of {@link #WINDOW_MILLIS}, run the way
+ * test_s2c runs it: through {@link ChannelReceiver} or through the blocking
+ * stream loop, with a started {@link ThroughputSampler}. The "bytes" counter
+ * is the rate the loop sustained, which is the most the client can measure
+ * on this machine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S2cReceiveBenchmark {
+  static final int WINDOW_MILLIS = 100;
+
+  /** Bytes received, reported by JMH per second. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  /** Connections for the channel loop, which switches them to non-blocking. */
+  @State(Scope.Benchmark)
+  public static class Channels {
+    @Param({"1", "4"})
+    public int streams;
+
+    LoopbackPeer peer;
+    ChannelReceiver receiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      peer = new LoopbackPeer(streams, true);
+      receiver = new ChannelReceiver();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      peer.close();
+    }
+  }
+
+  @Benchmark
+  public long channel(Channels state, Counters counters) throws IOException {
+    ThroughputSampler sampler = new ThroughputSampler(
+        NdtTests.DEFAULT_SAMPLE_INTERVAL, WINDOW_MILLIS);
+    sampler.start();
+    long received =
+        state.receiver.receive(state.peer.channels(), WINDOW_MILLIS, sampler,
+            new ReceiveStats());
+    sampler.finish();
+    counters.bytes += received;
+    return received;
+  }
+
+  /** Connections for the stream loop, which needs them blocking. */
+  @State(Scope.Benchmark)
+  public static class Streams {
+    @Param({"1", "4"})
+    public int streams;
+
+    LoopbackPeer peer;
+    byte[] buff;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      peer = new LoopbackPeer(streams, true);
+      buff = new byte[8192];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      peer.close();
+    }
+  }
+
+  @Benchmark
+  public long stream(Streams state, Counters counters) throws IOException {
+    ThroughputSampler sampler = new ThroughputSampler(
+        NdtTests.DEFAULT_SAMPLE_INTERVAL, WINDOW_MILLIS);
+    sampler.start();
+    long[] bytes = NdtTests.runStreams(state.peer.sockets(), false, state.buff,
+        System.currentTimeMillis() + WINDOW_MILLIS, sampler,
+        new ReceiveStats());
+    sampler.finish();
+    long received = 0;
+    for (long b : bytes) {
+      received += b;
+    }
+    counters.bytes += received;
+    return received;
+  }
+}
@@ -0,0 +1,79 @@
+package net.measurementlab.ndt;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the web100 results that the server sends at the end of a run.
+ *
+ * The input is {@link LocalNdtServer#DEFAULT_WEB100}, a complete dump from a
+ * real server, fed to {@link Web100Parser} in pieces of the given size as it
+ * comes off the control channel. "parse" only fills in the
+ * {@link NdtResult}; "parseAndKeepLines" also keeps the text lines the way
+ * testResults does for the diagnosis view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Web100Benchmark {
+  @Param({"512", "65535"})
+  public int chunkSize;
+
+  private byte[] dump;
+
+  private static final Web100Parser.Listener IGNORE =
+      new Web100Parser.Listener() {
+        public void onVariable(String name, String value, int field,
+            boolean snapshot) {
+        }
+      };
+
+  @Setup
+  public void setUp() throws UnsupportedEncodingException {
+    dump = LocalNdtServer.DEFAULT_WEB100.getBytes("US-ASCII");
+  }
+
+  @Benchmark
+  public NdtResult parse() {
+    NdtResult result = new NdtResult();
+    feed(new Web100Parser(result, IGNORE));
+    return result;
+  }
+
+  @Benchmark
+  public ArrayList<String> parseAndKeepLines() {
+    final ArrayList<String> lines = new ArrayList<String>();
+    Web100Parser parser = new Web100Parser(new NdtResult(),
+        new Web100Parser.Listener() {
+          public void onVariable(String name, String value, int field,
+              boolean snapshot) {
+            lines.add(name + " " + value + "\n");
+          }
+        });
+    feed(parser);
+    return lines;
+  }
+
+  private void feed(Web100Parser parser) {
+    for (int offset = 0; offset < dump.length; offset += chunkSize) {
+      parser.feed(dump, offset, Math.min(chunkSize, dump.length - offset));
+    }
+    parser.finish();
+  }
+}
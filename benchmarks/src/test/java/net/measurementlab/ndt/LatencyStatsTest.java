@@ -0,0 +1,69 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyStatsTest {
+  private static final double DELTA = 1e-9;
+
+  private static LatencyStats stats(double... millis) {
+    LatencyStats stats = new LatencyStats();
+    for (double sample : millis) {
+      stats.add((long) (sample * 1e6));
+    }
+    return stats;
+  }
+
+  @Test
+  public void emptyStatsAreNaN() {
+    LatencyStats stats = stats();
+    assertEquals(0, stats.getCount());
+    assertTrue(Double.isNaN(stats.getMin()));
+    assertTrue(Double.isNaN(stats.getMedian()));
+    assertTrue(Double.isNaN(stats.getPercentile(95)));
+    assertTrue(Double.isNaN(stats.getJitter()));
+  }
+
+  @Test
+  public void percentilesUseTheNearestRank() {
+    LatencyStats stats = stats(40, 10, 30, 20);
+    assertEquals(10, stats.getMin(), DELTA);
+    assertEquals(10, stats.getPercentile(0), DELTA);
+    assertEquals(10, stats.getPercentile(25), DELTA);
+    assertEquals(20, stats.getMedian(), DELTA);
+    assertEquals(30, stats.getPercentile(51), DELTA);
+    assertEquals(40, stats.getPercentile(95), DELTA);
+    assertEquals(40, stats.getPercentile(100), DELTA);
+  }
+
+  @Test
+  public void keepsTheSampleOrder() {
+    LatencyStats stats = stats(40, 10, 30, 20);
+    assertArrayEquals(new double[] {40, 10, 30, 20}, stats.getSamples(),
+        DELTA);
+  }
+
+  @Test
+  public void jitterIsTheMeanDifferenceOfConsecutiveSamples() {
+    assertTrue(Double.isNaN(stats(10).getJitter()));
+    assertEquals(15, stats(10, 30, 20).getJitter(), DELTA);
+    // The same samples sorted have the same spread but less jitter.
+    assertEquals(10, stats(10, 20, 30).getJitter(), DELTA);
+    assertEquals(0, stats(7, 7, 7, 7).getJitter(), DELTA);
+  }
+
+  @Test
+  public void growsPastTheInitialCapacity() {
+    LatencyStats stats = new LatencyStats();
+    for (int i = 1; i <= 100; ++i) {
+      stats.add(i * 1000000L);
+    }
+    assertEquals(100, stats.getCount());
+    assertEquals(50, stats.getMedian(), DELTA);
+    assertEquals(95, stats.getPercentile(95), DELTA);
+    assertEquals(1, stats.getJitter(), DELTA);
+  }
+}
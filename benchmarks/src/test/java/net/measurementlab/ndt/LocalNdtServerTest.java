@@ -0,0 +1,196 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs both clients against {@link LocalNdtServer} on the loopback
+ * interface. The tests skip the middlebox and firewall tests, which take
+ * several seconds each whatever the settings.
+ */
+public class LocalNdtServerTest {
+  private static final int TESTS =
+      NdtTests.TEST_C2S | NdtTests.TEST_S2C | NdtTests.TEST_META;
+
+  /** How long a single run may take before the test gives up on it. */
+  private static final int RUN_TIMEOUT = 30;
+
+  /** Keeps the failure a client reports, if any. */
+  private static class RecordingUi implements UiServices {
+    volatile String failure;
+    volatile int ends;
+
+    public void appendString(String str, int viewId) {}
+    public void incrementProgress() {}
+    public void onBeginTest() {}
+    public void onEndTest() {
+      ends++;
+    }
+    public void onFailure(String errorMessage) {
+      failure = errorMessage.trim();
+    }
+    public void onThroughputSamples(String test, int intervalMillis,
+        long[] bytes) {}
+    public void onDataPhaseEnd(String test, int durationMillis,
+        String stopReason) {}
+    public void onStreamThroughput(String test, double totalMbps,
+        double[] streamMbps) {}
+    public void onReceiveStats(String test, ReceiveStats reads) {}
+    public void onLatency(String test, LatencyStats rtt) {}
+    public void onResultVariable(String name, Number value) {}
+    public void onPacketQueuingDetected() {}
+    public void onLoginSent() {}
+    public void logError(String str) {}
+    public void updateStatus(String status) {}
+    public void updateStatusPanel(String status) {}
+    public boolean wantToStop() {
+      return false;
+    }
+    public String getClientApp() {
+      return "test";
+    }
+    public void setVariable(String name, int value) {}
+    public void setVariable(String name, double value) {}
+    public void setVariable(String name, Object value) {}
+  }
+
+  private LocalNdtServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalNdtServer();
+    server.setTestDuration(1000);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  /** Runs the asynchronous client; returns its result, null if it failed. */
+  private static NdtResult runAsync(AsyncNdtClient client) throws Exception {
+    client.setTests(TESTS);
+    try {
+      return client.start().get(RUN_TIMEOUT, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  private static AsyncNdtClient newAsync(UiServices ui) {
+    return new AsyncNdtClient(NdtReactor.shared(), "127.0.0.1", ui);
+  }
+
+  private static NdtTests newBlocking(UiServices ui) {
+    NdtTests tests = new NdtTests("127.0.0.1", ui, NdtTests.NETWORK_UNKNOWN,
+        true);
+    tests.setTests(TESTS);
+    return tests;
+  }
+
+  private static void assertResults(NdtResult result) {
+    assertNotNull(result);
+    assertEquals(1448, result.CurrentMSS);
+    assertEquals(0.9963, result.cwndtime, 1e-9);
+    assertNotNull(result.s2c);
+    assertEquals(1448, result.s2c.CurrentMSS);
+  }
+
+  @Test
+  public void asyncClientCompletesARun() throws Exception {
+    RecordingUi ui = new RecordingUi();
+    AsyncNdtClient client = newAsync(ui);
+    client.setStreams(2);
+    assertResults(runAsync(client));
+    assertNull(ui.failure);
+    assertEquals(1, ui.ends);
+  }
+
+  @Test
+  public void blockingClientCompletesARun() {
+    RecordingUi ui = new RecordingUi();
+    NdtTests tests = newBlocking(ui);
+    tests.setStreams(2);
+    tests.run();
+    assertFalse(tests.failed);
+    assertNull(ui.failure);
+    assertResults(tests.result);
+  }
+
+  @Test
+  public void bothClientsWaitInTheQueue() throws Exception {
+    server.setQueue(2, 9990, 1);
+    RecordingUi asyncUi = new RecordingUi();
+    assertResults(runAsync(newAsync(asyncUi)));
+    assertNull(asyncUi.failure);
+
+    RecordingUi blockingUi = new RecordingUi();
+    NdtTests tests = newBlocking(blockingUi);
+    tests.run();
+    assertNull(blockingUi.failure);
+    assertResults(tests.result);
+  }
+
+  @Test
+  public void bothClientsReportTheQueueCodes() throws Exception {
+    int[] codes = {9988, 9999};
+    String[] failures = {"serverBusy", "serverBusy60s"};
+    for (int i = 0; i < codes.length; ++i) {
+      server.setQueue(codes[i]);
+      RecordingUi asyncUi = new RecordingUi();
+      assertNull(runAsync(newAsync(asyncUi)));
+      assertEquals(failures[i], asyncUi.failure);
+
+      RecordingUi blockingUi = new RecordingUi();
+      NdtTests tests = newBlocking(blockingUi);
+      tests.run();
+      assertTrue(tests.failed);
+      assertEquals(failures[i], blockingUi.failure);
+    }
+  }
+
+  @Test
+  public void bothClientsStopAtTheTimeLimit() throws Exception {
+    int limit = 1500;
+    server.setTestDuration(10000);
+    server.setRate(2 * 1000 * 1000);
+
+    RecordingUi asyncUi = new RecordingUi();
+    AsyncNdtClient client = newAsync(asyncUi);
+    client.setTimeLimit(limit);
+    long start = System.nanoTime();
+    assertNull(runAsync(client));
+    assertCut(start, limit);
+    assertEquals("timeLimitReached", asyncUi.failure);
+
+    RecordingUi blockingUi = new RecordingUi();
+    NdtTests tests = newBlocking(blockingUi);
+    tests.setTimeLimit(limit);
+    start = System.nanoTime();
+    tests.run();
+    assertCut(start, limit);
+    assertTrue(tests.failed);
+    assertEquals("timeLimitReached", blockingUi.failure);
+  }
+
+  /** Fails unless a run ended about when its time limit was reached. */
+  private static void assertCut(long startNanos, int limit) {
+    long millis = (System.nanoTime() - startNanos) / 1000000;
+    if (millis < limit - 100 || millis > limit + 2000) {
+      fail("time limit " + limit + " ms, run took " + millis + " ms");
+    }
+  }
+}
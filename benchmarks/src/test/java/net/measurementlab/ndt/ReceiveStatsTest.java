@@ -0,0 +1,64 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ReceiveStatsTest {
+  private static final long MS = 1000000L;
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void bucketsReadSizes() {
+    ReceiveStats stats = new ReceiveStats();
+    stats.start(0);
+    int[] sizes = {1, 512, 513, 1024, 4000, 65536, 65537, 1 << 20};
+    for (int size : sizes) {
+      stats.add(size, 0);
+    }
+    assertEquals(sizes.length, stats.getReads());
+    assertEquals(stats.getSizeBounds().length + 1, stats.getSizes().length);
+    assertArrayEquals(new long[] {2, 2, 0, 1, 0, 0, 0, 1, 2},
+        stats.getSizes());
+  }
+
+  @Test
+  public void bucketsGapsAndCountsStalls() {
+    ReceiveStats stats = new ReceiveStats();
+    long now = 1000 * MS;
+    stats.start(now);
+    // The wait for the first byte counts as a gap.
+    long[] gaps = {0, 1 * MS, 1 * MS - 1, 150 * MS, 200 * MS, 201 * MS,
+        2000 * MS};
+    for (long gap : gaps) {
+      now += gap;
+      stats.add(100, now);
+    }
+    assertArrayEquals(new long[] {2, 1, 0, 0, 0, 0, 0, 1, 2, 0, 1},
+        stats.getGaps());
+    assertEquals(2, stats.getStalls());
+    assertEquals(2201, stats.getStallMillis(), DELTA);
+    assertEquals(2000, stats.getMaxGapMillis(), DELTA);
+  }
+
+  @Test
+  public void mergesConnections() {
+    ReceiveStats first = new ReceiveStats();
+    first.start(0);
+    first.add(100, 300 * MS);
+    ReceiveStats second = new ReceiveStats();
+    second.start(0);
+    second.add(10000, 5 * MS);
+    second.add(10000, 505 * MS);
+    first.merge(second);
+    assertEquals(3, first.getReads());
+    assertArrayEquals(new long[] {1, 0, 0, 0, 0, 2, 0, 0, 0},
+        first.getSizes());
+    assertArrayEquals(new long[] {0, 0, 0, 1, 0, 0, 0, 0, 1, 1, 0},
+        first.getGaps());
+    assertEquals(2, first.getStalls());
+    assertEquals(800, first.getStallMillis(), DELTA);
+    assertEquals(500, first.getMaxGapMillis(), DELTA);
+  }
+}
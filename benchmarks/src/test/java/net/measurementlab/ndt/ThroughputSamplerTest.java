@@ -0,0 +1,121 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The sampler is fed {@link System#nanoTime()} readings in the middle of
+ * each interval, so the tests do not depend on the scheduler.
+ */
+public class ThroughputSamplerTest {
+  private static final int INTERVAL = 100;
+  private static final long INTERVAL_NANOS = INTERVAL * 1000000L;
+
+  private ThroughputSampler sampler;
+  private long base;
+
+  @Before
+  public void setUp() {
+    sampler = new ThroughputSampler(INTERVAL, 1000);
+  }
+
+  private void start() {
+    sampler.start();
+    base = System.nanoTime();
+  }
+
+  /** A reading halfway through the given interval. */
+  private long in(int interval) {
+    return base + interval * INTERVAL_NANOS + INTERVAL_NANOS / 2;
+  }
+
+  @Test
+  public void attributesBytesToIntervals() {
+    start();
+    sampler.add(100, in(0));
+    sampler.add(50, in(0));
+    sampler.add(200, in(1));
+    sampler.add(300, in(4));
+    sampler.add(1, in(5));
+    assertArrayEquals(new long[] {150, 200, 0, 0, 300},
+        sampler.getSamples());
+    assertEquals(5, sampler.getCount());
+    assertNull(sampler.getStopReason());
+  }
+
+  @Test
+  public void growsPastTheExpectedDuration() {
+    start();
+    for (int i = 0; i < 50; ++i) {
+      sampler.add(i, in(i));
+    }
+    sampler.add(0, in(50));
+    assertEquals(50, sampler.getCount());
+    assertEquals(49, sampler.getSample(49));
+  }
+
+  @Test
+  public void convergesOnSteadyThroughput() {
+    // A window of 10 samples, checked from the 20th sample on.
+    sampler.setConvergence(1000, 0.1, 2000);
+    start();
+    for (int i = 0; i < 20; ++i) {
+      sampler.add(i % 2 == 0 ? 1000 : 1050, in(i));
+      assertFalse("stopped after " + i, sampler.isStopped());
+    }
+    sampler.add(1000, in(20));
+    assertTrue(sampler.isStopped());
+    assertEquals(ThroughputSampler.STOP_CONVERGED, sampler.getStopReason());
+  }
+
+  @Test
+  public void doesNotConvergeOnNoisyThroughput() {
+    sampler.setConvergence(1000, 0.1, 2000);
+    start();
+    for (int i = 0; i < 60; ++i) {
+      sampler.add(i % 2 == 0 ? 500 : 1500, in(i));
+    }
+    assertFalse(sampler.isStopped());
+  }
+
+  @Test
+  public void doesNotConvergeOnSilence() {
+    sampler.setConvergence(1000, 0.1, 0);
+    start();
+    sampler.add(0, in(30));
+    assertFalse(sampler.isStopped());
+  }
+
+  @Test
+  public void stopsAtTheByteBudget() {
+    sampler.setByteBudget(5000);
+    start();
+    for (int i = 0; i < 4; ++i) {
+      sampler.add(1000, in(i));
+    }
+    assertFalse(sampler.isStopped());
+    sampler.add(1000, in(4));
+    assertEquals(ThroughputSampler.STOP_BUDGET, sampler.getStopReason());
+    sampler.stop(ThroughputSampler.STOP_DEADLINE);
+    assertEquals(ThroughputSampler.STOP_BUDGET, sampler.getStopReason());
+  }
+
+  @Test
+  public void startResetsTheBudgetAndReason() {
+    sampler.setByteBudget(1000);
+    start();
+    sampler.add(1000, in(0));
+    assertTrue(sampler.isStopped());
+    start();
+    assertFalse(sampler.isStopped());
+    assertEquals(0, sampler.getCount());
+    sampler.add(999, in(0));
+    assertFalse(sampler.isStopped());
+  }
+}
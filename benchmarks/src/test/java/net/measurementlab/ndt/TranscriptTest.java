@@ -0,0 +1,92 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TranscriptTest {
+  private static Transcript readBack(ByteArrayOutputStream out)
+      throws IOException {
+    return Transcript.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void roundTripsRecords() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Transcript.Recorder recorder = new Transcript.Recorder(out);
+    byte[] kickoff = "123456 654321".getBytes("US-ASCII");
+    byte[] large = new byte[0xFFFF];
+    for (int i = 0; i < large.length; ++i) {
+      large[i] = (byte) i;
+    }
+    recorder.record(Transcript.RAW, (byte) 0, kickoff, 0, kickoff.length);
+    recorder.record(Transcript.SENT, NdtTests.MSG_LOGIN,
+        new byte[] {9, 9, 42, 9}, 2, 1);
+    recorder.record(Transcript.RECEIVED, NdtTests.TEST_MSG, large, 0,
+        large.length);
+    recorder.record(Transcript.RECEIVED, NdtTests.MSG_RESULTS, new byte[0],
+        0, 0);
+    recorder.flush();
+
+    Transcript transcript = readBack(out);
+    assertEquals(4, transcript.size());
+    assertEquals(Transcript.RAW, transcript.direction(0));
+    assertEquals(0, transcript.type(0));
+    assertArrayEquals(kickoff, transcript.body(0));
+    assertEquals(Transcript.SENT, transcript.direction(1));
+    assertEquals(NdtTests.MSG_LOGIN, transcript.type(1));
+    assertArrayEquals(new byte[] {42}, transcript.body(1));
+    assertArrayEquals(large, transcript.body(2));
+    assertEquals(0, transcript.body(3).length);
+    for (int i = 1; i < transcript.size(); ++i) {
+      assertTrue(transcript.micros(i) >= transcript.micros(i - 1));
+    }
+  }
+
+  @Test
+  public void roundTripsMultiByteDelays() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Transcript.Recorder recorder = new Transcript.Recorder(out);
+    // 200 ms is 200000 us, a three-byte varint.
+    long[] pauses = {0, 1, 20, 200};
+    for (long pause : pauses) {
+      Thread.sleep(pause);
+      recorder.record(Transcript.RECEIVED, NdtTests.TEST_MSG, new byte[1], 0,
+          1);
+    }
+    recorder.flush();
+    Transcript transcript = readBack(out);
+    assertEquals(pauses.length, transcript.size());
+    for (int i = 1; i < pauses.length; ++i) {
+      long delta = transcript.micros(i) - transcript.micros(i - 1);
+      assertTrue("delay " + delta, delta >= pauses[i] * 1000);
+      assertTrue("delay " + delta, delta < pauses[i] * 1000 + 1000000);
+    }
+  }
+
+  @Test
+  public void rejectsOtherStreams() {
+    byte[][] streams = {
+        "NDTX\001".getBytes(),
+        {'N', 'D', 'T', 'T', 2},
+        {'N', 'D', 'T', 'T', 1, 7, 0, 0, 0, 0},
+        // A varint that never ends.
+        {'N', 'D', 'T', 'T', 1, 0, (byte) 0x80, (byte) 0x80},
+    };
+    for (byte[] stream : streams) {
+      try {
+        Transcript.read(new ByteArrayInputStream(stream));
+        fail("read " + new String(stream));
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package net.measurementlab.ndt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class Web100ParserTest {
+  /** Keeps every variable the parser reports as "name=value@field". */
+  private static class Recording implements Web100Parser.Listener {
+    final List<String> variables = new ArrayList<String>();
+
+    public void onVariable(String name, String value, int field,
+        boolean snapshot) {
+      variables.add(name + "=" + value + "@" + field + (snapshot ? "s" : ""));
+    }
+  }
+
+  private static void feed(Web100Parser parser, String... pieces)
+      throws UnsupportedEncodingException {
+    for (String piece : pieces) {
+      // Pad the piece, so the parser has to honor the offset and length.
+      byte[] data = ("##" + piece + "##").getBytes("US-ASCII");
+      parser.feed(data, 2, data.length - 4);
+    }
+  }
+
+  @Test
+  public void splitsTokensOnWhitespace() throws Exception {
+    NdtResult result = new NdtResult();
+    Recording listener = new Recording();
+    Web100Parser parser = new Web100Parser(result, listener);
+    feed(parser, "CurMSS: 1448\nX_Rcvbuf:\t87380\r\n  avgrtt: 4.00 ");
+    parser.finish();
+    assertEquals(3, listener.variables.size());
+    assertEquals("CurMSS:=1448@" + NdtResult.fieldIndex("CurMSS:"),
+        listener.variables.get(0));
+    assertEquals(1448, result.CurrentMSS);
+    assertEquals(87380, result.Rcvbuf);
+    assertEquals(4.0, result.avgrtt, 0);
+  }
+
+  @Test
+  public void joinsTokensSplitAcrossMessages() throws Exception {
+    NdtResult result = new NdtResult();
+    Recording listener = new Recording();
+    Web100Parser parser = new Web100Parser(result, listener);
+    feed(parser, "Cur", "MSS", ": 14", "48", "\nX_Rcvbuf: 8", "7380");
+    parser.finish();
+    assertEquals(1448, result.CurrentMSS);
+    assertEquals(87380, result.Rcvbuf);
+    assertEquals(2, listener.variables.size());
+  }
+
+  @Test
+  public void reportsUnknownAndMalformedVariables() throws Exception {
+    NdtResult result = new NdtResult();
+    Recording listener = new Recording();
+    Web100Parser parser = new Web100Parser(result, listener);
+    feed(parser, "NotAVariable: 1 CurMSS: many Dangling:");
+    parser.finish();
+    assertEquals(2, listener.variables.size());
+    assertEquals("NotAVariable:=1@-1", listener.variables.get(0));
+    assertEquals("CurMSS:=many@-1", listener.variables.get(1));
+    assertEquals(0, result.CurrentMSS);
+  }
+
+  @Test
+  public void finishDropsTheDanglingName() throws Exception {
+    NdtResult result = new NdtResult();
+    Recording listener = new Recording();
+    Web100Parser parser = new Web100Parser(result, listener);
+    feed(parser, "Dangling:");
+    parser.finish();
+    feed(parser, "CurMSS: 1448");
+    parser.finish();
+    assertEquals(1, listener.variables.size());
+    assertEquals(1448, result.CurrentMSS);
+  }
+
+  @Test
+  public void snapshotsGoToBothResults() throws Exception {
+    NdtResult result = new NdtResult();
+    NdtResult snapshot = new NdtResult();
+    Recording listener = new Recording();
+    Web100Parser parser =
+        new Web100Parser(result, listener).snapshot(snapshot);
+    feed(parser, "CurMSS: 1448 ");
+    assertEquals(1448, snapshot.CurrentMSS);
+    assertEquals(1448, result.CurrentMSS);
+    assertEquals(1, snapshot.getVariables().size());
+    assertEquals(Long.valueOf(1448), snapshot.getVariables().get("CurMSS"));
+    assertEquals("CurMSS:=1448@" + NdtResult.fieldIndex("CurMSS:") + "s",
+        listener.variables.get(0));
+  }
+
+  @Test
+  public void convertsValuesToNumbers() {
+    assertEquals(Long.valueOf(1448), Web100Parser.toNumber("1448"));
+    assertEquals(Double.valueOf(0.5), Web100Parser.toNumber("0.5"));
+    assertEquals(null, Web100Parser.toNumber("NaN"));
+    assertEquals(null, Web100Parser.toNumber("many"));
+    assertEquals("CurMSS", Web100Parser.bareName("CurMSS:"));
+    assertEquals("CurMSS", Web100Parser.bareName("CurMSS"));
+  }
+}
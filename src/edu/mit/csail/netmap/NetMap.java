@@ -34,8 +34,27 @@ public final class NetMap {
    * @return the digest of the measurement
    */
   public static final String measure(String measurements) {
+    return measure(measurements, 0);
+  }
+
+  /**
+   * Synchronously collects and stores a network performance measurement,
+   * taking at most the given time.
+   * 
+   * The network tests are cut short when the time runs out; whatever they
+   * measured until then is still stored.
+   * 
+   * @param measurements comma-separated list of measurements to be performed,
+   *     e.g. "ndt,wifi-ap"
+   * @param timeLimitMillis the longest the network tests may take, in
+   *     milliseconds; 0 means no limit
+   * @return the digest of the measurement
+   * @see NetMap#measure(String)
+   */
+  public static final String measure(String measurements,
+      int timeLimitMillis) {
     StringBuffer jsonData = new StringBuffer(); 
-    Sensors.readSensors(measurements, jsonData);
+    Sensors.readSensors(measurements, jsonData, timeLimitMillis);
     return Recorder.storeReading(jsonData.toString());    
   }
   
@@ -163,9 +182,29 @@ public final class NetMap {
    */
   public static Thread measureAsync(final String measurements,
                                     final MeasureCallback callback) {
+    return measureAsync(measurements, 0, callback);
+  }
+
+  /**
+   * Asynchronously collects and stores a network performance measurement,
+   * taking at most the given time.
+   * 
+   * @param measurements comma-separated list of measurements to be performed,
+   *     e.g. "ndt,wifi-ap"
+   * @param timeLimitMillis the longest the network tests may take, in
+   *     milliseconds; 0 means no limit
+   * @param callback receives the digest of the measurement
+   * @return the Thread doing the storage and computation
+   * 
+   * @see MeasureCallback#done(String)
+   * @see NetMap#measure(String, int)
+   */
+  public static Thread measureAsync(final String measurements,
+                                    final int timeLimitMillis,
+                                    final MeasureCallback callback) {
     Thread thread = new Thread(new Runnable() {
       public void run() {
-        final String digest = measure(measurements); 
+        final String digest = measure(measurements, timeLimitMillis); 
         callback.done(digest);
       }
     });
@@ -1,17 +1,39 @@
 package edu.mit.csail.netmap.sensors;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.InvalidParameterException;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONObject;
 
+import net.measurementlab.ndt.AsyncNdtClient;
+import net.measurementlab.ndt.LatencyProbe;
+import net.measurementlab.ndt.LatencyStats;
+import net.measurementlab.ndt.ReceiveStats;
 import net.measurementlab.ndt.MLabNS;
+import net.measurementlab.ndt.NdtClient;
+import net.measurementlab.ndt.NdtReactor;
+import net.measurementlab.ndt.NdtResult;
 import net.measurementlab.ndt.NdtTests;
 import net.measurementlab.ndt.UiServices;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.util.Base64;
 import android.util.Log;
 
 public final class Network {
@@ -25,9 +47,60 @@ public final class Network {
   
   /** Collects network performance information from the NDT library. */
   private static NdtListener ndtListener;
+
+  /** Keeps the NDT resources that every measurement can reuse. */
+  private static NdtClient ndtClient;
     
+  /**
+   * Default cap on the bytes moved by each NDT throughput test on mobile
+   * networks, in kilobytes.
+   */
+  private static final int MOBILE_BYTE_BUDGET_KB = 2048;
+
+  /**
+   * The longest {@link #measure} waits for the NDT tests when no time limit is
+   * given, in milliseconds, queueing at the server included.
+   */
+  private static final int NDT_WAIT_MILLIS = 3 * 60 * 1000;
+
+  /** How long {@link #measure} waits past its time limit, in milliseconds. */
+  private static final int NDT_WAIT_GRACE_MILLIS = 5000;
+
+  /**
+   * The least time that must be left, in milliseconds, for {@link #measure}
+   * to look up an IPv6 server once it has an IPv4 one: the lookup may take
+   * {@link MLabNS#DEFAULT_TIMEOUT}, and the tests need time of their own.
+   */
+  private static final int IPV6_LOOKUP_MIN_MILLIS = 20000;
+
+  /** The measurement keywords that pick NDT tests, see {@link #ndtTests}. */
+  private static final String[] TEST_KEYWORDS = {
+    "ndt-full", "ndt-mid", "ndt-sfw", "ndt-c2s", "ndt-s2c", "ndt-meta"
+  };
+
+  /** The tests that each of {@link #TEST_KEYWORDS} asks for. */
+  private static final int[] KEYWORD_TESTS = {
+    NdtTests.TESTS_ALL, NdtTests.TEST_MID, NdtTests.TEST_SFW,
+    NdtTests.TEST_C2S, NdtTests.TEST_S2C, NdtTests.TEST_META
+  };
+
   /** True when collecting network performance measurements. */
   private static boolean measuring = false;
+
+  /** The results of the last NDT run; null if it failed or never ran. */
+  private static NdtResult ndtResult;
+
+  /** The NDT tests requested by the last run, as NdtTests.TEST_* bits. */
+  private static int ndtTests;
+
+  /**
+   * The transcript of the last NDT run, if "ndt-transcript" asked for one;
+   * null otherwise.
+   */
+  private static ByteArrayOutputStream ndtTranscript;
+
+  /** The last latency measurement; null if it failed or never ran. */
+  private static LatencyProbe latencyProbe;
   
   /** Called by {@link Sensors#initialize(android.content.Context)}. */
   public static void initialize(Context context) {
@@ -35,6 +108,7 @@ public final class Network {
     connectivityManager_ = (ConnectivityManager)context_.getSystemService(
         Context.CONNECTIVITY_SERVICE);
     ndtListener = new NdtListener();
+    ndtClient = new NdtClient(NdtReactor.shared());
   }
   
   /**
@@ -43,22 +117,246 @@ public final class Network {
    * This should be called when your application / activity becomes active.
    */
   public static void measure() {
+    measure(Collections.<String>emptySet(), 0);
+  }
+  
+  /**
+   * Runs the NDT tests.
+   * 
+   * @param keywords the measurement keywords given to
+   *     {@link Sensors#readSensors(String, StringBuffer)}; "ndt-streams:N" runs
+   *     the throughput tests over N parallel connections; "ndt-adaptive:P"
+   *     ends each throughput test once its samples vary by less than P percent;
+   *     "ndt-budget:K" ends each throughput test once it moved K kilobytes,
+   *     which defaults to {@value #MOBILE_BYTE_BUDGET_KB} on mobile networks
+   *     and to no limit elsewhere; "ndt-budget:0" turns the cap off; the
+   *     test keywords, e.g. "ndt-s2c", pick the tests, see {@link #ndtTests};
+   *     "ndt-transcript" records the server's messages so the run can be
+   *     replayed, see {@link net.measurementlab.ndt.Transcript}
+   * @param timeLimitMillis the longest the tests may take, in milliseconds,
+   *     M-Lab NS lookups and DNS included; 0 means no limit
+   */
+  public static void measure(Set<String> keywords, int timeLimitMillis) {
     if (measuring) return;
     measuring = true;
+    try {
+      runNdt(keywords, timeLimitMillis);
+    } finally {
+      measuring = false;
+    }
+  }
+
+  private static void runNdt(Set<String> keywords, int timeLimitMillis) {
+    long deadline = System.nanoTime() + timeLimitMillis * 1000000L;
+    ndtResult = null;
+    ndtTranscript = keywords.contains("ndt-transcript")
+        ? new ByteArrayOutputStream() : null;
+    ndtTests = ndtTests(keywords);
+    if (ndtTests == 0) {
+      ndtTests = NdtTests.TESTS_ALL;
+    }
     
-    String serverHost = MLabNS.Lookup(context_, "ndt", "ipv4", null);
+    // The client races the two servers' addresses, so a broken address
+    // family only costs a fraction of a second. The IPv6 server is not worth
+    // the lookup if the device cannot reach it, or if it leaves the tests too
+    // little time.
+    String serverHost = lookup("ndt", "ipv4",
+        Sensors.remainingMillis(deadline, timeLimitMillis));
+    String ipv6Host = null;
+    if (hasGlobalIpv6Address() && (serverHost == null || timeLimitMillis == 0
+        || Sensors.remainingMillis(deadline, timeLimitMillis)
+            >= IPV6_LOOKUP_MIN_MILLIS)) {
+      ipv6Host = lookup("ndt", "ipv6",
+          Sensors.remainingMillis(deadline, timeLimitMillis));
+    }
+    if (serverHost == null) {
+      serverHost = ipv6Host;
+      ipv6Host = null;
+    }
+    if (serverHost == null) {
+      ndtListener.onBeginTest();
+      ndtListener.onFailure("unknownServer");
+      return;
+    }
     
+    // The tests run on the shared NDT I/O thread; this thread only waits.
+    AsyncNdtClient client = ndtClient.newSession(serverHost, ndtListener);
+    client.setAlternateHost(ipv6Host);
+    client.setTests(ndtTests);
+    client.setStreams(intKeyword(keywords, "ndt-streams", 1));
+    client.setAdaptiveDuration(
+        intKeyword(keywords, "ndt-adaptive", 0) / 100.0,
+        NdtTests.DEFAULT_CONVERGENCE_WINDOW);
+    client.setLatencyProbes(true);
+    // The client's limit covers its own DNS lookups.
+    timeLimitMillis = Sensors.remainingMillis(deadline, timeLimitMillis);
+    client.setTimeLimit(timeLimitMillis);
+    int defaultBudget = NdtTests.NETWORK_MOBILE.equals(getNetworkType())
+        ? MOBILE_BYTE_BUDGET_KB : 0;
+    client.setByteBudget(
+        intKeyword(keywords, "ndt-budget", defaultBudget) * 1024L);
+    if (ndtTranscript != null) {
+      client.setTranscript(ndtTranscript);
+    }
+    Future<NdtResult> future = null;
     try {
-      Thread measureThread = new Thread(new NdtTests(serverHost, ndtListener,
-    		  getNetworkType()));
-      measureThread.start();
-      measureThread.join();
+      future = client.start();
+      ndtResult = future.get(timeLimitMillis > 0
+          ? timeLimitMillis + NDT_WAIT_GRACE_MILLIS : NDT_WAIT_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Could not start the NDT tests: " + e);
+    } catch (ExecutionException e) {
+      // Already reported through NdtListener.onFailure.
+    } catch (TimeoutException e) {
+      Log.e(LOG_TAG, "The NDT tests did not finish in time.");
+      future.cancel(true);
     } catch (InterruptedException e) {
       Log.e(LOG_TAG, "Interrupted while running NDT tests.");
+      future.cancel(true);
     }
-    
-    measuring = false;
   }
+
+  /**
+   * Asks M-Lab NS for a server.
+   *
+   * @param addressFamily "ipv4" or "ipv6"
+   * @param timeLimitMillis the longest the lookup may take, in milliseconds,
+   *     if less than {@link MLabNS#DEFAULT_TIMEOUT}; 0 means no limit
+   * @return the server's hostname, or null if M-Lab NS has none to offer
+   */
+  private static String lookup(String tool, String addressFamily,
+      int timeLimitMillis) {
+    int timeout = MLabNS.DEFAULT_TIMEOUT;
+    if (timeLimitMillis > 0) {
+      timeout = Math.min(timeout, timeLimitMillis);
+    }
+    try {
+      return MLabNS.Lookup(context_, tool, addressFamily, null, timeout);
+    } catch (InvalidParameterException e) {
+      Log.w(LOG_TAG, "No " + addressFamily + " server: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * True if a network interface that is up has a global IPv6 address, i.e.
+   * one that is not loopback, link-local, site-local or unique local
+   * (fc00::/7). Without one, an IPv6 server cannot be reached.
+   */
+  private static boolean hasGlobalIpv6Address() {
+    try {
+      Enumeration<NetworkInterface> interfaces =
+          NetworkInterface.getNetworkInterfaces();
+      while (interfaces != null && interfaces.hasMoreElements()) {
+        NetworkInterface networkInterface = interfaces.nextElement();
+        if (!networkInterface.isUp()) {
+          continue;
+        }
+        Enumeration<InetAddress> addresses =
+            networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+          InetAddress address = addresses.nextElement();
+          if (address instanceof Inet6Address
+              && !address.isLoopbackAddress()
+              && !address.isLinkLocalAddress()
+              && !address.isSiteLocalAddress()
+              && (address.getAddress()[0] & 0xfe) != 0xfc) {
+            return true;
+          }
+        }
+      }
+    } catch (SocketException e) {
+      Log.w(LOG_TAG, "Could not list the network interfaces: " + e);
+      // Look the server up anyway; the race copes with a dead family.
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Measures the round-trip time to the NDT server.
+   *
+   * This takes under a second, so it can run far more often than the NDT
+   * tests.
+   *
+   * @param keywords the measurement keywords given to
+   *     {@link Sensors#readSensors(String, StringBuffer)}; "latency-probes:N"
+   *     makes N probes instead of {@link LatencyProbe#DEFAULT_PROBES}
+   * @param timeLimitMillis the longest the probes may take, in milliseconds,
+   *     if less than {@link LatencyProbe#DEFAULT_TIMEOUT}, the M-Lab NS lookup
+   *     included; 0 means no limit
+   */
+  public static void measureLatency(Set<String> keywords,
+      int timeLimitMillis) {
+    long deadline = System.nanoTime() + timeLimitMillis * 1000000L;
+    latencyProbe = null;
+    String serverHost = lookup("ndt", "ipv4", timeLimitMillis);
+    if (serverHost == null) {
+      return;
+    }
+    timeLimitMillis = Sensors.remainingMillis(deadline, timeLimitMillis);
+
+    LatencyProbe probe = new LatencyProbe(NdtReactor.shared(), serverHost);
+    probe.setProbes(
+        intKeyword(keywords, "latency-probes", LatencyProbe.DEFAULT_PROBES));
+    if (timeLimitMillis > 0) {
+      probe.setTimeout(Math.min(LatencyProbe.DEFAULT_TIMEOUT, timeLimitMillis));
+    }
+    try {
+      latencyProbe = probe.start().get();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Could not start the latency probe: " + e);
+    } catch (ExecutionException e) {
+      Log.e(LOG_TAG, "Latency probe failed: " + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Log.e(LOG_TAG, "Interrupted while measuring latency.");
+    }
+  }
+
+  /**
+   * Compiles the test keywords into the tests requested from the NDT server.
+   *
+   * "ndt-s2c" asks for the download test, "ndt-c2s" for the upload test,
+   * "ndt-mid", "ndt-sfw" and "ndt-meta" for the middlebox, firewall and
+   * metadata tests, and "ndt-full" for all of them. The keywords add up, so
+   * "ndt-c2s,ndt-s2c" runs both throughput tests and nothing else.
+   *
+   * @param keywords the measurement keywords
+   * @return NdtTests.TEST_* bits; 0 if no test keyword is present
+   */
+  static int ndtTests(Set<String> keywords) {
+    int tests = 0;
+    for (int i = 0; i < TEST_KEYWORDS.length; ++i) {
+      if (keywords.contains(TEST_KEYWORDS[i])) {
+        tests |= KEYWORD_TESTS[i];
+      }
+    }
+    return tests;
+  }
+
+  /**
+   * Reads the value of a "name:value" measurement keyword.
+   * 
+   * @param keywords the measurement keywords
+   * @param name the part of the keyword before the colon
+   * @param defaultValue returned if the keyword is missing or malformed
+   */
+  private static int intKeyword(Set<String> keywords, String name,
+      int defaultValue) {
+    String prefix = name + ":";
+    for (String keyword : keywords) {
+      if (keyword.startsWith(prefix)) {
+        try {
+          return Integer.parseInt(keyword.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+          Log.e(LOG_TAG, "Malformed measurement keyword: " + keyword);
+        }
+      }
+    }
+    return defaultValue;
+  }
+  
   /**
    * Gets the type of network the device is currently using.
    */
@@ -83,6 +381,14 @@ public final class Network {
    *     the WiFisensor data
    */
   public static void getJson(StringBuffer buffer) {
+    // The listener is written on the NDT I/O thread, possibly still after
+    // measure() gave up on a run.
+    synchronized (ndtListener) {
+      writeJson(buffer);
+    }
+  }
+
+  private static void writeJson(StringBuffer buffer) {
 	  
 	  buffer.append("{\"provider\":");
 	  NetworkInfo networkInfo = connectivityManager_.getActiveNetworkInfo();
@@ -123,35 +429,278 @@ public final class Network {
 	    buffer.append("\"");
 	  }
 	  
-	  for (Entry<String, String> entry : ndtListener.results.entrySet()) {
+	  if (ndtTests != 0) {
+	    buffer.append(",\"tests\":");
+	    buffer.append(ndtTests);
+	  }
+	  if (ndtListener.failure != null) {
+	    buffer.append(",\"error\":");
+	    buffer.append(JSONObject.quote(ndtListener.failure));
+	  }
+	  if (ndtTranscript != null) {
+	    buffer.append(",\"transcript\":\"");
+	    buffer.append(Base64.encodeToString(ndtTranscript.toByteArray(),
+	        Base64.NO_WRAP));
+	    buffer.append("\"");
+	  }
+	  if (ndtResult != null) {
+	    // The socket buffers the client settled on.
+	    if (ndtResult.clientSndbuf != 0) {
+	      buffer.append(",\"clientSndbufBytes\":");
+	      buffer.append(ndtResult.clientSndbuf);
+	    }
+	    if (ndtResult.clientRcvbuf != 0) {
+	      buffer.append(",\"clientRcvbufBytes\":");
+	      buffer.append(ndtResult.clientRcvbuf);
+	    }
+	    // Whether each was left to the kernel's auto-tuning.
+	    if (ndtResult.clientSndbuf != 0) {
+	      buffer.append(",\"clientSndbufAuto\":");
+	      buffer.append(ndtResult.clientSndbufAuto);
+	    }
+	    if (ndtResult.clientRcvbuf != 0) {
+	      buffer.append(",\"clientRcvbufAuto\":");
+	      buffer.append(ndtResult.clientRcvbufAuto);
+	    }
+	    if (ndtResult.clientRtt != 0) {
+	      buffer.append(",\"clientRttMs\":");
+	      buffer.append(ndtResult.clientRtt);
+	    }
+	    // The address family that won the control connection race.
+	    if (ndtResult.clientFamily != null) {
+	      buffer.append(",\"family\":");
+	      buffer.append(JSONObject.quote(ndtResult.clientFamily));
+	    }
+	    if (ndtResult.clientRaceLoser != null) {
+	      buffer.append(",\"familyRaceLoser\":");
+	      buffer.append(JSONObject.quote(ndtResult.clientRaceLoser));
+	      buffer.append(",\"familyRaceLoserState\":");
+	      buffer.append(JSONObject.quote(ndtResult.clientRaceLoserState));
+	    }
+	  }
+	  for (Entry<String, Number> entry : ndtListener.results.entrySet()) {
 	    buffer.append(",\"");
 	    buffer.append(entry.getKey());
 	    buffer.append("\":");
-	    buffer.append(JSONObject.quote(entry.getValue()));
+	    buffer.append(entry.getValue());
+	  }
+	  // The variables the server sent at the end of the S2C test, apart from
+	  // the final results above.
+	  if (ndtResult != null && ndtResult.s2c != null) {
+	    buffer.append(",\"s2cWeb100\":{");
+	    String separator = "";
+	    for (Entry<String, Number> entry :
+	        ndtResult.s2c.getVariables().entrySet()) {
+	      buffer.append(separator);
+	      buffer.append(JSONObject.quote(entry.getKey()));
+	      buffer.append(":");
+	      buffer.append(entry.getValue());
+	      separator = ",";
+	    }
+	    buffer.append("}");
+	  }
+	  for (Entry<String, Integer> entry : ndtListener.durations.entrySet()) {
+	    buffer.append(",\"");
+	    buffer.append(entry.getKey());
+	    buffer.append("DurationMs\":");
+	    buffer.append(entry.getValue());
+	    String stopReason = ndtListener.stopReasons.get(entry.getKey());
+	    if (stopReason != null) {
+	      buffer.append(",\"");
+	      buffer.append(entry.getKey());
+	      buffer.append("Stop\":");
+	      buffer.append(JSONObject.quote(stopReason));
+	    }
+	  }
+	  for (Entry<String, double[]> entry : ndtListener.streams.entrySet()) {
+	    double[] mbps = entry.getValue();
+	    buffer.append(",\"");
+	    buffer.append(entry.getKey());
+	    buffer.append("Mbps\":");
+	    buffer.append(mbps[0]);
+	    buffer.append(",\"");
+	    buffer.append(entry.getKey());
+	    buffer.append("StreamsMbps\":[");
+	    for (int i = 1; i < mbps.length; ++i) {
+	      if (i != 1) {
+	        buffer.append(",");
+	      }
+	      buffer.append(mbps[i]);
+	    }
+	    buffer.append("]");
+	  }
+	  for (Entry<String, LatencyStats> entry : ndtListener.latencies.entrySet()) {
+	    buffer.append(",\"");
+	    buffer.append(entry.getKey());
+	    buffer.append("RttMs\":");
+	    getLatencyStatsJson(entry.getValue(), buffer);
+	  }
+	  for (Entry<String, ReceiveStats> entry : ndtListener.reads.entrySet()) {
+	    buffer.append(",\"");
+	    buffer.append(entry.getKey());
+	    buffer.append("Reads\":");
+	    getReceiveStatsJson(entry.getValue(), buffer);
+	  }
+	  if (!ndtListener.samples.isEmpty()) {
+	    buffer.append(",\"sampleIntervalMs\":");
+	    buffer.append(ndtListener.sampleInterval);
+	    for (Entry<String, long[]> entry : ndtListener.samples.entrySet()) {
+	      buffer.append(",\"");
+	      buffer.append(entry.getKey());
+	      buffer.append("Samples\":[");
+	      long[] bytes = entry.getValue();
+	      for (int i = 0; i < bytes.length; ++i) {
+	        if (i != 0) {
+	          buffer.append(",");
+	        }
+	        buffer.append(bytes[i]);
+	      }
+	      buffer.append("]");
+	    }
 	  }
 	  buffer.append("}");
   }
   
   
   
+  /**
+   * Writes a JSON representation of the last latency measurement to the given
+   * buffer.
+   * 
+   * "connectMs" holds the TCP handshake times. "loginMs" holds the times from
+   * MSG_LOGIN to the server's first byte, which include the server's session
+   * setup, so they sit above the handshake times even on an idle path.
+   * 
+   * @param buffer a {@link StringBuffer} that receives a JSON representation of
+   *     the round-trip times, or null if the measurement failed
+   */
+  public static void getLatencyJson(StringBuffer buffer) {
+    if (latencyProbe == null) {
+      buffer.append("null");
+      return;
+    }
+    buffer.append("{\"connectMs\":");
+    getLatencyStatsJson(latencyProbe.getConnectTimes(), buffer);
+    buffer.append(",\"loginMs\":");
+    getLatencyStatsJson(latencyProbe.getLoginTimes(), buffer);
+    buffer.append("}");
+  }
+
+  private static void getLatencyStatsJson(LatencyStats stats,
+      StringBuffer buffer) {
+    buffer.append("{\"count\":");
+    buffer.append(stats.getCount());
+    if (stats.getCount() > 0) {
+      buffer.append(",\"min\":");
+      buffer.append(stats.getMin());
+      buffer.append(",\"median\":");
+      buffer.append(stats.getMedian());
+      buffer.append(",\"p95\":");
+      buffer.append(stats.getPercentile(95));
+    }
+    if (stats.getCount() > 1) {
+      buffer.append(",\"jitter\":");
+      buffer.append(stats.getJitter());
+    }
+    buffer.append("}");
+  }
+
+  private static void getReceiveStatsJson(ReceiveStats stats,
+      StringBuffer buffer) {
+    buffer.append("{\"count\":");
+    buffer.append(stats.getReads());
+    buffer.append(",\"sizeBounds\":");
+    appendJsonArray(stats.getSizeBounds(), buffer);
+    buffer.append(",\"sizes\":");
+    appendJsonArray(stats.getSizes(), buffer);
+    buffer.append(",\"gapBoundsMs\":");
+    appendJsonArray(stats.getGapBounds(), buffer);
+    buffer.append(",\"gaps\":");
+    appendJsonArray(stats.getGaps(), buffer);
+    buffer.append(",\"stallThresholdMs\":");
+    buffer.append(ReceiveStats.STALL_MILLIS);
+    buffer.append(",\"stalls\":");
+    buffer.append(stats.getStalls());
+    buffer.append(",\"stallMs\":");
+    buffer.append(stats.getStallMillis());
+    buffer.append(",\"maxGapMs\":");
+    buffer.append(stats.getMaxGapMillis());
+    buffer.append("}");
+  }
+
+  private static void appendJsonArray(int[] values, StringBuffer buffer) {
+    buffer.append("[");
+    for (int i = 0; i < values.length; ++i) {
+      if (i != 0) {
+        buffer.append(",");
+      }
+      buffer.append(values[i]);
+    }
+    buffer.append("]");
+  }
+
+  private static void appendJsonArray(long[] values, StringBuffer buffer) {
+    buffer.append("[");
+    for (int i = 0; i < values.length; ++i) {
+      if (i != 0) {
+        buffer.append(",");
+      }
+      buffer.append(values[i]);
+    }
+    buffer.append("]");
+  }
+
   /** Collects the performance results reported by the NDT library. */
+  /**
+   * The callbacks run on the NDT I/O thread; the ones that record results
+   * synchronize on the listener, and so does {@link #getJson}.
+   */
   private static class NdtListener implements UiServices {
     /** If this becomes true, the NDT performance test will abort early. */
     private boolean wantToStop = false;
 
-    /** Accumulates the performance results reported by the NDT library. */
-    public Map<String, String> results;
+    /** The web100 variables sent by the NDT server, by name. */
+    public Map<String, Number> results;
+    
+    /** Bytes per interval for each throughput test in the last measurement. */
+    public Map<String, long[]> samples;
+    
+    /** Length of the intervals in {@link #samples}, in milliseconds. */
+    public int sampleInterval;
+    
+    /**
+     * Client-side throughput of each test in the last measurement; the first
+     * element is the aggregate, followed by one element per connection.
+     */
+    public Map<String, double[]> streams;
+    
+    /** How long the data phase of each throughput test ran, in ms. */
+    public Map<String, Integer> durations;
+    
+    /** Why each throughput test that ended early was stopped. */
+    public Map<String, String> stopReasons;
+    
+    /** Round-trip times while idle ("idle") and during each throughput test. */
+    public Map<String, LatencyStats> latencies;
+    
+    /** Read size and gap histograms of the download test. */
+    public Map<String, ReceiveStats> reads;
+    
+    /** Why the last measurement failed, e.g. "timeLimitReached"; or null. */
+    public String failure;
     
     public NdtListener() {
-      results = new HashMap<String, String>();
+      results = new HashMap<String, Number>();
+      samples = new HashMap<String, long[]>();
+      streams = new HashMap<String, double[]>();
+      durations = new HashMap<String, Integer>();
+      stopReasons = new HashMap<String, String>();
+      latencies = new HashMap<String, LatencyStats>();
+      reads = new HashMap<String, ReceiveStats>();
     }
 
     @Override
     public void appendString(String message, int viewId) {
-      if (viewId == UiServices.DIAG_VIEW) {
-        String[] keyValue = message.split(":", 2);
-        results.put(keyValue[0].trim(), keyValue[1].trim());
-      }
     }
 
     @Override
@@ -160,7 +709,15 @@ public final class Network {
     }
 
     @Override
-    public void onBeginTest() {
+    public synchronized void onBeginTest() {
+      results.clear();
+      samples.clear();
+      streams.clear();
+      durations.clear();
+      stopReasons.clear();
+      latencies.clear();
+      reads.clear();
+      failure = null;
     }
 
     @Override
@@ -170,8 +727,9 @@ public final class Network {
     }
 
     @Override
-    public void onFailure(String errorMessage) {
+    public synchronized void onFailure(String errorMessage) {
       Log.d(LOG_TAG, String.format("NDT failure: %1$s.", errorMessage));
+      failure = errorMessage;
       wantToStop = false;
     }
 
@@ -183,6 +741,46 @@ public final class Network {
     public void onLoginSent() {
     }
 
+    @Override
+    public synchronized void onThroughputSamples(String test, int intervalMillis,
+        long[] bytes) {
+      sampleInterval = intervalMillis;
+      samples.put(test, bytes);
+    }
+
+    @Override
+    public synchronized void onDataPhaseEnd(String test, int durationMillis,
+        String stopReason) {
+      durations.put(test, durationMillis);
+      if (stopReason != null) {
+        stopReasons.put(test, stopReason);
+      }
+    }
+
+    @Override
+    public synchronized void onStreamThroughput(String test, double totalMbps,
+        double[] streamMbps) {
+      double[] mbps = new double[streamMbps.length + 1];
+      mbps[0] = totalMbps;
+      System.arraycopy(streamMbps, 0, mbps, 1, streamMbps.length);
+      streams.put(test, mbps);
+    }
+
+    @Override
+    public synchronized void onReceiveStats(String test, ReceiveStats stats) {
+      reads.put(test, stats);
+    }
+
+    @Override
+    public synchronized void onLatency(String test, LatencyStats rtt) {
+      latencies.put(test, rtt);
+    }
+
+    @Override
+    public synchronized void onResultVariable(String name, Number value) {
+      results.put(name, value);
+    }
+
     @Override
     public void onPacketQueuingDetected() {
     }
@@ -49,11 +49,31 @@ public final class Sensors {
    * Collects the sensor reading data that will be stored in the database.
    * 
    * @param measurements comma-separated list of measurements to be performed,
-   *          e.g. "latency,speed"
+   *          e.g. "latency,speed"; "latency" measures the round-trip time to
+   *          the NDT server in under a second; "ndt" runs the NDT tests,
+   *          which can be tuned with keywords such as "ndt-streams:4"; a test
+   *          keyword such as "ndt-s2c" runs only the tests it names
    * @param jsonData {@link StringBuffer} that receives the reading data,
    *          formatted as a JSON string
    */
   public static void readSensors(String measurements, StringBuffer jsonData) {
+    readSensors(measurements, jsonData, 0);
+  }
+
+  /**
+   * Collects the sensor reading data, giving the network tests a time limit.
+   * 
+   * @param measurements comma-separated list of measurements to be performed
+   * @param jsonData {@link StringBuffer} that receives the reading data,
+   *          formatted as a JSON string
+   * @param timeLimitMillis the longest the network tests may take together,
+   *          in milliseconds, M-Lab NS lookups and DNS included; 0 means no
+   *          limit
+   * @see #readSensors(String, StringBuffer)
+   */
+  public static void readSensors(String measurements, StringBuffer jsonData,
+      int timeLimitMillis) {
+    long deadline = System.nanoTime() + timeLimitMillis * 1000000L;
     HashSet<String> keywords = new HashSet<String>();
     for (String measurement : measurements.split(",")) {
       keywords.add(measurement);
@@ -79,15 +99,35 @@ public final class Sensors {
       jsonData.append(",\"gsm\":");
       GSM.getJson(jsonData);
     }
-    if (keywords.contains("ndt")) {
+    if (keywords.contains("latency")) {
+      Network.measureLatency(keywords,
+          remainingMillis(deadline, timeLimitMillis));
+      jsonData.append(",\"latency\":");
+      Network.getLatencyJson(jsonData);
+    }
+    if (keywords.contains("ndt") || Network.ndtTests(keywords) != 0) {
       // HACK(pwnall): measure and getJson should be combined
-      Network.measure();
+      Network.measure(keywords, remainingMillis(deadline, timeLimitMillis));
       jsonData.append(",\"ndt\":");
       Network.getJson(jsonData);
     }
     jsonData.append("}");
   }
 
+  /**
+   * The time left for the network tests, in milliseconds.
+   * 
+   * @return 0 if there is no time limit; otherwise at least 1, so a test that
+   *     starts after the time ran out stops right away instead of running
+   *     without a limit
+   */
+  static int remainingMillis(long deadline, int timeLimitMillis) {
+    if (timeLimitMillis == 0) {
+      return 0;
+    }
+    return (int) Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+  }
+
   /**
    * Sets the object that receives sensor-related event notifications.
    * 
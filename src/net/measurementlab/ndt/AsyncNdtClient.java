@@ -0,0 +1,1378 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the NDT tests without a thread of its own.
+ *
+ * This is the event-driven counterpart of {@link NdtTests}: the control
+ * channel, the data channels and the simple firewall listener of a
+ * measurement are all driven by a {@link NdtReactor}, which can serve many
+ * measurements from one I/O thread. {@link #start()} returns right away with a
+ * {@link Future} of the server's web100 results.
+ *
+ * The client only produces structured results, like {@link NdtTests} in
+ * headless mode. The {@link UiServices} callbacks are made on the reactor's
+ * I/O thread, so they must not block.
+ */
+public class AsyncNdtClient {
+  /** Length of the C2S data phase, in milliseconds. */
+  private static final int C2S_DURATION = 10000;
+
+  /** Longest S2C data phase, in milliseconds. */
+  private static final int S2C_DURATION = 14500;
+
+  /** Longest middlebox data phase, in milliseconds. */
+  private static final int MID_DURATION = 5500;
+
+  /** Full-size writes to one data channel before going back to the selector. */
+  private static final int MAX_WRITES_PER_WAKEUP = 8;
+
+  // Where the measurement is in the protocol.
+  private static final int STATE_KICKOFF = 0;
+  private static final int STATE_QUEUE = 1;
+  private static final int STATE_VERSION = 2;
+  private static final int STATE_SUITE = 3;
+  private static final int STATE_TEST = 4;
+  private static final int STATE_RESULTS = 5;
+  private static final int STATE_DONE = 6;
+
+  /** Length of the kickoff string that the server sends old clients. */
+  private static final int KICKOFF_LENGTH = 13;
+
+  private final NdtReactor reactor;
+  private final String host;
+  private String alternateHost;
+  /** The client whose resources the run borrows; null if standalone. */
+  private NdtClient client;
+  /**
+   * The addresses the control connection races, resolved by
+   * {@link #start()}; null if the server's names did not resolve.
+   */
+  private InetAddress[] candidates;
+  /** The server's address, chosen once when the measurement starts. */
+  private InetAddress serverAddress;
+  private final UiServices uiServices;
+  private final ReactorFuture<NdtResult> future;
+  /** Fails the measurement if one of its handlers or timers throws. */
+  private final NdtReactor.Session session = new NdtReactor.Session() {
+    public void abort(Throwable error) {
+      fail("protocolError: " + error);
+    }
+  };
+
+  /** The MSG_LOGIN byte: the requested tests and TEST_STATUS. */
+  private byte tests = NdtTests.TESTS_ALL | NdtTests.TEST_STATUS;
+  private int streams = 1;
+  private int sampleInterval = NdtTests.DEFAULT_SAMPLE_INTERVAL;
+  private double convergenceThreshold = 0;
+  private int convergenceWindow = NdtTests.DEFAULT_CONVERGENCE_WINDOW;
+  private boolean latencyProbes;
+  private int timeLimit;
+  private long byteBudget;
+  private SocketTuning tuning = new SocketTuning();
+
+  // Everything below is only touched on the I/O thread.
+  private final NdtResult result = new NdtResult();
+  private Web100Parser web100;
+  /** Parses the variables sent at the end of the S2C test. */
+  private Web100Parser snapshot;
+  private SocketChannel ctlChannel;
+  private SelectionKey ctlKey;
+  private final ByteBuffer inbound =
+      ByteBuffer.allocate(3 + NdtTests.Protocol.MAX_BODY);
+  private ByteBuffer outbound = ByteBuffer.allocate(1024);
+  /** True while a data phase runs; control messages wait in {@link #inbound}. */
+  private boolean controlPaused;
+  private int state = STATE_KICKOFF;
+  private boolean queued;
+
+  /** The tests the server agreed to run, in order, and the current one. */
+  private int[] suite;
+  private int suiteIndex;
+  private int testId;
+  /** How far the current test is in its message exchange. */
+  private int step;
+
+  private DataPhase phase;
+  private double midspd, c2sspd, s2cspd;
+  /** The server's C2S measurement, in Mb/s. */
+  private double sc2sspd;
+  /** The race for the control connection; see {@link DualStack}. */
+  private ControlAttempt[] attempts = new ControlAttempt[0];
+  private int attemptsStarted;
+  private NdtReactor.Timer attemptTimer;
+  /** The control connection's handshake time, in ms; 0 until connected. */
+  private double handshakeMillis;
+  private FirewallTest firewall;
+  private NdtReactor.Timer deadline;
+  /** Receives the transcript; null if the run is not recorded. */
+  private OutputStream transcript;
+  private Transcript.Recorder recorder;
+  private int c2sResult = NdtTests.SFW_NOTTESTED;
+  private int s2cResult = NdtTests.SFW_NOTTESTED;
+
+  /**
+   * @param reactor runs the measurement's I/O, e.g. {@link NdtReactor#shared()}
+   * @param host hostname of the test server
+   * @param uiServices receives the progress and result callbacks on the I/O
+   *     thread
+   */
+  public AsyncNdtClient(NdtReactor reactor, String host,
+      UiServices uiServices) {
+    this.reactor = reactor;
+    this.host = host;
+    this.uiServices = uiServices;
+    future = new ReactorFuture<NdtResult>(reactor, new Runnable() {
+      public void run() {
+        fail("stopped");
+      }
+    });
+  }
+
+  /**
+   * Sets the number of parallel data connections used by the C2S and S2C
+   * tests.
+   *
+   * @see NdtTests#setStreams(int)
+   */
+  public void setStreams(int streams) {
+    this.streams = Math.max(1, Math.min(NdtTests.MAX_STREAMS, streams));
+  }
+
+  /**
+   * Selects the tests that are requested from the server at login.
+   *
+   * @see NdtTests#setTests(int)
+   */
+  public void setTests(int tests) {
+    this.tests =
+        (byte) ((tests & NdtTests.TESTS_ALL) | NdtTests.TEST_STATUS);
+  }
+
+  /**
+   * Sets the length of the intervals reported by
+   * {@link UiServices#onThroughputSamples(String, int, long[])}.
+   *
+   * @see NdtTests#setSampleInterval(int)
+   */
+  public void setSampleInterval(int intervalMillis) {
+    sampleInterval = Math.max(1, intervalMillis);
+  }
+
+  /**
+   * Turns on the adaptive-duration mode.
+   *
+   * @see NdtTests#setAdaptiveDuration(double, int)
+   */
+  public void setAdaptiveDuration(double threshold, int windowMillis) {
+    convergenceThreshold = threshold;
+    convergenceWindow = windowMillis;
+  }
+
+  /**
+   * Turns on latency probes.
+   *
+   * @see NdtTests#setLatencyProbes(boolean)
+   */
+  public void setLatencyProbes(boolean enabled) {
+    latencyProbes = enabled;
+  }
+
+  /**
+   * Caps the bytes moved by each of the C2S and S2C data phases.
+   *
+   * @see NdtTests#setByteBudget(long)
+   */
+  public void setByteBudget(long bytes) {
+    byteBudget = bytes;
+  }
+
+  /**
+   * Sets the socket options applied to every connection the tests open.
+   *
+   * @see NdtTests#setSocketTuning(SocketTuning)
+   */
+  public void setSocketTuning(SocketTuning tuning) {
+    this.tuning = tuning;
+  }
+
+  /**
+   * Records the control channel, as described in {@link Transcript}.
+   *
+   * @param out receives the transcript on the I/O thread, so it should be
+   *     quick to write to, e.g. a file or memory; it is flushed when the
+   *     measurement ends but not closed
+   * @see NdtTests#setTranscript(OutputStream)
+   */
+  public void setTranscript(OutputStream out) {
+    transcript = out;
+  }
+
+  /** Makes this a session of a long-lived client. */
+  void setClient(NdtClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Adds another name for the server, whose addresses join the race for the
+   * control connection.
+   *
+   * @see NdtTests#setAlternateHost(String)
+   */
+  public void setAlternateHost(String alternateHost) {
+    this.alternateHost = alternateHost;
+  }
+
+  /**
+   * Sets a limit on the time taken by the measurement, counted from
+   * {@link #start()} so that resolving the server counts too.
+   *
+   * When the time runs out, the data phase that is running ends with the
+   * stop reason "deadline" and reports what it measured, then the
+   * measurement fails with "timeLimitReached" and closes its connections.
+   *
+   * @param millis the limit, in milliseconds; 0, the default, means no limit
+   * @see NdtTests#setTimeLimit(int)
+   */
+  public void setTimeLimit(int millis) {
+    timeLimit = millis;
+  }
+
+  /**
+   * Starts the measurement. The server's names are resolved on the calling
+   * thread, so DNS never holds up the I/O thread.
+   *
+   * @return completes with the server's web100 results once the server logs
+   *     out, or with an {@link ExecutionException} if the measurement fails;
+   *     cancelling it aborts the measurement
+   */
+  public Future<NdtResult> start() throws IOException {
+    // The time limit covers the lookups below.
+    final long started = System.nanoTime();
+    try {
+      candidates = client != null
+          ? client.candidates(host, alternateHost)
+          : DualStack.candidates(host, alternateHost);
+    } catch (UnknownHostException e) {
+      candidates = null;
+    }
+    reactor.execute(session, new Runnable() {
+      public void run() {
+        uiServices.onBeginTest();
+        if (timeLimit > 0) {
+          long elapsed = (System.nanoTime() - started) / 1000000L;
+          deadline = reactor.schedule(Math.max(0, timeLimit - elapsed),
+              new Runnable() {
+                public void run() {
+                  deadline = null;
+                  timeLimitReached();
+                }
+              });
+        }
+        if (latencyProbes && candidates != null) {
+          probeIdleLatency();
+        } else {
+          connect();
+        }
+      }
+    });
+    return future;
+  }
+
+  /**
+   * The outcome of the client-to-server firewall test, one of the
+   * {@code NdtTests.SFW_*} constants. Valid once the measurement completed.
+   */
+  public int getC2sFirewallResult() {
+    return c2sResult;
+  }
+
+  /**
+   * The outcome of the server-to-client firewall test, one of the
+   * {@code NdtTests.SFW_*} constants. Valid once the measurement completed.
+   */
+  public int getS2cFirewallResult() {
+    return s2cResult;
+  }
+
+  /** Measures the idle round-trip time, then starts the tests. */
+  private void probeIdleLatency() {
+    final LatencyProbe probe = newLatencyProbe();
+    probe.setCompletion(new Runnable() {
+      public void run() {
+        if (state == STATE_DONE) {
+          return;
+        }
+        uiServices.onLatency("idle", probe.getConnectTimes());
+        connect();
+      }
+    });
+    try {
+      probe.start();
+    } catch (IOException e) {
+      connect();
+    }
+  }
+
+  /** A latency probe that only times handshakes with the control port. */
+  private LatencyProbe newLatencyProbe() {
+    // The probes reuse the resolved addresses: the winner of the race once
+    // there is one, before that the address the race tries first.
+    InetAddress address =
+        serverAddress != null ? serverAddress : candidates[0];
+    LatencyProbe probe = new LatencyProbe(reactor, address.getHostAddress());
+    probe.setLoginExchange(false);
+    probe.setSession(session);
+    if (deadline != null) {
+      probe.setTimeout((int) Math.min(LatencyProbe.DEFAULT_TIMEOUT,
+          Math.max(1, (deadline.deadline - System.nanoTime()) / 1000000L)));
+    }
+    return probe;
+  }
+
+  private void connect() {
+    web100 = new Web100Parser(result, new Web100Parser.Listener() {
+      public void onVariable(String name, String value, int field,
+          boolean snapshot) {
+        uiServices.appendString(name + " " + value + "\n",
+            UiServices.DIAG_VIEW);
+        Number number = Web100Parser.toNumber(value);
+        if (number != null && !snapshot) {
+          uiServices.onResultVariable(Web100Parser.bareName(name), number);
+        }
+      }
+    });
+    if (candidates == null) {
+      fail("unknownServer " + host);
+      return;
+    }
+    attempts = new ControlAttempt[candidates.length];
+    for (int i = 0; i < candidates.length; ++i) {
+      attempts[i] = new ControlAttempt(candidates[i]);
+    }
+    startAttempt(0);
+  }
+
+  /**
+   * Starts the i-th control connection attempt, and gives it a head start on
+   * the next one.
+   */
+  private void startAttempt(int i) {
+    if (attemptTimer != null) {
+      attemptTimer.cancel();
+      attemptTimer = null;
+    }
+    attemptsStarted = i + 1;
+    final int next = i + 1;
+    if (next < attempts.length) {
+      attemptTimer = reactor.schedule(DualStack.ATTEMPT_DELAY, new Runnable() {
+        public void run() {
+          attemptTimer = null;
+          startAttempt(next);
+        }
+      });
+    }
+    attempts[i].start();
+  }
+
+  /**
+   * Called when a control connection attempt fails; moves on to the next
+   * address, or fails the measurement once every attempt has failed.
+   */
+  private void attemptFailed() {
+    if (state == STATE_DONE) {
+      return;
+    }
+    for (int i = 0; i < attemptsStarted; ++i) {
+      if (!attempts[i].failed) {
+        return;
+      }
+    }
+    if (attemptsStarted < attempts.length) {
+      startAttempt(attemptsStarted);
+    } else {
+      if (client != null) {
+        // The server may have moved; resolve it again next time.
+        client.forget(host, alternateHost);
+      }
+      fail("serverNotRunning (" + host + ":" + NdtTests.CONTROL_PORT + ")");
+    }
+  }
+
+  /**
+   * Makes the first control connection to complete the measurement's control
+   * channel, drops the others and logs in.
+   */
+  private void attemptWon(ControlAttempt winner, SelectionKey key)
+      throws IOException {
+    if (attemptTimer != null) {
+      attemptTimer.cancel();
+      attemptTimer = null;
+    }
+    ctlChannel = winner.channel;
+    ctlKey = key;
+    // Every later connection of the measurement goes to this address.
+    serverAddress = winner.address;
+    handshakeMillis = (System.nanoTime() - winner.startNanos) / 1e6;
+    result.clientFamily = DualStack.family(serverAddress);
+    for (ControlAttempt attempt : attempts) {
+      if (attempt == winner) {
+        continue;
+      }
+      result.clientRaceLoser = DualStack.family(attempt.address);
+      if (attempt.failed) {
+        result.clientRaceLoserState = DualStack.LOSER_FAILED;
+      } else if (attempt.channel == null) {
+        result.clientRaceLoserState = DualStack.LOSER_UNSTARTED;
+      } else {
+        result.clientRaceLoserState = DualStack.LOSER_PENDING;
+        closeQuietly(attempt.channel);
+      }
+    }
+    key.interestOps(SelectionKey.OP_READ);
+    if (transcript != null) {
+      recorder = new Transcript.Recorder(transcript);
+    }
+    send(NdtTests.MSG_LOGIN, new byte[] { tests });
+  }
+
+  /**
+   * Starts a non-blocking connection to a port on the test server.
+   *
+   * @param kind the {@link SocketTuning} connection kind
+   */
+  private SocketChannel openChannel(int port, int kind) throws IOException {
+    return openChannel(serverAddress, port, kind);
+  }
+
+  private SocketChannel openChannel(InetAddress address, int port, int kind)
+      throws IOException {
+    SocketChannel channel = SocketChannel.open();
+    try {
+      channel.configureBlocking(false);
+      tuneChannel(channel.socket(), kind);
+      channel.connect(new InetSocketAddress(address, port));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Applies {@link #tuning} to a socket that is about to connect, and records
+   * the data connections' buffers in the result.
+   */
+  private void tuneChannel(Socket socket, int kind) throws IOException {
+    if (kind == SocketTuning.CONTROL) {
+      tuning.apply(socket, kind, 0);
+      return;
+    }
+    // The streams of a test share the path.
+    boolean set = tuning.apply(socket, kind,
+        tuning.bufferSize(handshakeMillis, midspd / streams));
+    if (kind == SocketTuning.UPLOAD) {
+      result.clientSndbuf = socket.getSendBufferSize();
+      result.clientSndbufAuto = !set;
+    } else {
+      result.clientRcvbuf = socket.getReceiveBufferSize();
+      result.clientRcvbufAuto = !set;
+    }
+    result.clientRtt = handshakeMillis;
+  }
+
+  // The control channel.
+
+  private void controlReady(SelectionKey key) {
+    try {
+      if (key.isValid() && key.isWritable()) {
+        flush();
+      }
+      if (key.isValid() && key.isReadable()) {
+        if (ctlChannel.read(inbound) < 0) {
+          fail("protocolError: connection closed");
+          return;
+        }
+        processInbound();
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      // A malformed number in a control message.
+      fail("protocolError: " + e);
+    }
+  }
+
+  /** Dispatches the complete messages in {@link #inbound}. */
+  private void processInbound() throws IOException {
+    inbound.flip();
+    try {
+      while (!controlPaused && state != STATE_DONE) {
+        if (state == STATE_KICKOFF) {
+          if (inbound.remaining() < KICKOFF_LENGTH) {
+            break;
+          }
+          if (recorder != null) {
+            recorder.record(Transcript.RAW, (byte) 0, inbound.array(),
+                inbound.arrayOffset() + inbound.position(), KICKOFF_LENGTH);
+          }
+          inbound.position(inbound.position() + KICKOFF_LENGTH);
+          state = STATE_QUEUE;
+          continue;
+        }
+        if (inbound.remaining() < 3) {
+          break;
+        }
+        int start = inbound.position();
+        byte type = inbound.get(start);
+        int length = ((inbound.get(start + 1) & 0xff) << 8)
+            | (inbound.get(start + 2) & 0xff);
+        if (inbound.remaining() < 3 + length) {
+          break;
+        }
+        inbound.position(start + 3 + length);
+        if (recorder != null) {
+          recorder.record(Transcript.RECEIVED, type, inbound.array(),
+              inbound.arrayOffset() + start + 3, length);
+        }
+        dispatch(type, inbound.array(), inbound.arrayOffset() + start + 3,
+            length);
+      }
+    } finally {
+      if (state != STATE_DONE) {
+        inbound.compact();
+      }
+    }
+  }
+
+  /** Queues a control message and writes as much of it as the socket takes. */
+  private void send(byte type, byte[] body) throws IOException {
+    if (outbound.remaining() < 3 + body.length) {
+      ByteBuffer grown = ByteBuffer.allocate(
+          Math.max(outbound.capacity() * 2, outbound.position() + 3 + body.length));
+      outbound.flip();
+      grown.put(outbound);
+      outbound = grown;
+    }
+    outbound.put(type);
+    outbound.put((byte) (body.length >> 8));
+    outbound.put((byte) body.length);
+    outbound.put(body);
+    if (recorder != null) {
+      recorder.record(Transcript.SENT, type, body, 0, body.length);
+    }
+    flush();
+  }
+
+  private void flush() throws IOException {
+    outbound.flip();
+    ctlChannel.write(outbound);
+    outbound.compact();
+    int ops = ctlKey.interestOps();
+    if (outbound.position() > 0) {
+      ctlKey.interestOps(ops | SelectionKey.OP_WRITE);
+    } else {
+      ctlKey.interestOps(ops & ~SelectionKey.OP_WRITE);
+    }
+  }
+
+  /** Stops handling control messages until {@link #resumeControl()}. */
+  private void pauseControl() {
+    controlPaused = true;
+    ctlKey.interestOps(ctlKey.interestOps() & ~SelectionKey.OP_READ);
+  }
+
+  private void resumeControl() {
+    controlPaused = false;
+    if (state == STATE_DONE) {
+      return;
+    }
+    ctlKey.interestOps(ctlKey.interestOps() | SelectionKey.OP_READ);
+    try {
+      processInbound();
+    } catch (IOException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      fail("protocolError: " + e);
+    }
+  }
+
+  // The protocol.
+
+  private void dispatch(byte type, byte[] body, int offset, int length)
+      throws IOException {
+    if (type == NdtTests.MSG_ERROR) {
+      fail("ERROR MSG: " + new String(body, offset, length));
+      return;
+    }
+    switch (state) {
+      case STATE_QUEUE:
+        expect(type, NdtTests.SRV_QUEUE, "loggingWrongMessage");
+        int wait = Integer.parseInt(new String(body, offset, length));
+        if (wait == 0) {
+          uiServices.onLoginSent();
+          state = STATE_VERSION;
+        } else if (wait == 9988) {
+          fail(queued ? "serverFault" : "serverBusy");
+        } else if (wait == 9999) {
+          fail("serverBusy60s");
+        } else if (wait == 9990) {
+          // The server is checking that the client is still alive.
+          send(NdtTests.MSG_WAITING, new byte[] { tests });
+        } else {
+          queued = true;
+        }
+        break;
+      case STATE_VERSION:
+        expect(type, NdtTests.MSG_LOGIN, "versionWrongMessage");
+        if (length == 0 || body[offset] != 'v') {
+          fail("incompatibleVersion");
+          return;
+        }
+        state = STATE_SUITE;
+        break;
+      case STATE_SUITE:
+        expect(type, NdtTests.MSG_LOGIN, "testsuiteWrongMessage");
+        uiServices.incrementProgress();
+        StringTokenizer tokenizer =
+            new StringTokenizer(new String(body, offset, length), " ");
+        suite = new int[tokenizer.countTokens()];
+        for (int i = 0; i < suite.length; ++i) {
+          suite[i] = Integer.parseInt(tokenizer.nextToken());
+        }
+        state = STATE_TEST;
+        nextTest();
+        break;
+      case STATE_TEST:
+        testMessage(type, body, offset, length);
+        break;
+      case STATE_RESULTS:
+        if (type == NdtTests.MSG_LOGOUT) {
+          complete();
+          return;
+        }
+        expect(type, NdtTests.MSG_RESULTS, "resultsWrongMessage");
+        web100.feed(body, offset, length);
+        break;
+    }
+  }
+
+  /** Moves on to the next test in the suite, or to the results. */
+  private void nextTest() throws IOException {
+    if (uiServices.wantToStop()) {
+      send(NdtTests.MSG_ERROR, "Manually stopped by the user".getBytes());
+      fail("stopped");
+      return;
+    }
+    if (suiteIndex == suite.length) {
+      state = STATE_RESULTS;
+      return;
+    }
+    testId = suite[suiteIndex++];
+    step = 0;
+    if (testId != NdtTests.TEST_MID && testId != NdtTests.TEST_C2S
+        && testId != NdtTests.TEST_S2C && testId != NdtTests.TEST_SFW
+        && testId != NdtTests.TEST_META) {
+      fail("unknownID");
+    }
+  }
+
+  /** Handles a control message that belongs to the current test. */
+  private void testMessage(byte type, byte[] body, int offset, int length)
+      throws IOException {
+    String wrongMessage = wrongMessage(testId);
+    switch (step) {
+      case 0:
+        expect(type, NdtTests.TEST_PREPARE, wrongMessage);
+        prepare(new String(body, offset, length));
+        break;
+      case 1:
+        if (testId == NdtTests.TEST_MID) {
+          // The middlebox test has no TEST_START; the data phase is over.
+          expect(type, NdtTests.TEST_MSG, wrongMessage);
+          send(NdtTests.TEST_MSG, Double.toString(midspd * 1000).getBytes());
+          step = 3;
+          return;
+        }
+        expect(type, NdtTests.TEST_START, wrongMessage);
+        begin();
+        break;
+      case 2:
+        expect(type, NdtTests.TEST_MSG, wrongMessage);
+        if (testId == NdtTests.TEST_C2S) {
+          // The server's figure, as in NdtTests; c2sspd only counts the
+          // bytes handed to the kernel.
+          sc2sspd = Double.parseDouble(new String(body, offset, length))
+              / 1000.0;
+          uiServices.setVariable("pub_c2sspd", sc2sspd);
+        } else if (testId == NdtTests.TEST_S2C) {
+          send(NdtTests.TEST_MSG, Double.toString(s2cspd * 1000).getBytes());
+          uiServices.setVariable("pub_s2cspd", s2cspd);
+          result.s2c = new NdtResult();
+          snapshot = web100.snapshot(result.s2c);
+        } else if (testId == NdtTests.TEST_SFW) {
+          c2sResult = Integer.parseInt(new String(body, offset, length));
+        }
+        break;
+      case 3:
+        if (testId == NdtTests.TEST_S2C && type == NdtTests.TEST_MSG) {
+          snapshot.feed(body, offset, length);
+          return;
+        }
+        expect(type, NdtTests.TEST_FINALIZE, wrongMessage);
+        if (testId == NdtTests.TEST_S2C) {
+          snapshot.finish();
+        }
+        uiServices.incrementProgress();
+        if (testId == NdtTests.TEST_SFW && !firewall.isDone()) {
+          // Finish once the server's connection attempt is settled.
+          pauseControl();
+          firewall.finalized = true;
+          return;
+        }
+        nextTest();
+        return;
+    }
+    step++;
+  }
+
+  /** Handles the TEST_PREPARE message of the current test. */
+  private void prepare(String body) throws IOException {
+    switch (testId) {
+      case NdtTests.TEST_MID:
+        phase = new DataPhase("mid", false, 1, MID_DURATION);
+        phase.connect(Integer.parseInt(body));
+        // There is no TEST_START; the server sends as soon as we connect.
+        pauseControl();
+        phase.begin();
+        break;
+      case NdtTests.TEST_C2S:
+        phase = new DataPhase("c2s", true, streams, C2S_DURATION);
+        phase.connect(Integer.parseInt(body));
+        break;
+      case NdtTests.TEST_S2C:
+        phase = new DataPhase("s2c", false, streams, S2C_DURATION);
+        phase.connect(Integer.parseInt(body));
+        break;
+      case NdtTests.TEST_SFW:
+        int k = body.indexOf(' ');
+        firewall = new FirewallTest(Integer.parseInt(body.substring(0, k)),
+            Integer.parseInt(body.substring(k + 1)));
+        send(NdtTests.TEST_MSG,
+            Integer.toString(firewall.listen()).getBytes());
+        break;
+    }
+  }
+
+  /** Handles the TEST_START message of the current test. */
+  private void begin() throws IOException {
+    switch (testId) {
+      case NdtTests.TEST_C2S:
+      case NdtTests.TEST_S2C:
+        pauseControl();
+        phase.begin();
+        break;
+      case NdtTests.TEST_SFW:
+        firewall.connect();
+        break;
+      case NdtTests.TEST_META:
+        send(NdtTests.TEST_MSG, (NdtTests.META_CLIENT_OS + ":"
+            + System.getProperty("os.name")).getBytes());
+        send(NdtTests.TEST_MSG, (NdtTests.META_BROWSER_OS + ":na").getBytes());
+        send(NdtTests.TEST_MSG, (NdtTests.META_CLIENT_KERNEL_VERSION + ":"
+            + System.getProperty("os.version")).getBytes());
+        send(NdtTests.TEST_MSG, (NdtTests.META_CLIENT_VERSION + ":"
+            + NdtTests.VERSION).getBytes());
+        send(NdtTests.TEST_MSG, (NdtTests.META_CLIENT_APPLICATION + ":"
+            + uiServices.getClientApp()).getBytes());
+        send(NdtTests.TEST_MSG, new byte[0]);
+        step = 2;
+        break;
+    }
+  }
+
+  /** Called when the current test's data phase ends. */
+  private void phaseEnded(DataPhase ended) {
+    if (ended.elapsed == 0) {
+      ended.elapsed = 1;
+    }
+    double[] streamSpd = new double[ended.bytes.length];
+    long total = 0;
+    for (int i = 0; i < ended.bytes.length; ++i) {
+      total += ended.bytes[i];
+      streamSpd[i] = ((8.0 * ended.bytes[i]) / 1000) / ended.elapsed;
+    }
+    double spd = ((8.0 * total) / 1000) / ended.elapsed;
+    if (testId == NdtTests.TEST_MID) {
+      midspd = spd;
+    } else {
+      if (testId == NdtTests.TEST_C2S) {
+        c2sspd = spd;
+      } else {
+        s2cspd = spd;
+      }
+      uiServices.onThroughputSamples(ended.name, sampleInterval,
+          ended.sampler.getSamples());
+      uiServices.onDataPhaseEnd(ended.name, (int) ended.elapsed,
+          ended.sampler.getStopReason());
+      uiServices.onStreamThroughput(ended.name, spd, streamSpd);
+      if (ended.readStats != null) {
+        ReceiveStats reads = new ReceiveStats();
+        for (ReceiveStats stream : ended.readStats) {
+          reads.merge(stream);
+        }
+        uiServices.onReceiveStats(ended.name, reads);
+      }
+      if (ended.probe != null) {
+        uiServices.onLatency(ended.name, ended.probe.getConnectTimes());
+      }
+    }
+    phase = null;
+    resumeControl();
+  }
+
+  /** The message bundle key for an unexpected message during a test. */
+  private static String wrongMessage(int testId) {
+    switch (testId) {
+      case NdtTests.TEST_MID:
+        return "mboxWrongMessage";
+      case NdtTests.TEST_C2S:
+        return "outboundWrongMessage";
+      case NdtTests.TEST_S2C:
+        return "inboundWrongMessage";
+      case NdtTests.TEST_SFW:
+        return "sfwWrongMessage";
+      default:
+        return "metaWrongMessage";
+    }
+  }
+
+  private void expect(byte type, byte expected, String error)
+      throws IOException {
+    if (type != expected) {
+      throw new ProtocolException(error);
+    }
+  }
+
+  // Completion.
+
+  /** Ends the data phase, if one is running, then gives up. */
+  private void timeLimitReached() {
+    if (state == STATE_DONE) {
+      return;
+    }
+    if (phase != null && phase.running) {
+      phase.sampler.stop(ThroughputSampler.STOP_DEADLINE);
+      phase.end();
+    }
+    fail("timeLimitReached");
+  }
+
+  private void complete() {
+    web100.finish();
+    close();
+    uiServices.setVariable("pub_isReady", "yes");
+    uiServices.onEndTest();
+    future.set(result, null);
+  }
+
+  private void fail(IOException e) {
+    if (e instanceof ProtocolException) {
+      fail(e.getMessage());
+    } else {
+      fail("protocolError: " + e);
+    }
+  }
+
+  private void fail(String error) {
+    if (state == STATE_DONE) {
+      return;
+    }
+    close();
+    uiServices.logError(error);
+    uiServices.onFailure(error);
+    uiServices.onEndTest();
+    future.set(null, new IOException(error));
+  }
+
+  /** Closes every channel of the measurement. */
+  private void close() {
+    state = STATE_DONE;
+    if (recorder != null) {
+      try {
+        recorder.flush();
+      } catch (IOException e) {
+        uiServices.logError("Could not write the transcript: " + e);
+      }
+      recorder = null;
+    }
+    if (deadline != null) {
+      deadline.cancel();
+      deadline = null;
+    }
+    if (attemptTimer != null) {
+      attemptTimer.cancel();
+      attemptTimer = null;
+    }
+    for (ControlAttempt attempt : attempts) {
+      closeQuietly(attempt.channel);
+    }
+    closeQuietly(ctlChannel);
+    if (phase != null) {
+      phase.abort();
+    }
+    if (firewall != null) {
+      firewall.close();
+    }
+  }
+
+  private static void closeQuietly(SelectableChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+
+  /** One of the connections raced for the control channel. */
+  private class ControlAttempt implements NdtReactor.Handler {
+    final InetAddress address;
+    SocketChannel channel;
+    long startNanos;
+    boolean failed;
+
+    ControlAttempt(InetAddress address) {
+      this.address = address;
+    }
+
+    void start() {
+      startNanos = System.nanoTime();
+      try {
+        channel = openChannel(address, NdtTests.CONTROL_PORT,
+            SocketTuning.CONTROL);
+        reactor.register(channel, SelectionKey.OP_CONNECT, this);
+      } catch (IOException e) {
+        closeQuietly(channel);
+        failed = true;
+        attemptFailed();
+      }
+    }
+
+    public void ready(SelectionKey key) {
+      if (key == ctlKey) {
+        controlReady(key);
+        return;
+      }
+      try {
+        if (!channel.finishConnect()) {
+          return;
+        }
+      } catch (IOException e) {
+        closeQuietly(channel);
+        failed = true;
+        attemptFailed();
+        return;
+      }
+      try {
+        attemptWon(this, key);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  /** An unexpected control message; the text is a message bundle key. */
+  private static class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ProtocolException(String error) {
+      super(error);
+    }
+  }
+
+  /**
+   * The data connections of the middlebox, C2S or S2C test.
+   */
+  private class DataPhase {
+    final String name;
+    final boolean upload;
+    final long durationMillis;
+    final SocketChannel[] channels;
+    final SelectionKey[] keys;
+    final long[] bytes;
+    final ThroughputSampler sampler;
+    /** The reads of each connection of the S2C test; null for the others. */
+    final ReceiveStats[] readStats;
+    /** Measures the loaded round-trip time, if latency probes are on. */
+    LatencyProbe probe;
+    NdtReactor.Timer timer;
+    boolean running, ended;
+    int open;
+    long startMillis, elapsed;
+
+    DataPhase(String name, boolean upload, int streams, long durationMillis) {
+      this.name = name;
+      this.upload = upload;
+      this.durationMillis = durationMillis;
+      channels = new SocketChannel[streams];
+      keys = new SelectionKey[streams];
+      bytes = new long[streams];
+      sampler = new ThroughputSampler(sampleInterval, durationMillis);
+      readStats = name.equals("s2c") ? new ReceiveStats[streams] : null;
+      if (!name.equals("mid")) {
+        if (convergenceThreshold > 0) {
+          sampler.setConvergence(convergenceWindow, convergenceThreshold,
+              NdtTests.MIN_ADAPTIVE_DURATION);
+        }
+        sampler.setByteBudget(byteBudget);
+      }
+    }
+
+    void connect(int port) throws IOException {
+      ByteBuffer payload = ChannelSender.payload();
+      for (int i = 0; i < channels.length; ++i) {
+        channels[i] = openChannel(port, name.equals("mid")
+            ? SocketTuning.CONTROL
+            : upload ? SocketTuning.UPLOAD : SocketTuning.DOWNLOAD);
+        keys[i] = reactor.register(channels[i], SelectionKey.OP_CONNECT,
+            new Stream(i, payload));
+      }
+      open = channels.length;
+    }
+
+    /** Starts the clock; called when the server says to go. */
+    void begin() {
+      running = true;
+      startMillis = System.currentTimeMillis();
+      sampler.start();
+      if (readStats != null) {
+        long now = System.nanoTime();
+        for (int i = 0; i < readStats.length; ++i) {
+          readStats[i] = new ReceiveStats();
+          readStats[i].start(now);
+        }
+      }
+      timer = reactor.schedule(durationMillis, new Runnable() {
+        public void run() {
+          end();
+        }
+      });
+      if (latencyProbes && !name.equals("mid")) {
+        probe = newLatencyProbe();
+        probe.setProbes(Integer.MAX_VALUE);
+        probe.setInterval(NdtTests.LOADED_PROBE_INTERVAL);
+        probe.setTimeout((int) durationMillis);
+        try {
+          probe.start();
+        } catch (IOException e) {
+          probe = null;
+        }
+      }
+      if (upload) {
+        for (SelectionKey key : keys) {
+          if (key.isValid() && ((SocketChannel) key.channel()).isConnected()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+          }
+        }
+      }
+    }
+
+    void end() {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      if (timer != null) {
+        timer.cancel();
+      }
+      sampler.finish();
+      elapsed = System.currentTimeMillis() - startMillis;
+      close();
+      if (probe != null) {
+        probe.stop();
+      }
+      phaseEnded(this);
+    }
+
+    /** Ends the phase without reporting it. */
+    void abort() {
+      ended = true;
+      if (timer != null) {
+        timer.cancel();
+      }
+      if (probe != null) {
+        probe.stop();
+      }
+      close();
+    }
+
+    void close() {
+      for (SocketChannel channel : channels) {
+        closeQuietly(channel);
+      }
+    }
+
+    /** One data connection; attached to its selection key. */
+    private class Stream implements NdtReactor.Handler {
+      final int index;
+      final ByteBuffer view;
+
+      Stream(int index, ByteBuffer payload) {
+        this.index = index;
+        view = payload.duplicate();
+        view.clear();
+        view.limit(ChannelSender.MIN_WRITE_SIZE);
+      }
+
+      public void ready(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+          if (key.isConnectable()) {
+            channel.finishConnect();
+            if (upload) {
+              view.limit(ChannelSender.writeSize(channel));
+              key.interestOps(running ? SelectionKey.OP_WRITE : 0);
+            } else {
+              key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+          }
+          if (upload) {
+            write(channel);
+          } else {
+            read(channel, key);
+          }
+        } catch (IOException e) {
+          if (!running) {
+            fail("serverBusy15s: " + e);
+            return;
+          }
+          // Same as the blocking loops: an error ends this stream.
+          key.cancel();
+          closeQuietly(channel);
+          streamClosed();
+        }
+        if (running && sampler.isStopped()) {
+          end();
+        }
+      }
+
+      private void write(SocketChannel channel) throws IOException {
+        int writes = 0;
+        int outlth;
+        long sent = 0;
+        do {
+          outlth = channel.write(view);
+          sent += outlth;
+          if (!view.hasRemaining()) {
+            view.rewind();
+          }
+        } while (outlth > 0 && view.position() == 0
+            && ++writes < MAX_WRITES_PER_WAKEUP);
+        bytes[index] += sent;
+        sampler.add(sent);
+      }
+
+      private void read(SocketChannel channel, SelectionKey key)
+          throws IOException {
+        ByteBuffer buffer = reactor.readBuffer();
+        ReceiveStats stats = running && readStats != null
+            ? readStats[index] : null;
+        long now = System.nanoTime();
+        long received = 0;
+        int inlth;
+        do {
+          inlth = channel.read(buffer);
+          if (inlth > 0) {
+            received += inlth;
+            buffer.clear();
+            if (stats != null) {
+              stats.add(inlth, now);
+            }
+          }
+        } while (inlth == NdtReactor.READ_BUFFER_SIZE);
+        bytes[index] += received;
+        if (running) {
+          sampler.add(received, now);
+        }
+        if (inlth < 0) {
+          key.cancel();
+          closeQuietly(channel);
+          streamClosed();
+        }
+      }
+
+      private void streamClosed() {
+        if (--open == 0 && running) {
+          end();
+        }
+      }
+    }
+  }
+
+  /**
+   * The simple firewall test: a listener the server tries to reach, and a
+   * connection the client makes to the server.
+   */
+  private class FirewallTest {
+    final int serverPort;
+    final int testTime;
+    ServerSocketChannel listener;
+    SocketChannel incoming, outgoing;
+    NdtReactor.Timer timer;
+    final ByteBuffer message = ByteBuffer.allocate(64);
+    boolean done, finalized;
+
+    FirewallTest(int serverPort, int testTime) {
+      this.serverPort = serverPort;
+      this.testTime = testTime;
+    }
+
+    /** Opens the listener; returns its port. */
+    int listen() throws IOException {
+      listener = ServerSocketChannel.open();
+      listener.socket().bind(new InetSocketAddress(0));
+      listener.configureBlocking(false);
+      reactor.register(listener, SelectionKey.OP_ACCEPT,
+          new NdtReactor.Handler() {
+            public void ready(SelectionKey key) {
+              accepted();
+            }
+          });
+      timer = reactor.schedule(testTime * 1000L, new Runnable() {
+        public void run() {
+          finish(incoming == null ? NdtTests.SFW_POSSIBLE
+              : NdtTests.SFW_UNKNOWN);
+        }
+      });
+      return listener.socket().getLocalPort();
+    }
+
+    /** Sends the test message to the server's firewall test port. */
+    void connect() throws IOException {
+      final ByteBuffer hello = ByteBuffer.wrap(new byte[] {
+          NdtTests.TEST_MSG, 0, 20, 'S', 'i', 'm', 'p', 'l', 'e', ' ', 'f',
+          'i', 'r', 'e', 'w', 'a', 'l', 'l', ' ', 't', 'e', 's', 't' });
+      try {
+        outgoing = openChannel(serverPort, SocketTuning.CONTROL);
+      } catch (IOException e) {
+        // The server records the failure; nothing to do here.
+        return;
+      }
+      reactor.register(outgoing, SelectionKey.OP_CONNECT,
+          new NdtReactor.Handler() {
+            public void ready(SelectionKey key) {
+              try {
+                if (key.isConnectable()) {
+                  outgoing.finishConnect();
+                  key.interestOps(SelectionKey.OP_WRITE);
+                }
+                if (key.isWritable()) {
+                  outgoing.write(hello);
+                  if (!hello.hasRemaining()) {
+                    closeQuietly(outgoing);
+                  }
+                }
+              } catch (IOException e) {
+                closeQuietly(outgoing);
+              }
+            }
+          });
+    }
+
+    private void accepted() {
+      try {
+        incoming = listener.accept();
+        if (incoming == null) {
+          return;
+        }
+        closeQuietly(listener);
+        incoming.configureBlocking(false);
+        reactor.register(incoming, SelectionKey.OP_READ,
+            new NdtReactor.Handler() {
+              public void ready(SelectionKey key) {
+                readMessage();
+              }
+            });
+      } catch (IOException e) {
+        finish(NdtTests.SFW_UNKNOWN);
+      }
+    }
+
+    private void readMessage() {
+      try {
+        int n = incoming.read(message);
+        if (message.position() >= 3) {
+          int length = ((message.get(1) & 0xff) << 8) | (message.get(2) & 0xff);
+          if (message.get(0) != NdtTests.TEST_MSG || length > 61) {
+            finish(NdtTests.SFW_UNKNOWN);
+          } else if (message.position() >= 3 + length) {
+            String text = new String(message.array(), 3, length);
+            finish(text.equals("Simple firewall test")
+                ? NdtTests.SFW_NOFIREWALL : NdtTests.SFW_UNKNOWN);
+            return;
+          }
+        }
+        if (n < 0) {
+          finish(NdtTests.SFW_UNKNOWN);
+        }
+      } catch (IOException e) {
+        finish(NdtTests.SFW_UNKNOWN);
+      }
+    }
+
+    boolean isDone() {
+      return done;
+    }
+
+    private void finish(int outcome) {
+      if (done) {
+        return;
+      }
+      done = true;
+      s2cResult = outcome;
+      // The outgoing connection closes itself once its message is out.
+      if (timer != null) {
+        timer.cancel();
+      }
+      closeQuietly(listener);
+      closeQuietly(incoming);
+      if (finalized) {
+        controlPaused = false;
+        try {
+          nextTest();
+        } catch (IOException e) {
+          fail(e);
+          return;
+        }
+        resumeControl();
+      }
+    }
+
+    void close() {
+      if (timer != null) {
+        timer.cancel();
+      }
+      closeQuietly(listener);
+      closeQuietly(incoming);
+      closeQuietly(outgoing);
+    }
+  }
+}
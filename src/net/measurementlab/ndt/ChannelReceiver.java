@@ -0,0 +1,117 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Drains data connections through {@link SocketChannel}s.
+ *
+ * This is the alternative to the blocking {@link java.io.InputStream} loop in
+ * the S2C test. Each wakeup empties the ready sockets into one large direct
+ * buffer, so the number of system calls and clock reads per second stays low
+ * even on fast links. A single thread can drain all the connections of a
+ * multi-stream test.
+ */
+class ChannelReceiver {
+  /** Size of the direct buffer that every read lands in. */
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  /** Receives the data; the contents are never looked at. */
+  private final ByteBuffer buffer;
+
+  /** Bytes received over each channel by the last {@link #receive} call. */
+  private long[] bytes = new long[0];
+
+  ChannelReceiver() {
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  /**
+   * Reads from the channels until the server closes all of them, the time
+   * runs out, or the sampler says to stop.
+   *
+   * @param channels connected channels; they are switched to non-blocking mode
+   * @param durationMillis the receive loop stops after this many milliseconds
+   * @param sampler receives the bytes read at each wakeup; it must already be
+   *     started
+   * @param stats receives the reads of all the channels; the reads of one
+   *     wakeup share its time
+   * @return the total number of bytes received
+   */
+  long receive(SocketChannel[] channels, long durationMillis,
+      ThroughputSampler sampler, ReceiveStats stats) throws IOException {
+    bytes = new long[channels.length];
+    ReceiveStats[] channelStats = new ReceiveStats[channels.length];
+    long total = 0;
+    Selector selector = Selector.open();
+    try {
+      long start = System.nanoTime();
+      for (int i = 0; i < channels.length; ++i) {
+        channels[i].configureBlocking(false);
+        channels[i].register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+        channelStats[i] = new ReceiveStats();
+        channelStats[i].start(start);
+      }
+      int open = channels.length;
+
+      long deadline = start + durationMillis * 1000000L;
+      long remaining = durationMillis * 1000000L;
+      while (remaining > 0 && open > 0 && !sampler.isStopped()) {
+        if (selector.select(Math.max(1, remaining / 1000000L)) == 0) {
+          remaining = deadline - System.nanoTime();
+          continue;
+        }
+        long now = System.nanoTime();
+        long wakeupBytes = 0;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          int index = ((Integer) key.attachment()).intValue();
+          SocketChannel channel = (SocketChannel) key.channel();
+
+          // A short read means the socket is drained; go back to the selector.
+          int inlth;
+          do {
+            try {
+              inlth = channel.read(buffer);
+            } catch (IOException e) {
+              // Same as the stream loop: a reset ends this stream.
+              inlth = -1;
+            }
+            if (inlth > 0) {
+              bytes[index] += inlth;
+              wakeupBytes += inlth;
+              channelStats[index].add(inlth, now);
+              buffer.clear();
+            }
+          } while (inlth == BUFFER_SIZE);
+          if (inlth < 0) {
+            key.cancel();
+            open--;
+          }
+        }
+        total += wakeupBytes;
+        sampler.add(wakeupBytes, now);
+        remaining = deadline - now;
+      }
+    } finally {
+      selector.close();
+      for (ReceiveStats channel : channelStats) {
+        if (channel != null) {
+          stats.merge(channel);
+        }
+      }
+    }
+    return total;
+  }
+
+  /** The bytes received over the i-th channel by the last {@link #receive}. */
+  long getBytes(int i) {
+    return bytes[i];
+  }
+}
@@ -0,0 +1,164 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Pumps C2S test data through {@link SocketChannel}s.
+ *
+ * This is the alternative to the blocking {@link java.io.OutputStream} loop in
+ * the C2S test. All the tests in the process write out of one pre-filled
+ * direct buffer, so a test allocates nothing while it runs. The write size
+ * follows the socket's send buffer, so each write hands the kernel as much
+ * data as it can take in one go.
+ */
+class ChannelSender {
+  /** Upper bound on the size of a single write. */
+  static final int MAX_WRITE_SIZE = 1024 * 1024;
+
+  /** Lower bound on the size of a single write. */
+  static final int MIN_WRITE_SIZE = 8192;
+
+  /** Full-size writes to one channel before going back to the selector. */
+  private static final int MAX_WRITES_PER_WAKEUP = 8;
+
+  /** The test data; filled once and never modified afterwards. */
+  private static ByteBuffer payload;
+
+  /** Bytes sent over each channel by the last {@link #send} call. */
+  private long[] bytes = new long[0];
+
+  /** The write size used for each channel by the last {@link #send} call. */
+  private int[] writeSizes = new int[0];
+
+  /**
+   * The shared test payload.
+   *
+   * The contents follow the pattern used by the stream sender: the characters
+   * '0' through 'y', repeated.
+   */
+  static synchronized ByteBuffer payload() {
+    if (payload == null) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_WRITE_SIZE);
+      byte c = '0';
+      while (buffer.hasRemaining()) {
+        if (c == 'z') {
+          c = '0';
+        }
+        buffer.put(c++);
+      }
+      buffer.clear();
+      payload = buffer;
+    }
+    return payload;
+  }
+
+  /**
+   * Picks the write size for a channel from its socket's send buffer.
+   */
+  static int writeSize(SocketChannel channel) throws IOException {
+    int size = channel.socket().getSendBufferSize();
+    return Math.max(MIN_WRITE_SIZE, Math.min(MAX_WRITE_SIZE, size));
+  }
+
+  /**
+   * Writes to the channels until the time runs out, the server closes all of
+   * them, or the sampler says to stop.
+   *
+   * @param channels connected channels; they are switched to non-blocking mode
+   * @param durationMillis the send loop stops after this many milliseconds
+   * @param sampler receives the bytes written at each wakeup; it must already
+   *     be started
+   * @return the total number of bytes sent
+   */
+  long send(SocketChannel[] channels, long durationMillis,
+      ThroughputSampler sampler) throws IOException {
+    bytes = new long[channels.length];
+    writeSizes = new int[channels.length];
+    long total = 0;
+    ByteBuffer source = payload();
+    Selector selector = Selector.open();
+    try {
+      for (int i = 0; i < channels.length; ++i) {
+        writeSizes[i] = writeSize(channels[i]);
+        channels[i].configureBlocking(false);
+        channels[i].register(selector, SelectionKey.OP_WRITE,
+            new Stream(i, source, writeSizes[i]));
+      }
+      int open = channels.length;
+
+      long deadline = System.nanoTime() + durationMillis * 1000000L;
+      long remaining = durationMillis * 1000000L;
+      while (remaining > 0 && open > 0 && !sampler.isStopped()) {
+        if (selector.select(Math.max(1, remaining / 1000000L)) == 0) {
+          remaining = deadline - System.nanoTime();
+          continue;
+        }
+        long wakeupBytes = 0;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          SocketChannel channel = (SocketChannel) key.channel();
+          Stream stream = (Stream) key.attachment();
+
+          // A partial write means the socket buffer is full.
+          try {
+            int writes = 0;
+            int outlth;
+            do {
+              outlth = channel.write(stream.view);
+              bytes[stream.index] += outlth;
+              wakeupBytes += outlth;
+              if (!stream.view.hasRemaining()) {
+                stream.view.rewind();
+              }
+            } while (outlth > 0 && stream.view.position() == 0
+                && ++writes < MAX_WRITES_PER_WAKEUP);
+          } catch (IOException e) {
+            // The server closed this stream; the others carry on.
+            key.cancel();
+            open--;
+          }
+        }
+        total += wakeupBytes;
+        long now = System.nanoTime();
+        sampler.add(wakeupBytes, now);
+        remaining = deadline - now;
+      }
+    } finally {
+      selector.close();
+    }
+    return total;
+  }
+
+  /** The bytes sent over the i-th channel by the last {@link #send} call. */
+  long getBytes(int i) {
+    return bytes[i];
+  }
+
+  /** The write size used on the i-th channel by the last {@link #send}. */
+  int getWriteSize(int i) {
+    return writeSizes[i];
+  }
+
+  /** Per-channel state, attached to the channel's selection key. */
+  private static class Stream {
+    /** The channel's position in the array passed to {@link #send}. */
+    final int index;
+
+    /** The channel's own position and limit over the shared payload. */
+    final ByteBuffer view;
+
+    Stream(int index, ByteBuffer payload, int writeSize) {
+      this.index = index;
+      view = payload.duplicate();
+      view.clear();
+      view.limit(writeSize);
+    }
+  }
+}
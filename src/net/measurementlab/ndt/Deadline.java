@@ -0,0 +1,141 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channel;
+import java.util.ArrayList;
+
+/**
+ * Holds a blocking measurement to a time limit.
+ *
+ * Blocking reads, writes, accepts and selects cannot be given a deadline of
+ * their own, but they all return as soon as their socket is closed. So the
+ * measurement registers every socket and channel it opens here. When the time
+ * runs out, the running data phase's sampler is stopped with the reason
+ * "deadline" and everything registered is closed; the loops end with what
+ * they measured so far, and the measurement fails at its next control read.
+ */
+class Deadline {
+  private final long end;
+  /** Sockets, server sockets and channels to close when the time runs out. */
+  private final ArrayList<Object> resources = new ArrayList<Object>();
+  private ThroughputSampler sampler;
+  private boolean expired, cancelled;
+  private final NdtReactor reactor;
+  /** The timer that expires the deadline; only used on the I/O thread. */
+  private NdtReactor.Timer timer;
+
+  /**
+   * Starts the clock.
+   *
+   * @param reactor its I/O thread does the closing
+   * @param millis the time limit, in milliseconds
+   */
+  Deadline(final NdtReactor reactor, final long millis) throws IOException {
+    this.reactor = reactor;
+    end = System.nanoTime() + millis * 1000000L;
+    reactor.execute(new Runnable() {
+      public void run() {
+        if (isCancelled()) {
+          return;
+        }
+        timer = reactor.schedule(Math.max(0, remainingMillis()),
+            new Runnable() {
+              public void run() {
+                timer = null;
+                expire();
+              }
+            });
+      }
+    });
+  }
+
+  /**
+   * Closes a {@link Socket}, {@link ServerSocket} or {@link Channel} when the
+   * time runs out; right away if it already has.
+   */
+  synchronized void add(Object resource) {
+    if (expired) {
+      close(resource);
+    } else if (!cancelled) {
+      resources.add(resource);
+    }
+  }
+
+  /** Stops the sampler of the data phase that is about to run, if time is up. */
+  synchronized void setSampler(ThroughputSampler sampler) {
+    this.sampler = sampler;
+    if (expired) {
+      sampler.stop(ThroughputSampler.STOP_DEADLINE);
+    }
+  }
+
+  /** True once the time has run out. */
+  synchronized boolean hasExpired() {
+    return expired;
+  }
+
+  /** The time left, in milliseconds; negative once the time has run out. */
+  long remainingMillis() {
+    return (end - System.nanoTime()) / 1000000L;
+  }
+
+  /** Stops the clock; nothing is closed after this. */
+  void cancel() {
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      resources.clear();
+      sampler = null;
+    }
+    // Frees the reactor of the timer rather than leaving it to the limit.
+    try {
+      reactor.execute(new Runnable() {
+        public void run() {
+          if (timer != null) {
+            timer.cancel();
+            timer = null;
+          }
+        }
+      });
+    } catch (IOException e) {
+      // Without a reactor thread, there is no timer left to cancel.
+    }
+  }
+
+  private synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  private synchronized void expire() {
+    if (cancelled) {
+      return;
+    }
+    expired = true;
+    if (sampler != null) {
+      sampler.stop(ThroughputSampler.STOP_DEADLINE);
+    }
+    for (Object resource : resources) {
+      close(resource);
+    }
+    resources.clear();
+  }
+
+  private static void close(Object resource) {
+    try {
+      // Socket and ServerSocket only implement Closeable from Java 7 on.
+      if (resource instanceof Socket) {
+        ((Socket) resource).close();
+      } else if (resource instanceof ServerSocket) {
+        ((ServerSocket) resource).close();
+      } else if (resource instanceof Channel) {
+        ((Channel) resource).close();
+      }
+    } catch (IOException e) {
+      // Closed anyway, as far as the measurement is concerned.
+    }
+  }
+}
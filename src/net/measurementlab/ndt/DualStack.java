@@ -0,0 +1,83 @@
+package net.measurementlab.ndt;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Chooses the addresses raced by the control connection on a dual-stack
+ * server.
+ *
+ * The control connection is made in the manner of "Happy Eyeballs" (RFC
+ * 8305): the client connects to the server's IPv6 address and, if that has
+ * neither succeeded nor failed within {@link #ATTEMPT_DELAY} ms, to its IPv4
+ * address as well. The first connection to complete wins, the other one is
+ * dropped, and the rest of the run uses the winner's address. A broken
+ * address family then costs a quarter of a second instead of a connect
+ * timeout.
+ */
+final class DualStack {
+  /** How long an attempt has before the next address is tried, in ms. */
+  static final int ATTEMPT_DELAY = 250;
+
+  /** The losing attempt failed before the winner connected. */
+  static final String LOSER_FAILED = "failed";
+  /** The losing attempt was still connecting when the winner connected. */
+  static final String LOSER_PENDING = "pending";
+  /** The winner connected before the losing attempt was started. */
+  static final String LOSER_UNSTARTED = "unstarted";
+
+  private DualStack() {
+  }
+
+  /**
+   * The addresses to race, in the order they are tried: the first IPv6 and
+   * the first IPv4 address found under the names, whichever exist.
+   *
+   * @param host the server's hostname
+   * @param alternateHost another name for the server, e.g. the one M-Lab NS
+   *     gives for the other address family; may be null
+   * @throws UnknownHostException if neither name resolves
+   */
+  static InetAddress[] candidates(String host, String alternateHost)
+      throws UnknownHostException {
+    InetAddress ipv6 = null;
+    InetAddress ipv4 = null;
+    UnknownHostException error = null;
+    for (String name : new String[] { host, alternateHost }) {
+      if (name == null) {
+        continue;
+      }
+      try {
+        for (InetAddress address : InetAddress.getAllByName(name)) {
+          if (address instanceof Inet6Address) {
+            if (ipv6 == null) {
+              ipv6 = address;
+            }
+          } else if (ipv4 == null) {
+            ipv4 = address;
+          }
+        }
+      } catch (UnknownHostException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    if (ipv6 == null && ipv4 == null) {
+      throw error != null ? error : new UnknownHostException(host);
+    }
+    if (ipv6 == null) {
+      return new InetAddress[] { ipv4 };
+    }
+    if (ipv4 == null) {
+      return new InetAddress[] { ipv6 };
+    }
+    return new InetAddress[] { ipv6, ipv4 };
+  }
+
+  /** "ipv6" or "ipv4", as M-Lab NS names the address families. */
+  static String family(InetAddress address) {
+    return address instanceof Inet6Address ? "ipv6" : "ipv4";
+  }
+}
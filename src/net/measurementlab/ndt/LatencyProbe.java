@@ -0,0 +1,347 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the round-trip time to an NDT server in well under a second.
+ *
+ * Each probe opens a connection to the server's control port and times two
+ * exchanges: the TCP handshake, and the server's answer to the client's
+ * MSG_LOGIN (the kickoff string). The connection is then closed, so the
+ * server drops the client before any test starts. Probes run one after the
+ * other, never in parallel, so they do not queue behind each other.
+ *
+ * With {@link #setLoginExchange(boolean) the login exchange} turned off,
+ * only the handshake is timed. The handshake is answered by the server's
+ * kernel, so this is the probe to use while the server is busy running a
+ * test for the same client.
+ *
+ * Like {@link AsyncNdtClient}, the probe runs on a {@link NdtReactor} and has
+ * no thread of its own.
+ */
+public class LatencyProbe {
+  /** Number of probes made by default. */
+  public static final int DEFAULT_PROBES = 5;
+
+  /** Default limit on the time taken by all the probes, in milliseconds. */
+  public static final int DEFAULT_TIMEOUT = 1000;
+
+  private final NdtReactor reactor;
+  private final String host;
+  private final ReactorFuture<LatencyProbe> future;
+  private int port = NdtTests.CONTROL_PORT;
+  private int probes = DEFAULT_PROBES;
+  private int timeout = DEFAULT_TIMEOUT;
+  private int interval;
+  private boolean loginExchange = true;
+  private Runnable completion;
+  /** Fails the probes if one of their handlers or timers throws. */
+  private NdtReactor.Session session = new NdtReactor.Session() {
+    public void abort(Throwable error) {
+      fail("protocolError: " + error);
+    }
+  };
+
+  private final LatencyStats connectTimes = new LatencyStats();
+  private final LatencyStats loginTimes = new LatencyStats();
+
+  /** The server, resolved by {@link #start()}. */
+  private InetSocketAddress address;
+
+  // Everything below is only touched on the I/O thread.
+  private SocketChannel channel;
+  private final ByteBuffer login = ByteBuffer.allocate(4);
+  private final ByteBuffer kickoff = ByteBuffer.allocate(1);
+  /** When the current exchange started, from System.nanoTime(). */
+  private long exchangeStart;
+  /** When the current probe started, from System.nanoTime(). */
+  private long probeStart;
+  private NdtReactor.Timer timer;
+  /** Starts the next probe once the interval is over. */
+  private NdtReactor.Timer nextTimer;
+  private boolean done;
+
+  /**
+   * @param reactor runs the probes, e.g. {@link NdtReactor#shared()}
+   * @param host hostname of the NDT server
+   */
+  public LatencyProbe(NdtReactor reactor, String host) {
+    this.reactor = reactor;
+    this.host = host;
+    future = new ReactorFuture<LatencyProbe>(reactor, new Runnable() {
+      public void run() {
+        fail("stopped");
+      }
+    });
+  }
+
+  /** Sets the server port; the default is the NDT control port. */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /** Sets the number of probes. */
+  public void setProbes(int probes) {
+    this.probes = Math.max(1, probes);
+  }
+
+  /**
+   * Sets the least time between the starts of two probes. The default is 0,
+   * which starts each probe as soon as the previous one is done.
+   */
+  public void setInterval(int millis) {
+    interval = millis;
+  }
+
+  /**
+   * Sets whether each probe times the MSG_LOGIN exchange after the TCP
+   * handshake. The default is true.
+   */
+  public void setLoginExchange(boolean timed) {
+    loginExchange = timed;
+  }
+
+  /**
+   * Sets the limit on the time taken by all the probes. When it runs out, the
+   * probe in flight is dropped and the measurement completes with the samples
+   * taken so far.
+   */
+  public void setTimeout(int millis) {
+    timeout = millis;
+  }
+
+  /**
+   * Sets a task to run on the I/O thread once the probes end, whether they
+   * succeeded or not, before the future completes.
+   */
+  void setCompletion(Runnable task) {
+    completion = task;
+  }
+
+  /**
+   * Makes the probes part of another measurement on the same reactor: an
+   * exception in one of their handlers fails that measurement.
+   */
+  void setSession(NdtReactor.Session session) {
+    this.session = session;
+  }
+
+  /**
+   * Starts the probes.
+   *
+   * @return completes with this probe once it is done, or with an
+   *     {@link ExecutionException} if no probe could be completed; cancelling
+   *     it stops the probes
+   */
+  public Future<LatencyProbe> start() throws IOException {
+    // Resolve on the calling thread, so DNS never holds up the I/O thread,
+    // and only once, so DNS time is not counted in the first probe.
+    address = new InetSocketAddress(host, port);
+    reactor.execute(session, new Runnable() {
+      public void run() {
+        if (done) {
+          // Stopped before it started.
+          return;
+        }
+        timer = reactor.schedule(timeout, new Runnable() {
+          public void run() {
+            timer = null;
+            timedOut();
+          }
+        });
+        probe();
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Stops the probes. The measurement completes with the samples taken so
+   * far, even if there are none.
+   */
+  public void stop() {
+    Runnable task = new Runnable() {
+      public void run() {
+        complete();
+      }
+    };
+    if (reactor.inReactor()) {
+      task.run();
+      return;
+    }
+    try {
+      reactor.execute(session, task);
+    } catch (IOException e) {
+      // The reactor is gone, and the channels with it.
+    }
+  }
+
+  /** Round-trip times of the TCP handshakes. */
+  public LatencyStats getConnectTimes() {
+    return connectTimes;
+  }
+
+  /**
+   * Times from sending MSG_LOGIN to the server's first byte. They include the
+   * server's work to set up a session, not just the round trip.
+   */
+  public LatencyStats getLoginTimes() {
+    return loginTimes;
+  }
+
+  private void probe() {
+    nextTimer = null;
+    probeStart = System.nanoTime();
+    try {
+      if (address.isUnresolved()) {
+        fail("unknownServer " + host);
+        return;
+      }
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      exchangeStart = System.nanoTime();
+      if (channel.connect(address)) {
+        connected(reactor.register(channel, 0, handler()));
+      } else {
+        reactor.register(channel, SelectionKey.OP_CONNECT, handler());
+      }
+    } catch (UnresolvedAddressException e) {
+      fail("unknownServer " + host);
+    } catch (IOException e) {
+      fail("serverNotRunning (" + host + ":" + port + ")");
+    }
+  }
+
+  private NdtReactor.Handler handler() {
+    return new NdtReactor.Handler() {
+      public void ready(SelectionKey key) {
+        try {
+          if (key.isConnectable()) {
+            try {
+              channel.finishConnect();
+            } catch (IOException e) {
+              fail("serverNotRunning (" + host + ":" + port + ")");
+              return;
+            }
+            connected(key);
+          } else if (key.isWritable()) {
+            sendLogin(key);
+          } else if (key.isReadable()) {
+            kickoff.clear();
+            int read = channel.read(kickoff);
+            if (read < 0) {
+              fail("protocolError: connection closed");
+            } else if (read > 0) {
+              loginTimes.add(System.nanoTime() - exchangeStart);
+              next();
+            }
+          }
+        } catch (IOException e) {
+          fail("protocolError: " + e);
+        }
+      }
+    };
+  }
+
+  private void connected(SelectionKey key) throws IOException {
+    connectTimes.add(System.nanoTime() - exchangeStart);
+    if (!loginExchange) {
+      next();
+      return;
+    }
+    login.clear();
+    login.put(NdtTests.MSG_LOGIN).put((byte) 0).put((byte) 1)
+        .put(NdtTests.TESTS_ALL);
+    login.flip();
+    exchangeStart = System.nanoTime();
+    sendLogin(key);
+  }
+
+  private void sendLogin(SelectionKey key) throws IOException {
+    channel.write(login);
+    key.interestOps(login.hasRemaining()
+        ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  private void next() {
+    closeChannel();
+    if (samples().getCount() >= probes) {
+      complete();
+      return;
+    }
+    long wait = interval - (System.nanoTime() - probeStart) / 1000000L;
+    if (wait <= 0) {
+      probe();
+    } else {
+      nextTimer = reactor.schedule(wait, new Runnable() {
+        public void run() {
+          probe();
+        }
+      });
+    }
+  }
+
+  /** The samples that count towards the number of probes. */
+  private LatencyStats samples() {
+    return loginExchange ? loginTimes : connectTimes;
+  }
+
+  private void timedOut() {
+    if (samples().getCount() == 0) {
+      fail("timeout");
+    } else {
+      complete();
+    }
+  }
+
+  private void complete() {
+    if (done) {
+      return;
+    }
+    finish();
+    future.set(this, null);
+  }
+
+  private void fail(String error) {
+    if (done) {
+      return;
+    }
+    finish();
+    future.set(null, new IOException(error));
+  }
+
+  private void finish() {
+    done = true;
+    closeChannel();
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    if (nextTimer != null) {
+      nextTimer.cancel();
+      nextTimer = null;
+    }
+    if (completion != null) {
+      completion.run();
+    }
+  }
+
+  private void closeChannel() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+    channel = null;
+  }
+}
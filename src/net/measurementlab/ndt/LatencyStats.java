@@ -0,0 +1,89 @@
+package net.measurementlab.ndt;
+
+import java.util.Arrays;
+
+/**
+ * A set of round-trip time samples and the statistics reported for them.
+ *
+ * Samples are kept in the order they were taken, in nanoseconds; the
+ * statistics are in milliseconds. Jitter is the mean absolute difference
+ * between consecutive samples, the way ping and RTP (RFC 3550) tools report
+ * it, so it reflects how much the delay moves from one exchange to the next
+ * rather than how spread out the samples are overall.
+ */
+public final class LatencyStats {
+  private long[] samples = new long[16];
+  private int count;
+
+  /** Adds a sample, in nanoseconds. */
+  synchronized void add(long nanos) {
+    if (count == samples.length) {
+      samples = Arrays.copyOf(samples, count * 2);
+    }
+    samples[count++] = nanos;
+  }
+
+  /** The number of samples. */
+  public synchronized int getCount() {
+    return count;
+  }
+
+  /** The samples in the order they were taken, in milliseconds. */
+  public synchronized double[] getSamples() {
+    double[] millis = new double[count];
+    for (int i = 0; i < count; ++i) {
+      millis[i] = samples[i] / 1e6;
+    }
+    return millis;
+  }
+
+  /** The smallest sample, in milliseconds, or NaN if there are none. */
+  public synchronized double getMin() {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long min = samples[0];
+    for (int i = 1; i < count; ++i) {
+      min = Math.min(min, samples[i]);
+    }
+    return min / 1e6;
+  }
+
+  /** The median sample, in milliseconds, or NaN if there are none. */
+  public double getMedian() {
+    return getPercentile(50);
+  }
+
+  /**
+   * A percentile of the samples, in milliseconds, or NaN if there are none.
+   *
+   * Uses the nearest-rank method, so the result is always one of the
+   * samples.
+   *
+   * @param percent between 0 and 100
+   */
+  public synchronized double getPercentile(double percent) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percent / 100 * count);
+    return sorted[Math.max(0, Math.min(count - 1, rank - 1))] / 1e6;
+  }
+
+  /**
+   * The mean absolute difference between consecutive samples, in
+   * milliseconds, or NaN if there are fewer than two samples.
+   */
+  public synchronized double getJitter() {
+    if (count < 2) {
+      return Double.NaN;
+    }
+    long total = 0;
+    for (int i = 1; i < count; ++i) {
+      total += Math.abs(samples[i] - samples[i - 1]);
+    }
+    return (double) total / (count - 1) / 1e6;
+  }
+}
@@ -0,0 +1,735 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for an NDT server, for running the clients offline.
+ *
+ * The server speaks the control protocol on a local port: login, queueing,
+ * the MID, SFW, C2S, S2C and META tests, and the web100 results. The link it
+ * simulates is shaped in user space: every data connection is paced to a
+ * fixed rate, and every control message the server sends is held back by a
+ * fixed delay. The web100 values it reports are canned, so runs against it
+ * are repeatable.
+ *
+ * Instead of its canned run, the server can also play back a run recorded
+ * from a real server; see {@link #setReplay}.
+ *
+ * The server runs on threads of its own, one per client session and one per
+ * data connection. It is meant for tests and benchmarks, not for production.
+ */
+public class LocalNdtServer {
+  /** The server version sent at login. */
+  static final String SERVER_VERSION = "v3.6.4";
+
+  /** Length of the middlebox test's data phase, in milliseconds. */
+  private static final int MID_DURATION = 5000;
+
+  /** How long to wait for the extra connections of a multi-stream test. */
+  private static final int EXTRA_STREAM_WAIT = 250;
+
+  /**
+   * The same during a replay, where the server accepts the connections only
+   * once the client already made them.
+   */
+  private static final int REPLAY_STREAM_WAIT = 10;
+
+  /** How long to wait for a client to open a data connection. */
+  private static final int ACCEPT_TIMEOUT = 10000;
+
+  /** Size of the writes and reads on the data connections. */
+  private static final int CHUNK_SIZE = 8192;
+
+  /** The web100 results reported when none are set, as the server sends them. */
+  static final String DEFAULT_WEB100 =
+      "CurMSS: 1448\nX_Rcvbuf: 87380\nSndbuf: 16384\nAckPktsIn: 3721\n"
+      + "AckPktsOut: 0\nBytesRetrans: 0\nCongAvoid: 0\nCongestionOverCount: 0\n"
+      + "CongestionSignals: 1\nCountRTT: 3668\nCurCwnd: 147696\nCurRTO: 204\n"
+      + "CurRwinRcvd: 3145728\nCurRwinSent: 29312\nCurSsthresh: 105984\n"
+      + "DSACKDups: 0\nDataBytesIn: 0\nDataBytesOut: 65699528\n"
+      + "DataPktsIn: 0\nDataPktsOut: 45372\nDupAcksIn: 12\nECNEnabled: 0\n"
+      + "FastRetran: 1\nMaxCwnd: 212992\nMaxMSS: 1448\nMaxRTO: 240\n"
+      + "MaxRTT: 48\nMaxRwinRcvd: 3145728\nMaxRwinSent: 29312\n"
+      + "MaxSsthresh: 105984\nMinMSS: 1448\nMinRTO: 201\nMinRTT: 1\n"
+      + "MinRwinRcvd: 29312\nMinRwinSent: 29312\nNagleEnabled: 1\n"
+      + "OtherReductions: 0\nPktsIn: 3721\nPktsOut: 45372\nPktsRetrans: 3\n"
+      + "RcvWinScale: 7\nSACKEnabled: 3\nSACKsRcvd: 2\nSendStall: 0\n"
+      + "SlowStart: 49\nSampleRTT: 4\nSmoothedRTT: 4\nSndWinScale: 7\n"
+      + "SndLimTimeRwin: 0\nSndLimTimeCwnd: 9962871\nSndLimTimeSender: 37136\n"
+      + "SndLimTransRwin: 0\nSndLimTransCwnd: 1\nSndLimTransSender: 1\n"
+      + "SndLimBytesRwin: 0\nSndLimBytesCwnd: 65699528\nSndLimBytesSender: 0\n"
+      + "SubsequentTimeouts: 0\nSumRTT: 14672\nTimeouts: 0\n"
+      + "TimestampsEnabled: 1\nWinScaleRcvd: 7\nWinScaleSent: 7\n"
+      + "DupAcksOut: 0\nStartTimeUsec: 429187\nDuration: 10000007\n"
+      + "c2sData: 8\nc2sAck: 8\ns2cData: 8\ns2cAck: 8\nhalf_duplex: 0\n"
+      + "link: 100\ncongestion: 0\nbad_cable: 0\nmismatch: 0\nspd: 52.56\n"
+      + "bw: 1316.47\nloss: 0.000066120\navgrtt: 4.00\nwaitsec: 0.00\n"
+      + "timesec: 10.00\norder: 0.0032\nrwintime: 0.0000\n"
+      + "sendtime: 0.0037\ncwndtime: 0.9963\nrttsec: 0.004000\n"
+      + "rwin: 24.0000\nswin: 0.1250\ncwin: 1.6250\naspd: 0.00000\n";
+
+  /** Size of the pieces the web100 results are split into. */
+  private static final int WEB100_CHUNK = 512;
+
+  private final int port;
+  private ServerSocket listener;
+  private Thread acceptor;
+
+  private volatile int[] queue = new int[0];
+  private volatile int testDuration = 10000;
+  private volatile long rate;
+  private volatile int latency;
+  private volatile String web100 = DEFAULT_WEB100;
+  private volatile Transcript replay;
+  private final AtomicInteger sessions = new AtomicInteger();
+
+  /** Listens on {@link NdtTests#CONTROL_PORT}, where the clients connect. */
+  public LocalNdtServer() {
+    this(NdtTests.CONTROL_PORT);
+  }
+
+  /**
+   * @param port the control port; 0 picks a free port
+   */
+  public LocalNdtServer(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Sets the SRV_QUEUE wait codes sent before the "0" that admits a client.
+   *
+   * A positive code says how many clients are ahead; 9990 asks the client to
+   * prove it is alive with MSG_WAITING; 9988 and 9999 turn the client away,
+   * in which case the session ends there.
+   */
+  public void setQueue(int... waits) {
+    queue = waits.clone();
+  }
+
+  /**
+   * Sets the length of the C2S and S2C data phases.
+   *
+   * @param millis the phase length; the real server uses 10 seconds
+   */
+  public void setTestDuration(int millis) {
+    testDuration = millis;
+  }
+
+  /**
+   * Limits the throughput of every data connection.
+   *
+   * @param bytesPerSecond the rate that each connection is paced to; 0 (the
+   *     default) leaves the connections unshaped
+   */
+  public void setRate(long bytesPerSecond) {
+    rate = bytesPerSecond;
+  }
+
+  /**
+   * Delays every control message the server sends.
+   *
+   * @param millis the delay; 0 (the default) sends right away
+   */
+  public void setLatency(int millis) {
+    latency = millis;
+  }
+
+  /**
+   * Sets the web100 results the server reports.
+   *
+   * @param dump "name: value" pairs separated by whitespace
+   */
+  public void setWeb100(String dump) {
+    web100 = dump;
+  }
+
+  /**
+   * Plays back a recorded run to every client instead of the canned one.
+   *
+   * The server sends the recorded server messages in order, as fast as the
+   * client takes them, and reads a message wherever the client sent one. The
+   * ports in TEST_PREPARE become the server's own, and the data connections
+   * carry a single chunk or none, so a replayed run measures the client's
+   * parsing and state handling rather than the link. The queue, duration,
+   * rate, latency and web100 settings do not apply.
+   *
+   * @param transcript the run to play back; null to go back to the canned run
+   */
+  public void setReplay(Transcript transcript) {
+    replay = transcript;
+  }
+
+  /** Starts accepting clients. */
+  public synchronized void start() throws IOException {
+    listener = new ServerSocket();
+    listener.setReuseAddress(true);
+    listener.bind(new InetSocketAddress(port));
+    acceptor = new Thread(new Runnable() {
+      public void run() {
+        acceptClients();
+      }
+    }, "LocalNdtServer");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Stops accepting clients. Sessions in progress run to completion.
+   *
+   * The port is free again when this returns, so the server can be started
+   * anew right away.
+   */
+  public void stop() {
+    Thread acceptor;
+    synchronized (this) {
+      if (listener == null) {
+        return;
+      }
+      closeQuietly(listener);
+      listener = null;
+      acceptor = this.acceptor;
+      this.acceptor = null;
+    }
+    // The socket only lets go of the port once accept() has returned.
+    try {
+      acceptor.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The port the server listens on. */
+  public synchronized int getPort() {
+    return listener.getLocalPort();
+  }
+
+  /** The number of sessions that ran to completion. */
+  public int getSessions() {
+    return sessions.get();
+  }
+
+  private void acceptClients() {
+    ServerSocket listener;
+    synchronized (this) {
+      listener = this.listener;
+    }
+    if (listener == null) {
+      return;
+    }
+    while (true) {
+      final Socket client;
+      try {
+        client = listener.accept();
+      } catch (IOException e) {
+        return;
+      }
+      Thread session = new Thread(new Runnable() {
+        public void run() {
+          try {
+            new Session(client).run();
+            sessions.incrementAndGet();
+          } catch (IOException e) {
+            // The client went away; nothing to clean up but the socket.
+          } finally {
+            closeQuietly(client);
+          }
+        }
+      }, "LocalNdtServer session");
+      session.setDaemon(true);
+      session.start();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+
+  private static void closeQuietly(ServerSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+
+  /** Keeps a data connection at or below the configured rate. */
+  private class Pacer {
+    private final long rate = LocalNdtServer.this.rate;
+    private final long start = System.nanoTime();
+    private long bytes;
+
+    /** Accounts for bytes moved; sleeps if they came too early. */
+    void pace(long moved) {
+      if (rate <= 0) {
+        return;
+      }
+      bytes += moved;
+      long due = start + bytes * 1000000000L / rate;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /** One client, from login to logout. */
+  private class Session {
+    private final Socket client;
+    private final NdtTests.Protocol ctl;
+    private final NdtTests.Message msg = new NdtTests.Message();
+
+    Session(Socket client) throws IOException {
+      this.client = client;
+      client.setTcpNoDelay(true);
+      ctl = new NdtTests.Protocol(client);
+    }
+
+    void run() throws IOException {
+      Transcript transcript = replay;
+      if (transcript != null) {
+        replay(transcript);
+        return;
+      }
+      receive(NdtTests.MSG_LOGIN);
+      int tests = msg.body[0];
+      OutputStream out = client.getOutputStream();
+      out.write("123456 654321".getBytes());
+
+      for (int wait : queue) {
+        send(NdtTests.SRV_QUEUE, Integer.toString(wait));
+        if (wait == 9988 || wait == 9999) {
+          return;
+        }
+        if (wait == 9990) {
+          receive(NdtTests.MSG_WAITING);
+        }
+      }
+      send(NdtTests.SRV_QUEUE, "0");
+      send(NdtTests.MSG_LOGIN, SERVER_VERSION);
+
+      // The real server runs the tests in this order.
+      int[] order = { NdtTests.TEST_MID, NdtTests.TEST_SFW, NdtTests.TEST_C2S,
+          NdtTests.TEST_S2C, NdtTests.TEST_META };
+      StringBuilder suite = new StringBuilder();
+      for (int test : order) {
+        if ((tests & test) != 0) {
+          if (suite.length() > 0) {
+            suite.append(' ');
+          }
+          suite.append(test);
+        }
+      }
+      send(NdtTests.MSG_LOGIN, suite.toString());
+
+      StringTokenizer ids = new StringTokenizer(suite.toString());
+      while (ids.hasMoreTokens()) {
+        switch (Integer.parseInt(ids.nextToken())) {
+          case NdtTests.TEST_MID:
+            testMid();
+            break;
+          case NdtTests.TEST_SFW:
+            testSfw();
+            break;
+          case NdtTests.TEST_C2S:
+            testC2s();
+            break;
+          case NdtTests.TEST_S2C:
+            testS2c();
+            break;
+          case NdtTests.TEST_META:
+            testMeta();
+            break;
+        }
+      }
+
+      String results = web100;
+      for (int i = 0; i < results.length(); i += WEB100_CHUNK) {
+        send(NdtTests.MSG_RESULTS, results.substring(i,
+            Math.min(results.length(), i + WEB100_CHUNK)));
+      }
+      send(NdtTests.MSG_LOGOUT, "");
+    }
+
+    private void testMid() throws IOException {
+      ServerSocket data = new ServerSocket(0);
+      Socket socket = null;
+      try {
+        send(NdtTests.TEST_PREPARE, Integer.toString(data.getLocalPort()));
+        data.setSoTimeout(ACCEPT_TIMEOUT);
+        socket = data.accept();
+        transmit(socket, Math.min(MID_DURATION, testDuration));
+        socket.close();
+        send(NdtTests.TEST_MSG, client.getLocalAddress().getHostAddress()
+            + ";" + client.getInetAddress().getHostAddress() + ";1456;-1;-1;");
+        receive(NdtTests.TEST_MSG);
+        send(NdtTests.TEST_FINALIZE, "");
+      } finally {
+        closeQuietly(socket);
+        closeQuietly(data);
+      }
+    }
+
+    private void testSfw() throws IOException {
+      ServerSocket probe = new ServerSocket(0);
+      int testTime = 3;
+      try {
+        send(NdtTests.TEST_PREPARE, probe.getLocalPort() + " " + testTime);
+        receive(NdtTests.TEST_MSG);
+        int clientPort = Integer.parseInt(
+            new String(msg.body, 0, msg.length).trim());
+        send(NdtTests.TEST_START, "");
+        int result = exchangeSfw(probe, clientPort, testTime);
+        send(NdtTests.TEST_MSG, Integer.toString(result));
+        send(NdtTests.TEST_FINALIZE, "");
+      } finally {
+        closeQuietly(probe);
+      }
+    }
+
+    /**
+     * The connections of the simple firewall test, once the server said
+     * TEST_START.
+     *
+     * @return the SFW_* outcome of the client's connection to the probe
+     */
+    private int exchangeSfw(ServerSocket probe, int clientPort, int testTime)
+        throws IOException {
+      // Reach the client's listener...
+      Socket out = new Socket();
+      try {
+        out.connect(new InetSocketAddress(client.getInetAddress(),
+            clientPort), testTime * 1000);
+        new NdtTests.Protocol(out).send_msg(NdtTests.TEST_MSG,
+            "Simple firewall test".getBytes());
+      } catch (IOException e) {
+        // The client reports what it saw; nothing to do here.
+      } finally {
+        closeQuietly(out);
+      }
+
+      // ...and let the client reach ours.
+      Socket in = null;
+      try {
+        probe.setSoTimeout(testTime * 1000);
+        in = probe.accept();
+        in.setSoTimeout(testTime * 1000);
+        NdtTests.Message hello = new NdtTests.Message();
+        if (new NdtTests.Protocol(in).recv_msg(hello) == 0
+            && hello.type == NdtTests.TEST_MSG
+            && new String(hello.body, 0, hello.length)
+                .equals("Simple firewall test")) {
+          return NdtTests.SFW_NOFIREWALL;
+        }
+        return NdtTests.SFW_UNKNOWN;
+      } catch (SocketTimeoutException e) {
+        return NdtTests.SFW_POSSIBLE;
+      } finally {
+        closeQuietly(in);
+      }
+    }
+
+    /** Plays back the server's side of a recorded run. */
+    private void replay(Transcript transcript) throws IOException {
+      OutputStream out = client.getOutputStream();
+      StringTokenizer suite = null;
+      int test = 0;
+      int testTime = 0;
+      int clientPort = 0;
+      ServerSocket data = null;
+      Socket[] sockets = null;
+      try {
+        for (int i = 0; i < transcript.size(); ++i) {
+          byte type = transcript.type(i);
+          byte[] body = transcript.body(i);
+          if (transcript.direction(i) == Transcript.SENT) {
+            receive(type);
+            if (test == NdtTests.TEST_SFW && type == NdtTests.TEST_MSG) {
+              clientPort = Integer.parseInt(
+                  new String(msg.body, 0, msg.length).trim());
+            }
+            continue;
+          }
+          if (transcript.direction(i) == Transcript.RAW) {
+            out.write(body);
+            continue;
+          }
+
+          String text = new String(body);
+          if (type == NdtTests.MSG_LOGIN && !text.startsWith("v")) {
+            suite = new StringTokenizer(text);
+          } else if (type == NdtTests.TEST_PREPARE && suite != null
+              && suite.hasMoreTokens()) {
+            test = Integer.parseInt(suite.nextToken());
+            closeAll(sockets);
+            sockets = null;
+            if (data != null) {
+              closeQuietly(data);
+              data = null;
+            }
+            if (test != NdtTests.TEST_META) {
+              // "port" or, for the SFW test, "port testTime".
+              data = new ServerSocket(0);
+              StringTokenizer fields = new StringTokenizer(text);
+              fields.nextToken();
+              String rest = fields.hasMoreTokens() ? fields.nextToken() : null;
+              testTime = rest != null ? Integer.parseInt(rest) : 0;
+              text = data.getLocalPort() + (rest != null ? " " + rest : "");
+              body = text.getBytes();
+            }
+          }
+          ctl.send_msg(type, body);
+
+          if (type == NdtTests.TEST_PREPARE && test == NdtTests.TEST_MID) {
+            data.setSoTimeout(ACCEPT_TIMEOUT);
+            sockets = new Socket[] { data.accept() };
+            sendChunk(sockets);
+          } else if (type == NdtTests.TEST_START) {
+            if (test == NdtTests.TEST_C2S) {
+              sockets = acceptStreams(data, REPLAY_STREAM_WAIT);
+              for (Socket socket : sockets) {
+                // A reset ends the client's writes at once.
+                socket.setSoLinger(true, 0);
+              }
+              closeAll(sockets);
+            } else if (test == NdtTests.TEST_S2C) {
+              sockets = acceptStreams(data, REPLAY_STREAM_WAIT);
+              sendChunk(sockets);
+            } else if (test == NdtTests.TEST_SFW) {
+              exchangeSfw(data, clientPort, testTime);
+            }
+          }
+        }
+      } finally {
+        closeAll(sockets);
+        if (data != null) {
+          closeQuietly(data);
+        }
+      }
+    }
+
+    /** Sends one chunk over each data connection and closes it. */
+    private void sendChunk(Socket[] sockets) {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      for (Socket socket : sockets) {
+        try {
+          socket.getOutputStream().write(buffer);
+        } catch (IOException e) {
+          // The client went away; it reports what it got.
+        }
+        closeQuietly(socket);
+      }
+    }
+
+    private void testC2s() throws IOException {
+      ServerSocket data = new ServerSocket(0);
+      Socket[] sockets = null;
+      try {
+        send(NdtTests.TEST_PREPARE, Integer.toString(data.getLocalPort()));
+        sockets = acceptStreams(data);
+        send(NdtTests.TEST_START, "");
+        long start = System.currentTimeMillis();
+        long bytes = runStreams(sockets, false, testDuration);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        send(NdtTests.TEST_MSG, Long.toString(8 * bytes / elapsed));
+        send(NdtTests.TEST_FINALIZE, "");
+      } finally {
+        closeAll(sockets);
+        closeQuietly(data);
+      }
+    }
+
+    private void testS2c() throws IOException {
+      ServerSocket data = new ServerSocket(0);
+      Socket[] sockets = null;
+      try {
+        send(NdtTests.TEST_PREPARE, Integer.toString(data.getLocalPort()));
+        sockets = acceptStreams(data);
+        send(NdtTests.TEST_START, "");
+        long start = System.currentTimeMillis();
+        long bytes = runStreams(sockets, true, testDuration);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        closeAll(sockets);
+        send(NdtTests.TEST_MSG, (8 * bytes / elapsed) + " 0 " + bytes);
+        receive(NdtTests.TEST_MSG);
+
+        // The snapshot of the S2C connection goes out as TEST_MSGs.
+        String snapshot = web100;
+        for (int i = 0; i < snapshot.length(); i += WEB100_CHUNK) {
+          send(NdtTests.TEST_MSG, snapshot.substring(i,
+              Math.min(snapshot.length(), i + WEB100_CHUNK)));
+        }
+        send(NdtTests.TEST_FINALIZE, "");
+      } finally {
+        closeAll(sockets);
+        closeQuietly(data);
+      }
+    }
+
+    private void testMeta() throws IOException {
+      send(NdtTests.TEST_PREPARE, "");
+      send(NdtTests.TEST_START, "");
+      do {
+        receive(NdtTests.TEST_MSG);
+      } while (msg.length > 0);
+      send(NdtTests.TEST_FINALIZE, "");
+    }
+
+    /** Accepts the first data connection and any that follow right after. */
+    private Socket[] acceptStreams(ServerSocket data) throws IOException {
+      return acceptStreams(data, EXTRA_STREAM_WAIT);
+    }
+
+    /**
+     * @param extraWait how long to wait for each connection after the first,
+     *     in milliseconds
+     */
+    private Socket[] acceptStreams(ServerSocket data, int extraWait)
+        throws IOException {
+      ArrayList<Socket> sockets = new ArrayList<Socket>();
+      data.setSoTimeout(ACCEPT_TIMEOUT);
+      sockets.add(data.accept());
+      data.setSoTimeout(extraWait);
+      try {
+        while (true) {
+          sockets.add(data.accept());
+        }
+      } catch (SocketTimeoutException e) {
+        // That was all of them.
+      }
+      return sockets.toArray(new Socket[sockets.size()]);
+    }
+
+    /**
+     * Sends on or drains every data connection at once, each on a thread of
+     * its own.
+     *
+     * @return the total number of bytes moved
+     */
+    private long runStreams(final Socket[] sockets, final boolean send,
+        final int duration) throws IOException {
+      final long[] bytes = new long[sockets.length];
+      Thread[] threads = new Thread[sockets.length];
+      for (int i = 0; i < sockets.length; ++i) {
+        final int index = i;
+        threads[i] = new Thread(new Runnable() {
+          public void run() {
+            try {
+              if (send) {
+                bytes[index] = transmit(sockets[index], duration);
+              } else {
+                bytes[index] = drain(sockets[index], duration);
+              }
+            } catch (IOException e) {
+              // The client closed the connection; count what got through.
+            }
+          }
+        });
+        threads[i].start();
+      }
+      long total = 0;
+      for (int i = 0; i < threads.length; ++i) {
+        try {
+          threads[i].join();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        }
+        total += bytes[i];
+      }
+      return total;
+    }
+
+    /** Sends paced data for the given time. */
+    private long transmit(Socket socket, int duration) throws IOException {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      for (int i = 0; i < buffer.length; ++i) {
+        buffer[i] = (byte) ('0' + i % 74);
+      }
+      OutputStream out = socket.getOutputStream();
+      Pacer pacer = new Pacer();
+      long end = System.currentTimeMillis() + duration;
+      long bytes = 0;
+      try {
+        while (System.currentTimeMillis() < end) {
+          out.write(buffer);
+          bytes += buffer.length;
+          pacer.pace(buffer.length);
+        }
+      } catch (IOException e) {
+        // The client stopped reading early, e.g. in adaptive mode.
+      }
+      socket.shutdownOutput();
+      return bytes;
+    }
+
+    /** Reads paced data until the time runs out or the client closes. */
+    private long drain(Socket socket, int duration) throws IOException {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      InputStream in = socket.getInputStream();
+      Pacer pacer = new Pacer();
+      long end = System.currentTimeMillis() + duration;
+      long bytes = 0;
+      socket.setSoTimeout(Math.max(1, duration));
+      try {
+        int n;
+        while (System.currentTimeMillis() < end
+            && (n = in.read(buffer)) > 0) {
+          bytes += n;
+          pacer.pace(n);
+        }
+      } catch (SocketTimeoutException e) {
+        // The client sent nothing more.
+      }
+      return bytes;
+    }
+
+    private void closeAll(Socket[] sockets) {
+      if (sockets == null) {
+        return;
+      }
+      for (Socket socket : sockets) {
+        closeQuietly(socket);
+      }
+    }
+
+    private void send(byte type, String body) throws IOException {
+      if (latency > 0) {
+        try {
+          Thread.sleep(latency);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        }
+      }
+      ctl.send_msg(type, body.getBytes());
+    }
+
+    private void receive(byte type) throws IOException {
+      if (ctl.recv_msg(msg) != 0) {
+        throw new IOException("Short control message");
+      }
+      if (msg.type != type) {
+        throw new IOException("Expected message type " + type + ", got "
+            + msg.type);
+      }
+    }
+  }
+}
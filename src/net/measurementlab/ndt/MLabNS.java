@@ -32,6 +32,9 @@ public class MLabNS {
   /** Used by measurement tests if MLabNS should be used to retrieve the real server target. */
   static public final String TARGET = "m-lab";
 
+  /** The longest a lookup takes by default, in milliseconds. */
+  static public final int DEFAULT_TIMEOUT = 10000;
+
   static final String LOG_TAG = "NDT";
   /**
    * Query MLab-NS to get an FQDN for the given tool.
@@ -44,10 +47,22 @@ public class MLabNS {
    * Query MLab-NS to get an FQDN for the given tool and address family.
    */
   static public String Lookup(Context context, String tool, String address_family, String metro) {
+    return Lookup(context, tool, address_family, metro, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Query MLab-NS to get an FQDN for the given tool and address family,
+   * giving up after a time.
+   *
+   * @param timeoutMillis split evenly between connecting and waiting for the
+   *     answer
+   */
+  static public String Lookup(Context context, String tool, String address_family, String metro,
+      int timeoutMillis) {
     // Set the timeout in milliseconds until a connection is established.
-    final int timeoutConnection = 5000;
+    final int timeoutConnection = Math.max(1, timeoutMillis / 2);
     // Set the socket timeout in milliseconds.
-    final int timeoutSocket = 5000;
+    final int timeoutSocket = Math.max(1, timeoutMillis - timeoutConnection);
 
     InputStream inputStream = null;
 
@@ -0,0 +1,150 @@
+package net.measurementlab.ndt;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ResourceBundle;
+
+/**
+ * Runs measurement after measurement, keeping what they can share.
+ *
+ * A client holds what does not change from one run to the next: the I/O
+ * reactor, the socket tuning, the message bundle, the C2S test payload, and
+ * the server addresses, which are resolved once and reused for
+ * {@link #ADDRESS_TTL} ms. Each run is a session from
+ * {@link #newSession(String, UiServices)} or
+ * {@link #newBlockingSession(String, UiServices, boolean)}: an ordinary
+ * {@link AsyncNdtClient} or {@link NdtTests}, configured and started as
+ * usual, that borrows these resources instead of loading its own. An app
+ * that measures periodically should keep one client for its lifetime.
+ */
+public final class NdtClient {
+  /** How long resolved server addresses are reused, in milliseconds. */
+  public static final int ADDRESS_TTL = 5 * 60 * 1000;
+
+  private final NdtReactor reactor;
+  private SocketTuning tuning = new SocketTuning();
+  private ResourceBundle messages;
+  private byte[] streamPayload;
+
+  /** The addresses of each server, keyed by its names. */
+  private final HashMap<String, Addresses> addresses =
+      new HashMap<String, Addresses>();
+
+  /**
+   * @param reactor runs the I/O of the asynchronous sessions, e.g.
+   *     {@link NdtReactor#shared()}; the blocking sessions run their probes on
+   *     {@link NdtReactor#shared()} regardless
+   */
+  public NdtClient(NdtReactor reactor) {
+    this.reactor = reactor;
+  }
+
+  /**
+   * Sets the socket options of the sessions started from now on.
+   *
+   * @see NdtTests#setSocketTuning(SocketTuning)
+   */
+  public synchronized void setSocketTuning(SocketTuning tuning) {
+    this.tuning = tuning;
+  }
+
+  /**
+   * A new asynchronous measurement that uses the client's resources.
+   *
+   * @param host hostname of the test server
+   * @param uiServices receives the progress and result callbacks on the I/O
+   *     thread
+   */
+  public synchronized AsyncNdtClient newSession(String host,
+      UiServices uiServices) {
+    AsyncNdtClient session = new AsyncNdtClient(reactor, host, uiServices);
+    session.setClient(this);
+    session.setSocketTuning(tuning);
+    return session;
+  }
+
+  /**
+   * A new blocking measurement that uses the client's resources; call its
+   * {@link NdtTests#run()} on a thread of its own.
+   *
+   * @param host hostname of the test server
+   * @param uiServices object for UI interaction
+   * @param headless see
+   *     {@link NdtTests#NdtTests(String, UiServices, String, boolean)}
+   */
+  public synchronized NdtTests newBlockingSession(String host,
+      UiServices uiServices, boolean headless) {
+    NdtTests session = new NdtTests(this, host, uiServices, headless);
+    session.setSocketTuning(tuning);
+    return session;
+  }
+
+  /** The message bundle of the default locale, loaded on first use. */
+  synchronized ResourceBundle messages() {
+    if (messages == null) {
+      messages = NdtTests.loadMessages();
+    }
+    return messages;
+  }
+
+  /** The payload of the blocking C2S test, built on first use. */
+  synchronized byte[] streamPayload() {
+    if (streamPayload == null) {
+      streamPayload = NdtTests.newStreamPayload();
+    }
+    return streamPayload;
+  }
+
+  /**
+   * The server addresses to race, resolved if the cached ones are missing
+   * or stale. The lock is not held while resolving, so a slow lookup does
+   * not hold up the other sessions.
+   *
+   * @see DualStack#candidates(String, String)
+   */
+  InetAddress[] candidates(String host, String alternateHost)
+      throws UnknownHostException {
+    String key = host + " " + alternateHost;
+    synchronized (this) {
+      long now = System.nanoTime();
+      // Drop whatever went stale, so servers used once do not pile up.
+      Iterator<Addresses> entries = addresses.values().iterator();
+      while (entries.hasNext()) {
+        if (now - entries.next().resolved > ADDRESS_TTL * 1000000L) {
+          entries.remove();
+        }
+      }
+      Addresses cached = addresses.get(key);
+      if (cached != null) {
+        return cached.candidates;
+      }
+    }
+    InetAddress[] candidates = DualStack.candidates(host, alternateHost);
+    synchronized (this) {
+      addresses.put(key, new Addresses(candidates, System.nanoTime()));
+    }
+    return candidates;
+  }
+
+  /**
+   * Forgets the addresses of a server that could not be reached, so the
+   * next session resolves it again.
+   */
+  synchronized void forget(String host, String alternateHost) {
+    addresses.remove(host + " " + alternateHost);
+  }
+
+  /** Resolved server addresses. */
+  private static class Addresses {
+    final InetAddress[] candidates;
+    /** When they were resolved, in System.nanoTime() terms. */
+    final long resolved;
+
+    Addresses(InetAddress[] candidates, long resolved) {
+      this.candidates = candidates;
+      this.resolved = resolved;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Runs the network I/O of any number of {@link AsyncNdtClient}s on a single
+ * thread.
+ *
+ * Every channel of every measurement (control, data, firewall test) is
+ * registered with one {@link Selector}. The I/O thread is started on first use
+ * and keeps running until {@link #shutdown()}; an idle reactor only costs a
+ * thread blocked in select().
+ *
+ * Each measurement is a {@link Session}. The channels and timers registered
+ * while one of its tasks runs belong to it, so an exception thrown by one of
+ * them fails that measurement alone. If the I/O thread dies, every
+ * measurement that still has a channel, timer or task on it fails.
+ */
+public class NdtReactor {
+  /** Size of the buffer that the data channels are drained into. */
+  static final int READ_BUFFER_SIZE = 256 * 1024;
+
+  /** Reacts to a channel becoming ready. Called on the I/O thread. */
+  interface Handler {
+    /**
+     * @param key the channel's key; its ready set says what the channel is
+     *     ready for
+     */
+    void ready(SelectionKey key);
+  }
+
+  /** A measurement running on the reactor. */
+  interface Session {
+    /**
+     * Ends the measurement after an unexpected error. Called on the I/O
+     * thread.
+     *
+     * @param error a {@link RuntimeException} thrown by one of the
+     *     measurement's handlers or timers, or the reason the I/O thread
+     *     stopped
+     */
+    void abort(Throwable error);
+  }
+
+  private static NdtReactor shared;
+
+  private final Object lock = new Object();
+
+  /** Tasks submitted from other threads, run at the next wakeup. */
+  private final ArrayList<Task> tasks = new ArrayList<Task>();
+
+  /** Pending timers, soonest first. Only used on the I/O thread. */
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+  /**
+   * Scratch space for reads whose contents are thrown away. Only used on the
+   * I/O thread, so all measurements share it.
+   */
+  private final ByteBuffer readBuffer =
+      ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  private Selector selector;
+  private Thread thread;
+  private long timerSequence;
+  /** The session whose task is running. Only used on the I/O thread. */
+  private Session current;
+
+  /** The reactor shared by all the measurements in the process. */
+  public static synchronized NdtReactor shared() {
+    if (shared == null) {
+      shared = new NdtReactor();
+    }
+    return shared;
+  }
+
+  /**
+   * Runs a task on the I/O thread, starting the thread if necessary.
+   */
+  void execute(Runnable task) throws IOException {
+    execute(null, task);
+  }
+
+  /**
+   * Runs a task of a session on the I/O thread, starting the thread if
+   * necessary.
+   *
+   * @param owner the session that the task, and the channels and timers it
+   *     registers, belong to; null for none
+   */
+  void execute(Session owner, Runnable task) throws IOException {
+    synchronized (lock) {
+      if (thread == null) {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+          public void run() {
+            loop();
+          }
+        }, "NdtReactor");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      tasks.add(new Task(owner, task));
+      selector.wakeup();
+    }
+  }
+
+  /** Stops the I/O thread. Channels that are still registered are closed. */
+  public void shutdown() {
+    synchronized (lock) {
+      if (thread == null) {
+        return;
+      }
+      thread.interrupt();
+      selector.wakeup();
+      thread = null;
+    }
+  }
+
+  /** True if the caller is running on the I/O thread. */
+  boolean inReactor() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Registers a channel with the selector. Must be called on the I/O thread.
+   * The channel belongs to the session whose task is running.
+   *
+   * @param channel a channel in non-blocking mode
+   * @param ops the operations to watch for
+   * @param handler called when the channel is ready
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    return channel.register(selector, ops, new Task(current, handler));
+  }
+
+  /**
+   * Runs a task on the I/O thread after a delay. Must be called on the I/O
+   * thread. The timer belongs to the session whose task is running.
+   *
+   * @return the timer, which can be {@link Timer#cancel() cancelled}
+   */
+  Timer schedule(long delayMillis, Runnable task) {
+    Timer timer = new Timer(System.nanoTime() + delayMillis * 1000000L,
+        timerSequence++, current, task);
+    timers.add(timer);
+    return timer;
+  }
+
+  /** The shared scratch buffer for reads. Only for use on the I/O thread. */
+  ByteBuffer readBuffer() {
+    readBuffer.clear();
+    return readBuffer;
+  }
+
+  private void loop() {
+    Selector selector;
+    synchronized (lock) {
+      selector = this.selector;
+    }
+    ArrayList<Task> ready = new ArrayList<Task>();
+    Throwable error = null;
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        long timeout = 0;
+        Timer next = timers.peek();
+        if (next != null) {
+          timeout = Math.max(1,
+              (next.deadline - System.nanoTime() + 999999) / 1000000L);
+        }
+        selector.select(timeout);
+
+        synchronized (lock) {
+          ready.addAll(tasks);
+          tasks.clear();
+        }
+        for (Task task : ready) {
+          run(task.owner, task.runnable);
+        }
+        ready.clear();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid()) {
+            Task task = (Task) key.attachment();
+            current = task.owner;
+            try {
+              task.handler.ready(key);
+            } catch (RuntimeException e) {
+              key.cancel();
+              abort(task.owner, e);
+            } finally {
+              current = null;
+            }
+          }
+        }
+
+        long now = System.nanoTime();
+        while ((next = timers.peek()) != null && next.deadline <= now) {
+          timers.poll();
+          if (!next.cancelled) {
+            run(next.owner, next.task);
+          }
+        }
+      }
+    } catch (IOException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      error = e;
+    } finally {
+      // Whatever is still registered will never run; fail its sessions.
+      Set<Session> sessions = new LinkedHashSet<Session>();
+      synchronized (lock) {
+        if (thread == Thread.currentThread()) {
+          // The next execute() starts a new thread.
+          thread = null;
+        }
+        ready.addAll(tasks);
+        tasks.clear();
+      }
+      for (Task task : ready) {
+        sessions.add(task.owner);
+      }
+      for (Timer timer : timers) {
+        if (!timer.cancelled) {
+          sessions.add(timer.owner);
+        }
+      }
+      timers.clear();
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid()) {
+          sessions.add(((Task) key.attachment()).owner);
+        }
+      }
+      sessions.remove(null);
+      if (error == null) {
+        error = new IOException("NdtReactor stopped");
+      }
+      for (Session session : sessions) {
+        abort(session, error);
+      }
+      for (SelectionKey key : selector.keys()) {
+        try {
+          key.channel().close();
+        } catch (IOException e) {
+          // Shutting down anyway.
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Shutting down anyway.
+      }
+    }
+  }
+
+  /** Runs a task of a session, failing the session if the task throws. */
+  private void run(Session owner, Runnable task) {
+    current = owner;
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      abort(owner, e);
+    } finally {
+      current = null;
+    }
+  }
+
+  /**
+   * Fails the session that a throwing task or handler belongs to; the session
+   * reports the error to its own listener. Work of no session has nobody to
+   * report to, and is only dropped.
+   */
+  private static void abort(Session owner, Throwable error) {
+    if (owner == null) {
+      return;
+    }
+    try {
+      owner.abort(error);
+    } catch (RuntimeException e) {
+      // A listener that throws while being told about the failure must not
+      // take the I/O thread down with it.
+    }
+  }
+
+  /** A task or handler, and the session it belongs to. */
+  private static class Task {
+    final Session owner;
+    final Runnable runnable;
+    final Handler handler;
+
+    Task(Session owner, Runnable runnable) {
+      this.owner = owner;
+      this.runnable = runnable;
+      this.handler = null;
+    }
+
+    Task(Session owner, Handler handler) {
+      this.owner = owner;
+      this.runnable = null;
+      this.handler = handler;
+    }
+  }
+
+  /** A task that runs on the I/O thread once its deadline passes. */
+  class Timer implements Comparable<Timer> {
+    final long deadline;
+    final long sequence;
+    final Session owner;
+    final Runnable task;
+    boolean cancelled;
+
+    Timer(long deadline, long sequence, Session owner, Runnable task) {
+      this.deadline = deadline;
+      this.sequence = sequence;
+      this.owner = owner;
+      this.task = task;
+    }
+
+    /**
+     * Keeps the task from running, and lets go of it right away rather than
+     * at its deadline. Must be called on the I/O thread.
+     */
+    void cancel() {
+      cancelled = true;
+      timers.remove(this);
+    }
+
+    public int compareTo(Timer other) {
+      if (deadline != other.deadline) {
+        return deadline < other.deadline ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+}
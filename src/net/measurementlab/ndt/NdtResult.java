@@ -0,0 +1,611 @@
+package net.measurementlab.ndt;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The web100 variables reported by the NDT server, as typed fields.
+ *
+ * The server sends its results as whitespace-separated "name: value" pairs.
+ * {@link Web100Parser} feeds them to {@link #set(String, String)}, which finds
+ * the field through a table built once per process instead of comparing the
+ * name against every known variable.
+ */
+public final class NdtResult {
+  // Integer-valued variables.
+  /** MSS the server sent in its SYN. (web100 "MSSSent") */
+  public int MSSSent;
+  /** MSS the server received in the client's SYN. (web100 "MSSRcvd") */
+  public int MSSRcvd;
+  /** Non-zero if Explicit Congestion Notification was negotiated. (web100 "ECNEnabled") */
+  public int ECNEnabled;
+  /** Non-zero if the server's socket used Nagle's algorithm. (web100 "NagleEnabled") */
+  public int NagleEnabled;
+  /** Non-zero if Selective Acknowledgment was negotiated. (web100 "SACKEnabled") */
+  public int SACKEnabled;
+  /** Non-zero if RFC 1323 timestamps were negotiated. (web100 "TimestampsEnabled") */
+  public int TimestampsEnabled;
+  /** Window scale factor received by the server. (web100 "WinScaleRcvd") */
+  public int WinScaleRcvd;
+  /** Window scale factor sent by the server. (web100 "WinScaleSent") */
+  public int WinScaleSent;
+  /** Sum of the RTT samples, in ms. (web100 "SumRTT") */
+  public int SumRTT;
+  /** Number of RTT samples. (web100 "CountRTT") */
+  public int CountRTT;
+  /** Current MSS, in bytes. (web100 "CurMSS") */
+  public int CurrentMSS;
+  /** Number of retransmission timeouts. (web100 "Timeouts") */
+  public int Timeouts;
+  /** Number of retransmitted segments. (web100 "PktsRetrans") */
+  public int PktsRetrans;
+  /** Number of SACK blocks received. (web100 "SACKsRcvd") */
+  public int SACKsRcvd;
+  /** Number of duplicate ACKs received. (web100 "DupAcksIn") */
+  public int DupAcksIn;
+  /** Largest receive window advertised by the client, in bytes. (web100 "MaxRwinRcvd") */
+  public int MaxRwinRcvd;
+  /** Largest receive window advertised by the server, in bytes. (web100 "MaxRwinSent") */
+  public int MaxRwinSent;
+  /** Server send buffer size, in bytes. (web100 "Sndbuf") */
+  public int Sndbuf;
+  /** Server receive buffer size, in bytes. (web100 "X_Rcvbuf") */
+  public int Rcvbuf;
+  /** Number of data segments sent. (web100 "DataPktsOut") */
+  public int DataPktsOut;
+  /** Number of fast retransmits. (web100 "FastRetran") */
+  public int FastRetran;
+  /** Number of pure ACKs sent. (web100 "AckPktsOut") */
+  public int AckPktsOut;
+  /** Smoothed RTT, in ms. (web100 "SmoothedRTT") */
+  public int SmoothedRTT;
+  /** Current congestion window, in bytes. (web100 "CurCwnd") */
+  public int CurrentCwnd;
+  /** Largest congestion window, in bytes. (web100 "MaxCwnd") */
+  public int MaxCwnd;
+  /** Time spent limited by the receiver's window, in us. (web100 "SndLimTimeRwin") */
+  public int SndLimTimeRwin;
+  /** Time spent limited by the congestion window, in us. (web100 "SndLimTimeCwnd") */
+  public int SndLimTimeCwnd;
+  /** Time spent limited by the sender, in us. (web100 "SndLimTimeSender") */
+  public int SndLimTimeSender;
+  /** Number of data bytes sent. (web100 "DataBytesOut") */
+  public int DataBytesOut;
+  /** Number of ACKs received. (web100 "AckPktsIn") */
+  public int AckPktsIn;
+  /** Transitions into the receiver-limited state. (web100 "SndLimTransRwin") */
+  public int SndLimTransRwin;
+  /** Transitions into the congestion-limited state. (web100 "SndLimTransCwnd") */
+  public int SndLimTransCwnd;
+  /** Transitions into the sender-limited state. (web100 "SndLimTransSender") */
+  public int SndLimTransSender;
+  /** Largest slow-start threshold, in bytes. (web100 "MaxSsthresh") */
+  public int MaxSsthresh;
+  /** Current retransmission timeout, in ms. (web100 "CurRTO") */
+  public int CurrentRTO;
+  /** Largest retransmission timeout, in ms. (web100 "MaxRTO") */
+  public int MaxRTO;
+  /** Smallest retransmission timeout, in ms. (web100 "MinRTO") */
+  public int MinRTO;
+  /** Smallest RTT sample, in ms. (web100 "MinRTT") */
+  public int MinRTT;
+  /** Largest RTT sample, in ms. (web100 "MaxRTT") */
+  public int MaxRTT;
+  /** Current receive window advertised by the client, in bytes. (web100 "CurRwinRcvd") */
+  public int CurRwinRcvd;
+  /** Link type detected from the client's data packets. (web100 "c2sData") */
+  public int c2sData;
+  /** Link type detected from the client's ACKs. (web100 "c2sAck") */
+  public int c2sAck;
+  /** Link type detected from the server's data packets. (web100 "s2cData") */
+  public int s2cData;
+  /** Link type detected from the server's ACKs. (web100 "s2cAck") */
+  public int s2cAck;
+  /** Number of segments sent. (web100 "PktsOut") */
+  public int PktsOut;
+  /** Duplex mismatch diagnosis code. (web100 "mismatch") */
+  public int mismatch;
+  /** 1 if other traffic congested the path. (web100 "congestion") */
+  public int congestion;
+  /** 1 if excessive errors point to a bad cable. (web100 "bad_cable") */
+  public int bad_cable;
+  /** 1 if the link looks half-duplex. (web100 "half_duplex") */
+  public int half_duplex;
+  /** Number of congestion signals. (web100 "CongestionSignals") */
+  public int CongestionSignals;
+  /** Receive window scale factor. (web100 "RcvWinScale") */
+  public int RcvWinScale;
+
+  // Real-valued variables.
+  /** Theoretical throughput limit, in Mb/s. (web100 "bw") */
+  public double estimate;
+  /** Packet loss rate. (web100 "loss") */
+  public double loss;
+  /** Average RTT, in ms. (web100 "avgrtt") */
+  public double avgrtt;
+  /** Time the connection was idle, in seconds. (web100 "waitsec") */
+  public double waitsec;
+  /** Total test time, in seconds. (web100 "timesec") */
+  public double timesec;
+  /** Fraction of packets received out of order. (web100 "order") */
+  public double order;
+  /** Fraction of time limited by the receiver's window. (web100 "rwintime") */
+  public double rwintime;
+  /** Fraction of time limited by the sender. (web100 "sendtime") */
+  public double sendtime;
+  /** Fraction of time limited by the congestion window. (web100 "cwndtime") */
+  public double cwndtime;
+  /** Average RTT, in seconds. (web100 "rttsec") */
+  public double rttsec;
+  /** Largest receive window, in Mbit. (web100 "rwin") */
+  public double rwin;
+  /** Server send buffer, in Mbit. (web100 "swin") */
+  public double swin;
+  /** Largest congestion window, in Mbit. (web100 "cwin") */
+  public double cwin;
+  /** Throughput computed by the server, in Mb/s. (web100 "spd") */
+  public double spd;
+  /** Average throughput computed by the server, in Mb/s. (web100 "aspd") */
+  public double aspd;
+
+  // Settings chosen by the client; not sent by the server.
+  /** Send buffer of the client's C2S connections, in bytes; 0 if none. */
+  public int clientSndbuf;
+  /** Receive buffer of the client's S2C connections, in bytes; 0 if none. */
+  public int clientRcvbuf;
+  /**
+   * True if the C2S send buffer was left to the kernel's auto-tuning, in
+   * which case {@link #clientSndbuf} is only its starting size.
+   */
+  public boolean clientSndbufAuto;
+  /** The same for the S2C receive buffer and {@link #clientRcvbuf}. */
+  public boolean clientRcvbufAuto;
+  /** RTT the client sized its buffers for, in ms; 0 if unknown. */
+  public double clientRtt;
+  /** Address family of the control connection, "ipv4" or "ipv6". */
+  public String clientFamily;
+  /**
+   * Address family that lost the race for the control connection; null if
+   * the server had a single family.
+   */
+  public String clientRaceLoser;
+  /**
+   * How the loser lost: "failed", still "pending" when the winner connected,
+   * or "unstarted" because the winner connected first.
+   */
+  public String clientRaceLoserState;
+
+  // Snapshots of single tests.
+  /**
+   * The variables the server sent at the end of the S2C test, apart from the
+   * results it sends last; null if the S2C test did not run. The fields above
+   * hold both, with the final results overriding the snapshot.
+   */
+  public NdtResult s2c;
+
+  // Field indexes returned by set(). The real-valued fields come last.
+  static final int MSS_SENT = 0;
+  static final int MSS_RCVD = 1;
+  static final int ECN_ENABLED = 2;
+  static final int NAGLE_ENABLED = 3;
+  static final int SACK_ENABLED = 4;
+  static final int TIMESTAMPS_ENABLED = 5;
+  static final int WIN_SCALE_RCVD = 6;
+  static final int WIN_SCALE_SENT = 7;
+  static final int SUM_RTT = 8;
+  static final int COUNT_RTT = 9;
+  static final int CUR_MSS = 10;
+  static final int TIMEOUTS = 11;
+  static final int PKTS_RETRANS = 12;
+  static final int SACKS_RCVD = 13;
+  static final int DUP_ACKS_IN = 14;
+  static final int MAX_RWIN_RCVD = 15;
+  static final int MAX_RWIN_SENT = 16;
+  static final int SNDBUF = 17;
+  static final int RCVBUF = 18;
+  static final int DATA_PKTS_OUT = 19;
+  static final int FAST_RETRAN = 20;
+  static final int ACK_PKTS_OUT = 21;
+  static final int SMOOTHED_RTT = 22;
+  static final int CUR_CWND = 23;
+  static final int MAX_CWND = 24;
+  static final int SND_LIM_TIME_RWIN = 25;
+  static final int SND_LIM_TIME_CWND = 26;
+  static final int SND_LIM_TIME_SENDER = 27;
+  static final int DATA_BYTES_OUT = 28;
+  static final int ACK_PKTS_IN = 29;
+  static final int SND_LIM_TRANS_RWIN = 30;
+  static final int SND_LIM_TRANS_CWND = 31;
+  static final int SND_LIM_TRANS_SENDER = 32;
+  static final int MAX_SSTHRESH = 33;
+  static final int CUR_RTO = 34;
+  static final int MAX_RTO = 35;
+  static final int MIN_RTO = 36;
+  static final int MIN_RTT = 37;
+  static final int MAX_RTT = 38;
+  static final int CUR_RWIN_RCVD = 39;
+  static final int C2S_DATA = 40;
+  static final int C2S_ACK = 41;
+  static final int S2C_DATA = 42;
+  static final int S2C_ACK = 43;
+  static final int PKTS_OUT = 44;
+  static final int MISMATCH = 45;
+  static final int CONGESTION = 46;
+  static final int BAD_CABLE = 47;
+  static final int HALF_DUPLEX = 48;
+  static final int CONGESTION_SIGNALS = 49;
+  static final int RCV_WIN_SCALE = 50;
+  static final int BW = 51;
+  static final int LOSS = 52;
+  static final int AVG_RTT = 53;
+  static final int WAIT_SEC = 54;
+  static final int TIME_SEC = 55;
+  static final int ORDER = 56;
+  static final int RWIN_TIME = 57;
+  static final int SEND_TIME = 58;
+  static final int CWND_TIME = 59;
+  static final int RTT_SEC = 60;
+  static final int RWIN = 61;
+  static final int SWIN = 62;
+  static final int CWIN = 63;
+  static final int SPD = 64;
+  static final int ASPD = 65;
+
+  /** Index of the first real-valued field. */
+  private static final int FIRST_DOUBLE = BW;
+
+  private static final int FIELD_COUNT = ASPD + 1;
+
+  /** Maps a variable name, as sent by the server, to its field index. */
+  private static final HashMap<String, Integer> FIELDS =
+      new HashMap<String, Integer>();
+
+  /** The variable name of each field index, the inverse of {@link #FIELDS}. */
+  private static final String[] NAMES = new String[FIELD_COUNT];
+
+  static {
+    FIELDS.put("MSSSent:", MSS_SENT);
+    FIELDS.put("MSSRcvd:", MSS_RCVD);
+    FIELDS.put("ECNEnabled:", ECN_ENABLED);
+    FIELDS.put("NagleEnabled:", NAGLE_ENABLED);
+    FIELDS.put("SACKEnabled:", SACK_ENABLED);
+    FIELDS.put("TimestampsEnabled:", TIMESTAMPS_ENABLED);
+    FIELDS.put("WinScaleRcvd:", WIN_SCALE_RCVD);
+    FIELDS.put("WinScaleSent:", WIN_SCALE_SENT);
+    FIELDS.put("SumRTT:", SUM_RTT);
+    FIELDS.put("CountRTT:", COUNT_RTT);
+    FIELDS.put("CurMSS:", CUR_MSS);
+    FIELDS.put("Timeouts:", TIMEOUTS);
+    FIELDS.put("PktsRetrans:", PKTS_RETRANS);
+    FIELDS.put("SACKsRcvd:", SACKS_RCVD);
+    FIELDS.put("DupAcksIn:", DUP_ACKS_IN);
+    FIELDS.put("MaxRwinRcvd:", MAX_RWIN_RCVD);
+    FIELDS.put("MaxRwinSent:", MAX_RWIN_SENT);
+    FIELDS.put("Sndbuf:", SNDBUF);
+    FIELDS.put("X_Rcvbuf:", RCVBUF);
+    FIELDS.put("DataPktsOut:", DATA_PKTS_OUT);
+    FIELDS.put("FastRetran:", FAST_RETRAN);
+    FIELDS.put("AckPktsOut:", ACK_PKTS_OUT);
+    FIELDS.put("SmoothedRTT:", SMOOTHED_RTT);
+    FIELDS.put("CurCwnd:", CUR_CWND);
+    FIELDS.put("MaxCwnd:", MAX_CWND);
+    FIELDS.put("SndLimTimeRwin:", SND_LIM_TIME_RWIN);
+    FIELDS.put("SndLimTimeCwnd:", SND_LIM_TIME_CWND);
+    FIELDS.put("SndLimTimeSender:", SND_LIM_TIME_SENDER);
+    FIELDS.put("DataBytesOut:", DATA_BYTES_OUT);
+    FIELDS.put("AckPktsIn:", ACK_PKTS_IN);
+    FIELDS.put("SndLimTransRwin:", SND_LIM_TRANS_RWIN);
+    FIELDS.put("SndLimTransCwnd:", SND_LIM_TRANS_CWND);
+    FIELDS.put("SndLimTransSender:", SND_LIM_TRANS_SENDER);
+    FIELDS.put("MaxSsthresh:", MAX_SSTHRESH);
+    FIELDS.put("CurRTO:", CUR_RTO);
+    FIELDS.put("MaxRTO:", MAX_RTO);
+    FIELDS.put("MinRTO:", MIN_RTO);
+    FIELDS.put("MinRTT:", MIN_RTT);
+    FIELDS.put("MaxRTT:", MAX_RTT);
+    FIELDS.put("CurRwinRcvd:", CUR_RWIN_RCVD);
+    FIELDS.put("c2sData:", C2S_DATA);
+    FIELDS.put("c2sAck:", C2S_ACK);
+    FIELDS.put("s2cData:", S2C_DATA);
+    FIELDS.put("s2cAck:", S2C_ACK);
+    FIELDS.put("PktsOut:", PKTS_OUT);
+    FIELDS.put("mismatch:", MISMATCH);
+    FIELDS.put("congestion:", CONGESTION);
+    FIELDS.put("bad_cable:", BAD_CABLE);
+    FIELDS.put("half_duplex:", HALF_DUPLEX);
+    FIELDS.put("CongestionSignals:", CONGESTION_SIGNALS);
+    FIELDS.put("RcvWinScale:", RCV_WIN_SCALE);
+    FIELDS.put("bw:", BW);
+    FIELDS.put("loss:", LOSS);
+    FIELDS.put("avgrtt:", AVG_RTT);
+    FIELDS.put("waitsec:", WAIT_SEC);
+    FIELDS.put("timesec:", TIME_SEC);
+    FIELDS.put("order:", ORDER);
+    FIELDS.put("rwintime:", RWIN_TIME);
+    FIELDS.put("sendtime:", SEND_TIME);
+    FIELDS.put("cwndtime:", CWND_TIME);
+    FIELDS.put("rttsec:", RTT_SEC);
+    FIELDS.put("rwin:", RWIN);
+    FIELDS.put("swin:", SWIN);
+    FIELDS.put("cwin:", CWIN);
+    FIELDS.put("spd:", SPD);
+    FIELDS.put("aspd:", ASPD);
+    for (Map.Entry<String, Integer> entry : FIELDS.entrySet()) {
+      NAMES[entry.getValue()] = entry.getKey();
+    }
+  }
+
+  /** The values stored by {@link #set}, as sent, by field index. */
+  private final String[] values = new String[FIELD_COUNT];
+
+  /**
+   * The index of the field that holds a variable.
+   *
+   * @param name the variable name as sent by the server, e.g. "CurMSS:"
+   * @return the field index, or -1 if the variable is not kept
+   */
+  static int fieldIndex(String name) {
+    Integer index = FIELDS.get(name);
+    return (index == null) ? -1 : index.intValue();
+  }
+
+  /**
+   * Stores a variable sent by the server.
+   *
+   * @param name the variable name as sent by the server, e.g. "CurMSS:"
+   * @param value the variable's value, as sent by the server
+   * @return the index of the field that was set, or -1 if the variable is not
+   *     kept or its value does not parse
+   */
+  public int set(String name, String value) {
+    int field = fieldIndex(name);
+    if (field == -1) {
+      return -1;
+    }
+    try {
+      if (field >= FIRST_DOUBLE) {
+        setDouble(field, Double.parseDouble(value));
+      } else {
+        setInt(field, Integer.parseInt(value));
+      }
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    values[field] = value;
+    return field;
+  }
+
+  /**
+   * The variables stored by {@link #set(String, String)}, in field order.
+   *
+   * @return each variable's value, a {@link Long} for an integer and a
+   *     {@link Double} otherwise, by its name without the colon, e.g. "CurMSS"
+   */
+  public Map<String, Number> getVariables() {
+    LinkedHashMap<String, Number> variables =
+        new LinkedHashMap<String, Number>();
+    for (int i = 0; i < FIELD_COUNT; ++i) {
+      if (values[i] == null) {
+        continue;
+      }
+      Number number = Web100Parser.toNumber(values[i]);
+      if (number != null) {
+        variables.put(Web100Parser.bareName(NAMES[i]), number);
+      }
+    }
+    return variables;
+  }
+
+  private void setInt(int field, int value) {
+    switch (field) {
+      case MSS_SENT:
+        MSSSent = value;
+        break;
+      case MSS_RCVD:
+        MSSRcvd = value;
+        break;
+      case ECN_ENABLED:
+        ECNEnabled = value;
+        break;
+      case NAGLE_ENABLED:
+        NagleEnabled = value;
+        break;
+      case SACK_ENABLED:
+        SACKEnabled = value;
+        break;
+      case TIMESTAMPS_ENABLED:
+        TimestampsEnabled = value;
+        break;
+      case WIN_SCALE_RCVD:
+        WinScaleRcvd = value;
+        break;
+      case WIN_SCALE_SENT:
+        WinScaleSent = value;
+        break;
+      case SUM_RTT:
+        SumRTT = value;
+        break;
+      case COUNT_RTT:
+        CountRTT = value;
+        break;
+      case CUR_MSS:
+        CurrentMSS = value;
+        break;
+      case TIMEOUTS:
+        Timeouts = value;
+        break;
+      case PKTS_RETRANS:
+        PktsRetrans = value;
+        break;
+      case SACKS_RCVD:
+        SACKsRcvd = value;
+        break;
+      case DUP_ACKS_IN:
+        DupAcksIn = value;
+        break;
+      case MAX_RWIN_RCVD:
+        MaxRwinRcvd = value;
+        break;
+      case MAX_RWIN_SENT:
+        MaxRwinSent = value;
+        break;
+      case SNDBUF:
+        Sndbuf = value;
+        break;
+      case RCVBUF:
+        Rcvbuf = value;
+        break;
+      case DATA_PKTS_OUT:
+        DataPktsOut = value;
+        break;
+      case FAST_RETRAN:
+        FastRetran = value;
+        break;
+      case ACK_PKTS_OUT:
+        AckPktsOut = value;
+        break;
+      case SMOOTHED_RTT:
+        SmoothedRTT = value;
+        break;
+      case CUR_CWND:
+        CurrentCwnd = value;
+        break;
+      case MAX_CWND:
+        MaxCwnd = value;
+        break;
+      case SND_LIM_TIME_RWIN:
+        SndLimTimeRwin = value;
+        break;
+      case SND_LIM_TIME_CWND:
+        SndLimTimeCwnd = value;
+        break;
+      case SND_LIM_TIME_SENDER:
+        SndLimTimeSender = value;
+        break;
+      case DATA_BYTES_OUT:
+        DataBytesOut = value;
+        break;
+      case ACK_PKTS_IN:
+        AckPktsIn = value;
+        break;
+      case SND_LIM_TRANS_RWIN:
+        SndLimTransRwin = value;
+        break;
+      case SND_LIM_TRANS_CWND:
+        SndLimTransCwnd = value;
+        break;
+      case SND_LIM_TRANS_SENDER:
+        SndLimTransSender = value;
+        break;
+      case MAX_SSTHRESH:
+        MaxSsthresh = value;
+        break;
+      case CUR_RTO:
+        CurrentRTO = value;
+        break;
+      case MAX_RTO:
+        MaxRTO = value;
+        break;
+      case MIN_RTO:
+        MinRTO = value;
+        break;
+      case MIN_RTT:
+        MinRTT = value;
+        break;
+      case MAX_RTT:
+        MaxRTT = value;
+        break;
+      case CUR_RWIN_RCVD:
+        CurRwinRcvd = value;
+        break;
+      case C2S_DATA:
+        c2sData = value;
+        break;
+      case C2S_ACK:
+        c2sAck = value;
+        break;
+      case S2C_DATA:
+        s2cData = value;
+        break;
+      case S2C_ACK:
+        s2cAck = value;
+        break;
+      case PKTS_OUT:
+        PktsOut = value;
+        break;
+      case MISMATCH:
+        mismatch = value;
+        break;
+      case CONGESTION:
+        congestion = value;
+        break;
+      case BAD_CABLE:
+        bad_cable = value;
+        break;
+      case HALF_DUPLEX:
+        half_duplex = value;
+        break;
+      case CONGESTION_SIGNALS:
+        CongestionSignals = value;
+        break;
+      case RCV_WIN_SCALE:
+        // Kept from the applet: a scale above 15 is bogus.
+        if (RcvWinScale > 15)
+          RcvWinScale = 0;
+        else
+          RcvWinScale = value;
+        break;
+    }
+  }
+
+  private void setDouble(int field, double value) {
+    switch (field) {
+      case BW:
+        estimate = value;
+        break;
+      case LOSS:
+        loss = value;
+        break;
+      case AVG_RTT:
+        avgrtt = value;
+        break;
+      case WAIT_SEC:
+        waitsec = value;
+        break;
+      case TIME_SEC:
+        timesec = value;
+        break;
+      case ORDER:
+        order = value;
+        break;
+      case RWIN_TIME:
+        rwintime = value;
+        break;
+      case SEND_TIME:
+        sendtime = value;
+        break;
+      case CWND_TIME:
+        cwndtime = value;
+        break;
+      case RTT_SEC:
+        rttsec = value;
+        break;
+      case RWIN:
+        rwin = value;
+        break;
+      case SWIN:
+        swin = value;
+        break;
+      case CWIN:
+        cwin = value;
+        break;
+      case SPD:
+        spd = value;
+        break;
+      case ASPD:
+        aspd = value;
+        break;
+    }
+  }
+}
@@ -64,7 +64,16 @@ as Operator of Argonne National Laboratory (http://miranda.ctd.anl.gov:7123/).
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 public class NdtTests implements Runnable {
@@ -76,40 +85,91 @@ public class NdtTests implements Runnable {
   public static final String NETWORK_WIRED = "WIRED";
   public static final String NETWORK_UNKNOWN = "UNKNOWN";
 
-  private static final byte TEST_MID = (1 << 0);
-  private static final byte TEST_C2S = (1 << 1);
-  private static final byte TEST_S2C = (1 << 2);
-  private static final byte TEST_SFW = (1 << 3);
-  private static final byte TEST_STATUS = (1 << 4);
-  private static final byte TEST_META = (1 << 5);
-
-  private static final String META_CLIENT_OS = "client.os.name";
-  private static final String META_BROWSER_OS = "client.browser.name";
-  private static final String META_CLIENT_KERNEL_VERSION = "client.kernel.version";
-  private static final String META_CLIENT_VERSION = "client.version";
-  private static final String META_CLIENT_APPLICATION = "client.application";
+  // Test bits of the suite requested at login; see setTests().
+  /** The middlebox test. */
+  public static final byte TEST_MID = (1 << 0);
+  /** The client-to-server (upload) throughput test. */
+  public static final byte TEST_C2S = (1 << 1);
+  /** The server-to-client (download) throughput test. */
+  public static final byte TEST_S2C = (1 << 2);
+  /** The simple firewall test. */
+  public static final byte TEST_SFW = (1 << 3);
+  /** Not a test: tells the server the client understands MSG_WAITING. */
+  static final byte TEST_STATUS = (1 << 4);
+  /** The test that sends the client's metadata. */
+  public static final byte TEST_META = (1 << 5);
+  /** Every test; the default suite. */
+  public static final byte TESTS_ALL =
+      TEST_MID | TEST_C2S | TEST_S2C | TEST_SFW | TEST_META;
+
+  static final String META_CLIENT_OS = "client.os.name";
+  static final String META_BROWSER_OS = "client.browser.name";
+  static final String META_CLIENT_KERNEL_VERSION = "client.kernel.version";
+  static final String META_CLIENT_VERSION = "client.version";
+  static final String META_CLIENT_APPLICATION = "client.application";
 
   /* we really should do some clean-up in this java code... maybe later ;) */
   //private static final byte COMM_FAILURE  = 0;
-  private static final byte SRV_QUEUE     = 1;
-  private static final byte MSG_LOGIN     = 2;
-  private static final byte TEST_PREPARE  = 3;
-  private static final byte TEST_START    = 4;
-  private static final byte TEST_MSG      = 5;
-  private static final byte TEST_FINALIZE = 6;
-  private static final byte MSG_ERROR     = 7;
-  private static final byte MSG_RESULTS   = 8;
-  private static final byte MSG_LOGOUT    = 9;
-  private static final byte MSG_WAITING   = 10;
-
-  private static final int SFW_NOTTESTED  = 0;
-  private static final int SFW_NOFIREWALL = 1;
-  private static final int SFW_UNKNOWN    = 2;
-  private static final int SFW_POSSIBLE   = 3;
+  static final byte SRV_QUEUE     = 1;
+  static final byte MSG_LOGIN     = 2;
+  static final byte TEST_PREPARE  = 3;
+  static final byte TEST_START    = 4;
+  static final byte TEST_MSG      = 5;
+  static final byte TEST_FINALIZE = 6;
+  static final byte MSG_ERROR     = 7;
+  static final byte MSG_RESULTS   = 8;
+  static final byte MSG_LOGOUT    = 9;
+  static final byte MSG_WAITING   = 10;
+
+  // Outcomes of the simple firewall test, for each direction.
+  public static final int SFW_NOTTESTED  = 0;
+  public static final int SFW_NOFIREWALL = 1;
+  public static final int SFW_UNKNOWN    = 2;
+  public static final int SFW_POSSIBLE   = 3;
 
   private static final double VIEW_DIFF = 0.1;
 
-  private static final int CONTROL_PORT = 3001;
+  static final int CONTROL_PORT = 3001;
+
+  /** S2C data is read through a blocking InputStream (the original loop). */
+  public static final int S2C_RECEIVER_STREAM = 0;
+  /** S2C data is drained through a SocketChannel into a direct buffer. */
+  public static final int S2C_RECEIVER_CHANNEL = 1;
+
+  /** C2S data is written through a blocking OutputStream (the original loop). */
+  public static final int C2S_SENDER_STREAM = 0;
+  /**
+   * C2S data is written through a SocketChannel from a shared direct buffer,
+   * sized to the socket's send buffer.
+   */
+  public static final int C2S_SENDER_CHANNEL = 1;
+
+  /** Default length of a throughput sample interval, in milliseconds. */
+  public static final int DEFAULT_SAMPLE_INTERVAL = 100;
+
+  /**
+   * Most parallel data connections per direction; each stream costs a
+   * socket and its buffers on both ends.
+   */
+  public static final int MAX_STREAMS = 16;
+
+  /** Default sliding window used by the adaptive-duration mode, in ms. */
+  public static final int DEFAULT_CONVERGENCE_WINDOW = 1000;
+
+  /** Time between latency probes during a data phase, in milliseconds. */
+  static final int LOADED_PROBE_INTERVAL = 250;
+
+  /**
+   * How long the simple firewall test waits for its listener past the test
+   * time, in milliseconds.
+   */
+  private static final int SFW_GRACE = 1000;
+
+  /** See {@link #workers()}. */
+  private static ExecutorService workers;
+
+  /** Shortest data phase in the adaptive-duration mode, in milliseconds. */
+  static final int MIN_ADAPTIVE_DURATION = 2000;
 
   private TextOutputAdapter diagnosis, statistics;
   private TextOutputAdapter results;
@@ -119,38 +179,63 @@ public class NdtTests implements Runnable {
   URL location;
   String s;
   double t;
-  int ECNEnabled, NagleEnabled, MSSSent, MSSRcvd;
-  int SACKEnabled, TimestampsEnabled, WinScaleRcvd, WinScaleSent;
-  int FastRetran, AckPktsOut, SmoothedRTT, CurrentCwnd, MaxCwnd;
-  int SndLimTimeRwin, SndLimTimeCwnd, SndLimTimeSender;
-  int SndLimTransRwin, SndLimTransCwnd, SndLimTransSender, MaxSsthresh;
-  int SumRTT, CountRTT, CurrentMSS, Timeouts, PktsRetrans;
-  int SACKsRcvd, DupAcksIn, MaxRwinRcvd, MaxRwinSent;
-  int DataPktsOut, Rcvbuf, Sndbuf, AckPktsIn, DataBytesOut;
-  int PktsOut, CongestionSignals, RcvWinScale;
-  int pkts, lth=8192, CurrentRTO;
-  int c2sData, c2sAck, s2cData, s2cAck;
+  int pkts, lth=8192;
+
+  /** The web100 variables sent by the server during the S2C test and at the end. */
+  NdtResult result = new NdtResult();
+  private Web100Parser web100;
+  /** The web100 variables as "name value" lines, in the order they arrived. */
+  private final ArrayList<String> web100Lines = new ArrayList<String>();
 
   String emailText;
   double s2cspd, c2sspd, sc2sspd, ss2cspd;
   int ssndqueue;
   double sbytes;
 
-  int half_duplex, congestion, bad_cable, mismatch;
   double mylink;
-  double loss, estimate, avgrtt, spd, waitsec, timesec, rttsec;
-  double order, rwintime, sendtime, cwndtime, rwin, swin, cwin;
-  double aspd;
 
-  String tmpstr, tmpstr2;
-  byte tests = TEST_MID | TEST_C2S | TEST_S2C | TEST_SFW | TEST_STATUS | TEST_META;
+  String tmpstr2;
+  /** The tests requested for the next run. */
+  private byte requestedTests = TESTS_ALL | TEST_STATUS;
+  /** The tests of this run; a test that fails is taken out. */
+  byte tests = requestedTests;
   int c2sResult = SFW_NOTTESTED;
   int s2cResult = SFW_NOTTESTED;
 
   private ResourceBundle messages;
 
+  private int s2cReceiver = S2C_RECEIVER_STREAM;
+  private ChannelReceiver channelReceiver;
+  private int c2sSender = C2S_SENDER_STREAM;
+  private ChannelSender channelSender;
+  private int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+  private int streams = 1;
+  private double convergenceThreshold = 0;
+  private int convergenceWindow = DEFAULT_CONVERGENCE_WINDOW;
+  private boolean latencyProbes;
+  private int timeLimit;
+  private long byteBudget;
+  private SocketTuning tuning = new SocketTuning();
+  /** Receives the transcript of the next run; null if it is not recorded. */
+  private OutputStream transcript;
+  private Transcript.Recorder recorder;
+  /** Fastest control or middlebox handshake of this run, in ms; 0 if none. */
+  private double handshakeMillis;
+  /** Throughput of this run's middlebox test, in Mb/s; 0 if it did not run. */
+  private double midMbps;
+  /** Enforces {@link #timeLimit} while {@link #run()} runs. */
+  private Deadline deadline;
+  private LatencyProbe loadedProbe;
+  private Future<LatencyProbe> loadedProbeResult;
+
   private final String host;
+  private String alternateHost;
+  /** The server's address, chosen once at the start of each run. */
+  private InetAddress serverAddress;
   private final UiServices uiServices;
+  private final boolean headless;
+  /** The client whose resources the run borrows; null if standalone. */
+  private final NdtClient client;
   //private final String networkType;
 
   /*
@@ -161,29 +246,279 @@ public class NdtTests implements Runnable {
    * @param networkType indicates the type of network, e.g. 3G, Wifi, Wired, etc.
    */
   public NdtTests(String host, UiServices uiServices, String networkType) {
+    this(host, uiServices, networkType, false);
+  }
+
+  /**
+   * Initializes the network test thread.
+   *
+   * @param host hostname of the test server
+   * @param uiServices object for UI interaction
+   * @param networkType indicates the type of network, e.g. 3G, Wifi, Wired, etc.
+   * @param headless if true, only structured results are produced: the
+   *     message bundle is never loaded, no report text is built, and the
+   *     diagnosis view only receives the raw web100 "name: value" lines;
+   *     error messages carry the bundle key instead of the localized text
+   */
+  public NdtTests(String host, UiServices uiServices, String networkType,
+      boolean headless) {
+    this(null, host, uiServices, headless);
+    //this.networkType = networkType;
+  }
+
+  /**
+   * A session of a long-lived client; see
+   * {@link NdtClient#newBlockingSession(String, UiServices, boolean)}.
+   */
+  NdtTests(NdtClient client, String host, UiServices uiServices,
+      boolean headless) {
+    this.client = client;
     this.host = host;
     this.uiServices = uiServices;
-    //this.networkType = networkType;
+    this.headless = headless;
     diagnosis = new TextOutputAdapter(uiServices, UiServices.DIAG_VIEW);
     statistics = new TextOutputAdapter(uiServices, UiServices.STAT_VIEW);
     results = new TextOutputAdapter(uiServices, UiServices.STAT_VIEW);
+    if (headless) {
+      return;
+    }
+    messages = client != null ? client.messages() : loadMessages();
+  }
+
+  /** The message bundle of the default locale. */
+  static ResourceBundle loadMessages() {
     try { 
-      messages = ResourceBundle.getBundle("Tcpbw100_msgs", Locale.getDefault());
+      return ResourceBundle.getBundle("Tcpbw100_msgs", Locale.getDefault());
     } catch (MissingResourceException e) {
       // Fall back to US English if the locale we want is missing
-      messages = ResourceBundle.getBundle("Tcpbw100_msgs", new Locale("en", "US"));
-     
+      return ResourceBundle.getBundle("Tcpbw100_msgs", new Locale("en", "US"));
+    }
+  }
+
+  /**
+   * The data written by the blocking C2S test: the characters '0' through
+   * 'y', repeated over the first 8 KB, then zeros.
+   */
+  static byte[] newStreamPayload() {
+    byte[] buff = new byte[64*1024];
+    byte c = '0';
+    for (int i = 0; i < 8192; i++) {
+      if (c == 'z')
+        c = '0';
+      buff[i] = c++;
     }
+    return buff;
+  }
+
+  /**
+   * Selects the loop that receives the S2C (download) test data.
+   *
+   * Both engines report the result in s2cspd, so they can be compared against
+   * each other on the same link.
+   *
+   * @param receiver {@link #S2C_RECEIVER_STREAM} (the default) or
+   *     {@link #S2C_RECEIVER_CHANNEL}
+   */
+  public void setS2cReceiver(int receiver) {
+    s2cReceiver = receiver;
+  }
+
+  /**
+   * Selects the loop that sends the C2S (upload) test data.
+   *
+   * @param sender {@link #C2S_SENDER_STREAM} (the default) or
+   *     {@link #C2S_SENDER_CHANNEL}
+   */
+  public void setC2sSender(int sender) {
+    c2sSender = sender;
+  }
+
+  /**
+   * Sets the length of the intervals reported by
+   * {@link UiServices#onThroughputSamples(String, int, long[])}.
+   *
+   * @param intervalMillis interval length in milliseconds, at least 1; the
+   *     default is {@link #DEFAULT_SAMPLE_INTERVAL}
+   */
+  public void setSampleInterval(int intervalMillis) {
+    sampleInterval = Math.max(1, intervalMillis);
+  }
+
+  /**
+   * Sets the number of parallel data connections used by the C2S and S2C
+   * tests.
+   *
+   * All the connections go to the port announced by the server in
+   * TEST_PREPARE, so the server must accept several connections per test for
+   * the extra streams to carry data.
+   *
+   * @param streams number of connections per direction, clamped to
+   *     1..{@value #MAX_STREAMS}; the default is 1
+   */
+  public void setStreams(int streams) {
+    this.streams = Math.max(1, Math.min(MAX_STREAMS, streams));
+  }
+
+  /**
+   * Turns on the adaptive-duration mode.
+   *
+   * In this mode the C2S and S2C data phases end as soon as the throughput
+   * samples in a sliding window vary by less than the threshold, instead of
+   * running for the full 10 (C2S) or 14.5 (S2C) seconds. The control protocol
+   * then continues as usual; the server measures over however long the data
+   * connection stayed open.
+   *
+   * @param threshold largest coefficient of variation (standard deviation over
+   *     mean) of the samples in the window that ends a phase, e.g. 0.1; 0 turns
+   *     the mode off, which is the default
+   * @param windowMillis length of the sliding window, in milliseconds
+   */
+  public void setAdaptiveDuration(double threshold, int windowMillis) {
+    convergenceThreshold = threshold;
+    convergenceWindow = windowMillis;
+  }
+
+  /**
+   * Turns on latency probes.
+   *
+   * The round-trip time to the server is measured before the tests, while
+   * the link is idle, and again throughout the C2S and S2C data phases, while
+   * the tests keep it busy; the growth of the delay under load is what
+   * interactive traffic feels. The probes run on {@link NdtReactor#shared()}
+   * and only time TCP handshakes with the control port, which the server's
+   * kernel answers even while the server runs a test. The results go to
+   * {@link UiServices#onLatency(String, LatencyStats)}.
+   *
+   * @param enabled true to probe; the default is false
+   */
+  public void setLatencyProbes(boolean enabled) {
+    latencyProbes = enabled;
+  }
+
+  /**
+   * Caps the bytes moved by each of the C2S and S2C data phases.
+   *
+   * A data phase that reaches the budget ends right away, with the stop
+   * reason "budget"; the throughput is computed over the transfer so far, as
+   * in the adaptive-duration mode. This keeps the data cost of a measurement
+   * on a metered link predictable: roughly twice the budget, plus the
+   * middlebox test, which the server drives.
+   *
+   * The client's C2S figure counts the bytes handed to the kernel, so with a
+   * budget close to the socket's send buffer it reads high; the server's own
+   * C2S measurement is not affected.
+   *
+   * @param bytes the budget per data phase; 0, the default, means no limit
+   */
+  public void setByteBudget(long bytes) {
+    byteBudget = bytes;
+  }
+
+  /**
+   * Sets the socket options applied to every connection the tests open.
+   *
+   * With the default tuning, the data connections' buffers are sized from the
+   * RTT of the control connection's handshake and the rate of the middlebox
+   * test, when that beats the kernel's auto-tuning. The sizes used end up in
+   * {@link NdtResult#clientSndbuf} and {@link NdtResult#clientRcvbuf}.
+   */
+  public void setSocketTuning(SocketTuning tuning) {
+    this.tuning = tuning;
+  }
+
+  /**
+   * Adds another name for the server, whose addresses join the race for the
+   * control connection.
+   *
+   * The control connection goes to the first IPv6 and the first IPv4
+   * address found under the two names, raced as described in
+   * {@link DualStack}; every other connection of the run follows the winner.
+   * The family used and the loser end up in {@link NdtResult#clientFamily}
+   * and {@link NdtResult#clientRaceLoser}. Without an alternate name, the
+   * race is between the families of the server's own name, if it has both.
+   *
+   * @param alternateHost e.g. the name M-Lab NS gives for the other address
+   *     family; null, the default, for none
+   */
+  public void setAlternateHost(String alternateHost) {
+    this.alternateHost = alternateHost;
+  }
+
+  /**
+   * Sets a limit on the time taken by {@link #run()}.
+   *
+   * When the time runs out, every connection of the measurement is closed, so
+   * even a blocked read or connect returns within milliseconds. The data phase
+   * that was running ends with the stop reason "deadline" and still reports
+   * what it measured; the measurement then fails with "timeLimitReached".
+   *
+   * @param millis the limit, in milliseconds; 0, the default, means no limit
+   */
+  public void setTimeLimit(int millis) {
+    timeLimit = millis;
+  }
+
+  /**
+   * Selects the tests that are requested from the server at login.
+   *
+   * Tests that are left out cost neither time nor data, e.g. a run that only
+   * asks for {@link #TEST_S2C} skips the middlebox and firewall tests.
+   *
+   * @param tests a combination of the TEST_* bits; the default is
+   *     {@link #TESTS_ALL}
+   */
+  public void setTests(int tests) {
+    requestedTests = (byte) ((tests & TESTS_ALL) | TEST_STATUS);
+  }
+
+  /**
+   * Records the control channel of the next run, as described in
+   * {@link Transcript}. A recorded run can be played back to the client with
+   * {@link LocalNdtServer#setReplay}, without a real server.
+   *
+   * @param out receives the transcript; it is flushed when the run ends but
+   *     not closed. Only the next run is recorded.
+   */
+  public void setTranscript(OutputStream out) {
+    transcript = out;
   }
 
   public void run() {
     uiServices.onBeginTest();
+    deadline = null;
+    serverAddress = null;
+    if (timeLimit > 0) {
+      try {
+        deadline = new Deadline(NdtReactor.shared(), timeLimit);
+      } catch (IOException e) {
+        uiServices.logError("Cannot enforce the time limit: " + e);
+      }
+    }
+    if (latencyProbes) {
+      probeIdleLatency();
+    }
     try {
       dottcp();
     } catch (IOException e) {
       uiServices.logError("Error running test: " + e);
       failed = true;
-      errmsg = messages.getString("serverBusy30s") + "\n";
+      errmsg = text("serverBusy30s") + "\n";
+    }
+    if (recorder != null) {
+      try {
+        recorder.flush();
+      } catch (IOException e) {
+        uiServices.logError("Could not write the transcript: " + e);
+      }
+      recorder = null;
+      transcript = null;
+    }
+    if (deadline != null) {
+      deadline.cancel();
+      if (deadline.hasExpired()) {
+        failed = true;
+        errmsg = text("timeLimitReached") + "\n";
+      }
     }
     if (failed) {
       uiServices.logError(errmsg);
@@ -194,68 +529,251 @@ public class NdtTests implements Runnable {
     return;
   }
 
-  class Message {
+  /** Measures the round-trip time to the server before the tests. */
+  private void probeIdleLatency()
+  {
+    LatencyProbe probe = newLatencyProbe();
+    try {
+      probe.start().get();
+    } catch (IOException e) {
+      return;
+    } catch (ExecutionException e) {
+      // Reported as no samples; the tests will say what is wrong.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    uiServices.onLatency("idle", probe.getConnectTimes());
+  }
+
+  /** Starts measuring the round-trip time during a data phase. */
+  private void startLoadedProbe(long durationMillis)
+  {
+    if (!latencyProbes) {
+      return;
+    }
+    loadedProbe = newLatencyProbe();
+    loadedProbe.setProbes(Integer.MAX_VALUE);
+    loadedProbe.setInterval(LOADED_PROBE_INTERVAL);
+    loadedProbe.setTimeout((int) Math.min(durationMillis, remainingMillis()));
+    try {
+      loadedProbeResult = loadedProbe.start();
+    } catch (IOException e) {
+      loadedProbe = null;
+    }
+  }
+
+  /** Stops the data phase's latency probe and reports its samples. */
+  private void endLoadedProbe(String test)
+  {
+    if (loadedProbe == null) {
+      return;
+    }
+    loadedProbe.stop();
+    try {
+      loadedProbeResult.get();
+    } catch (ExecutionException e) {
+      // No samples.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    uiServices.onLatency(test, loadedProbe.getConnectTimes());
+    loadedProbe = null;
+  }
+
+  /** A latency probe that only times handshakes with the control port. */
+  private LatencyProbe newLatencyProbe()
+  {
+    // Once the run has resolved the server, the probes reuse its address.
+    LatencyProbe probe = new LatencyProbe(NdtReactor.shared(),
+        serverAddress != null ? serverAddress.getHostAddress() : host);
+    probe.setLoginExchange(false);
+    probe.setTimeout((int) Math.min(LatencyProbe.DEFAULT_TIMEOUT,
+        remainingMillis()));
+    return probe;
+  }
+
+  /** The time left before the time limit, or a very long time if none. */
+  private long remainingMillis()
+  {
+    return deadline != null
+        ? Math.max(1, deadline.remainingMillis()) : Integer.MAX_VALUE;
+  }
+
+  static class Message {
     byte type;
+    /**
+     * The message body is in body[0 .. length - 1]. The array belongs to the
+     * Protocol that received the message and is overwritten by its next read.
+     */
     byte[] body;
+    int length;
   }
   
-  class Protocol {
+  /**
+   * Frames NDT control messages: a type byte, a 2-byte big-endian length, then
+   * the body.
+   *
+   * Receive buffers are reused across messages, and each message is sent with
+   * a single write so Nagle's algorithm cannot hold the body back behind the
+   * header. The counters show how much traffic the control channel carried.
+   */
+  static class Protocol {
+    /** Largest body that fits in the 2-byte length field. */
+    static final int MAX_BODY = 0xFFFF;
+
     private InputStream _ctlin;
     private OutputStream _ctlout;
 
+    /** Holds the header and body of the message being sent. */
+    private byte[] sendBuffer = new byte[3 + 256];
+    /** Holds the body of the last message received. */
+    private byte[] recvBuffer = new byte[256];
+    /** Holds the header of the message being received. */
+    private final byte[] header = new byte[3];
+
+    private int messagesSent, messagesReceived;
+    private long bytesSent, bytesReceived;
+
+    /** Records every message; null if the channel is not recorded. */
+    private Transcript.Recorder recorder;
+
     public Protocol(Socket ctlSocket) throws IOException
     {
-      _ctlin = ctlSocket.getInputStream();
-      _ctlout = ctlSocket.getOutputStream();
+      this(ctlSocket.getInputStream(), ctlSocket.getOutputStream());
+    }
+
+    public Protocol(InputStream ctlin, OutputStream ctlout)
+    {
+      _ctlin = ctlin;
+      _ctlout = ctlout;
     }
     
     public void send_msg(byte type, byte toSend) throws IOException
     {
-      byte[] tab = new byte[] { toSend };
-      send_msg(type, tab);
+      ensureSendCapacity(1);
+      sendBuffer[3] = toSend;
+      send(type, 1);
     }
 
     public void send_msg(byte type, byte[] tab) throws IOException
     {
-      byte[] header = new byte[3];
-      header[0] = type;
-      header[1] = (byte) (tab.length >> 8);
-      header[2] = (byte) tab.length;
-      
-      _ctlout.write(header);
-      _ctlout.write(tab);
+      ensureSendCapacity(tab.length);
+      System.arraycopy(tab, 0, sendBuffer, 3, tab.length);
+      send(type, tab.length);
     }
 
-    public int readn(Message msg, int amount) throws IOException
+    /** Sends the message whose body is already in sendBuffer[3 ..]. */
+    private void send(byte type, int length) throws IOException
+    {
+      sendBuffer[0] = type;
+      sendBuffer[1] = (byte) (length >> 8);
+      sendBuffer[2] = (byte) length;
+      _ctlout.write(sendBuffer, 0, 3 + length);
+      messagesSent++;
+      bytesSent += 3 + length;
+      if (recorder != null) {
+        recorder.record(Transcript.SENT, type, sendBuffer, 3, length);
+      }
+    }
+
+    /** Records the messages sent and received from now on. */
+    void setRecorder(Transcript.Recorder recorder)
+    {
+      this.recorder = recorder;
+    }
+
+    private void ensureSendCapacity(int length) throws IOException
+    {
+      if (length > MAX_BODY) {
+        throw new IOException("Control message too long: " + length);
+      }
+      if (sendBuffer.length < 3 + length) {
+        sendBuffer = new byte[3 + length];
+      }
+    }
+
+    /** Reads exactly amount bytes into buffer, unless the stream ends. */
+    private int readFully(byte[] buffer, int amount) throws IOException
     {
       int read = 0; 
       int tmp;
-      msg.body = new byte[amount];
       while (read != amount) {
-        tmp = _ctlin.read(msg.body, read, amount - read);
+        tmp = _ctlin.read(buffer, read, amount - read);
         if (tmp <= 0) {
-          return read;
+          break;
         }
         read += tmp;
       }
+      bytesReceived += read;
       return read;
     }
+
+    /** Reads bytes that are not a framed message, e.g. the kickoff. */
+    public int readn(Message msg, int amount) throws IOException
+    {
+      readBody(msg, amount);
+      if (recorder != null) {
+        recorder.record(Transcript.RAW, (byte) 0, msg.body, 0, msg.length);
+      }
+      return msg.length;
+    }
+
+    private int readBody(Message msg, int amount) throws IOException
+    {
+      if (recvBuffer.length < amount) {
+        recvBuffer = new byte[amount];
+      }
+      msg.body = recvBuffer;
+      msg.length = readFully(recvBuffer, amount);
+      return msg.length;
+    }
     
     public int recv_msg(Message msg) throws IOException
     {
       int length;
-      if (readn(msg, 3) != 3) {
+      int read = readFully(header, 3);
+      if (read != 3) {
+        msg.body = header;
+        msg.length = read;
         return 1;
       }
-      msg.type = msg.body[0];
-      length = ((int) msg.body[1] & 0xFF) << 8;
-      length += (int) msg.body[2] & 0xFF; 
-      if (readn(msg, length) != length) {
+      msg.type = header[0];
+      length = ((int) header[1] & 0xFF) << 8;
+      length += (int) header[2] & 0xFF; 
+      if (readBody(msg, length) != length) {
         return 3;
       }
+      messagesReceived++;
+      if (recorder != null) {
+        recorder.record(Transcript.RECEIVED, msg.type, msg.body, 0, length);
+      }
       return 0;
     }
 
+    /** The number of messages sent so far. */
+    public int getMessagesSent()
+    {
+      return messagesSent;
+    }
+
+    /** The number of complete messages received so far. */
+    public int getMessagesReceived()
+    {
+      return messagesReceived;
+    }
+
+    /** The number of bytes sent so far, headers included. */
+    public long getBytesSent()
+    {
+      return bytesSent;
+    }
+
+    /** The number of bytes received so far, headers included. */
+    public long getBytesReceived()
+    {
+      return bytesReceived;
+    }
+
     public void close()
     {
       try {
@@ -268,6 +786,26 @@ public class NdtTests implements Runnable {
     }
   }
 
+  /** The short name of a test, as used in variable names and results. */
+  static String testName(int testId) {
+    switch (testId) {
+      case TEST_MID:
+        return "mid";
+      case TEST_C2S:
+        return "c2s";
+      case TEST_S2C:
+        return "s2c";
+      case TEST_SFW:
+        return "sfw";
+      case TEST_STATUS:
+        return "status";
+      case TEST_META:
+        return "meta";
+      default:
+        return "unknown";
+    }
+  }
+
   public static String hexStrToDecimalStr(String str) {  
     if ( isNumericHex(str) ) {
       return Integer.valueOf(str, 16).toString();
@@ -295,34 +833,36 @@ public class NdtTests implements Runnable {
       /* now look for middleboxes (firewalls, NATs, and other boxes that
        * muck with TCP's end-to-end priciples
        */
-      showStatus(messages.getString("middleboxTest"));
-      results.append(messages.getString("checkingMiddleboxes") + "  ");
-      statistics.append(messages.getString("checkingMiddleboxes") + "  ");
-      emailText = messages.getString("checkingMiddleboxes") + "  ";
+      if (!headless) {
+        showStatus(text("middleboxTest"));
+        results.append(text("checkingMiddleboxes") + "  ");
+        statistics.append(text("checkingMiddleboxes") + "  ");
+        emailText = text("checkingMiddleboxes") + "  ";
+      }
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_PREPARE) {
-        errmsg = messages.getString("mboxWrongMessage") + "\n";
+        errmsg = text("mboxWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      int midport = Integer.parseInt(new String(msg.body));
+      int midport = Integer.parseInt(new String(msg.body, 0, msg.length));
 
       Socket in2Socket = null;
       try {
-        in2Socket = new Socket(host, midport);
+        in2Socket = connectSocket(midport, SocketTuning.CONTROL);
       } catch (UnknownHostException e) {
         uiServices.logError("Don't know about host: " + host);
-        errmsg = messages.getString("unknownServer") + "\n" ;
+        errmsg = text("unknownServer") + "\n" ;
         return true;
       } catch (IOException e) {
         uiServices.logError("Couldn't perform middlebox testing to: " + host);
-        errmsg = messages.getString("middleboxFail") + "\n" ;
+        errmsg = text("middleboxFail") + "\n" ;
         return true;
       }
 
@@ -348,19 +888,20 @@ public class NdtTests implements Runnable {
       t =  System.currentTimeMillis() - t;
       System.out.println(bytes + " bytes " + (8.0 * bytes)/t + " kb/s " + t/1000 + " secs");
       s2cspd = ((8.0 * bytes) / 1000) / t;
+      midMbps = s2cspd;
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_MSG) {
-        errmsg = messages.getString("mboxWrongMessage") + "\n";
+        errmsg = text("mboxWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      tmpstr2 = new String(msg.body);
+      tmpstr2 = new String(msg.body, 0, msg.length);
 
       String tmpstr4 = Double.toString(s2cspd*1000);
       System.out.println("Sending '" + tmpstr4 + "' back to server");
@@ -372,7 +913,9 @@ public class NdtTests implements Runnable {
         uiServices.logError("Unable to obtain Servers IP addresses: using " + host);
         errmsg = "getInetAddress() called failed\n" ;
         tmpstr2 += host + ";";
-        results.append(messages.getString("lookupError") + "\n");
+        if (!headless) {
+          results.append(text("lookupError") + "\n");
+        }
       }
 
       uiServices.logError("calling in2Socket.getLocalAddress()");
@@ -389,19 +932,21 @@ public class NdtTests implements Runnable {
       in2Socket.close();
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_FINALIZE) {
-        errmsg = messages.getString("mboxWrongMessage");
+        errmsg = text("mboxWrongMessage");
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      results.append(messages.getString("done") + "\n");
-      statistics.append(messages.getString("done") + "\n");
-      emailText += messages.getString("done") + "\n%0A";
+      if (!headless) {
+        results.append(text("done") + "\n");
+        statistics.append(text("done") + "\n");
+        emailText += text("done") + "\n%0A";
+      }
     }
     return false;
   }
@@ -410,24 +955,26 @@ public class NdtTests implements Runnable {
   {
     Message msg = new Message();
     if ((tests & TEST_SFW) == TEST_SFW) {
-      showStatus(messages.getString("sfwTest"));
-      results.append(messages.getString("checkingFirewalls") + "  ");
-      statistics.append(messages.getString("checkingFirewalls") + "  ");
-      emailText = messages.getString("checkingFirewalls") + "  ";
+      if (!headless) {
+        showStatus(text("sfwTest"));
+        results.append(text("checkingFirewalls") + "  ");
+        statistics.append(text("checkingFirewalls") + "  ");
+        emailText = text("checkingFirewalls") + "  ";
+      }
       
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_PREPARE) {
-        errmsg = messages.getString("sfwWrongMessage") + "\n";
+        errmsg = text("sfwWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
 
-      String message = new String(msg.body);
+      String message = new String(msg.body, 0, msg.length);
 
       int srvPort, testTime;
       try {
@@ -436,7 +983,7 @@ public class NdtTests implements Runnable {
         testTime = Integer.parseInt(message.substring(k+1));
       }
       catch (Exception e) {
-        errmsg = messages.getString("sfwWrongMessage") + "\n";
+        errmsg = text("sfwWrongMessage") + "\n";
         return true;
       }
 
@@ -451,10 +998,11 @@ public class NdtTests implements Runnable {
               security.checkListen(0);
           }
           srvSocket = new ServerSocket(0);
+          watch(srvSocket);
       }
       catch (Exception e) {
         e.printStackTrace();
-        errmsg = messages.getString("sfwSocketFail") + "\n";
+        errmsg = text("sfwSocketFail") + "\n";
         return true;
       }
 
@@ -462,23 +1010,25 @@ public class NdtTests implements Runnable {
       ctl.send_msg(TEST_MSG, Integer.toString(srvSocket.getLocalPort()).getBytes());
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_START) {
-        errmsg = messages.getString("sfwWrongMessage");
+        errmsg = text("sfwWrongMessage");
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }     
 
-      OsfwWorker osfwTest = new OsfwWorker(srvSocket, testTime);
-      new Thread(osfwTest).start();
+      Future<Integer> osfwTest =
+          workers().submit(new OsfwWorker(srvSocket, testTime));
 
       Socket sfwSocket = new Socket();
+      watch(sfwSocket);
       try {
-        sfwSocket.connect(new InetSocketAddress(host, srvPort), testTime * 1000);
+        tuning.apply(sfwSocket, SocketTuning.CONTROL, 0);
+        sfwSocket.connect(new InetSocketAddress(serverAddress, srvPort), testTime * 1000);
 
         Protocol sfwCtl = new Protocol(sfwSocket);
         sfwCtl.send_msg(TEST_MSG, new String("Simple firewall test").getBytes());
@@ -488,72 +1038,84 @@ public class NdtTests implements Runnable {
       }
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_MSG) {
-        errmsg = messages.getString("sfwWrongMessage") + "\n";
+        errmsg = text("sfwWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      c2sResult = Integer.parseInt(new String(msg.body));
+      c2sResult = Integer.parseInt(new String(msg.body, 0, msg.length));
 
-      osfwTest.finalize();
+      s2cResult = awaitOsfw(osfwTest, srvSocket, testTime);
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_FINALIZE) {
-        errmsg = messages.getString("sfwWrongMessage") + "\n";
+        errmsg = text("sfwWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      results.append(messages.getString("done") + "\n");
-      statistics.append(messages.getString("done") + "\n");
-      emailText += messages.getString("done") + "\n%0A";
+      if (!headless) {
+        results.append(text("done") + "\n");
+        statistics.append(text("done") + "\n");
+        emailText += text("done") + "\n%0A";
+      }
     }
     return false;
   }
 
   public boolean test_c2s(Protocol ctl) throws IOException
   {
-    // byte buff2[] = new byte[8192];
-    byte buff2[] = new byte[64*1024];
     Message msg = new Message();
     if ((tests & TEST_C2S) == TEST_C2S) {
-      showStatus(messages.getString("outboundTest"));
-      results.append(messages.getString("runningOutboundTest") + " ");
-      statistics.append(messages.getString("runningOutboundTest") + " ");
-      emailText += messages.getString("runningOutboundTest") + " ";
+      if (!headless) {
+        showStatus(text("outboundTest"));
+        results.append(text("runningOutboundTest") + " ");
+        statistics.append(text("runningOutboundTest") + " ");
+        emailText += text("runningOutboundTest") + " ";
+      }
       
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_PREPARE) {
-        errmsg = messages.getString("outboundWrongMessage") + "\n";
+        errmsg = text("outboundWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      int c2sport = Integer.parseInt(new String(msg.body));
+      int c2sport = Integer.parseInt(new String(msg.body, 0, msg.length));
+
+      DataConnections connections = new DataConnections(c2sport,
+          SocketTuning.UPLOAD, c2sSender == C2S_SENDER_CHANNEL);
+
+      // wait here for signal from server application, while the connections
+      // are made.  This signal tells the client to start pumping out data
+      int received = ctl.recv_msg(msg);
 
       Socket outSocket = null;
+      Socket[] outSockets = connections.sockets;
+      SocketChannel[] outChannels = connections.channels;
       try {
-        outSocket = new Socket(host, c2sport);
+        connections.await();
+        outSocket = outSockets[0];
       } catch (UnknownHostException e) {
         uiServices.logError("Don't know about host: " + host);
-        errmsg = messages.getString("unknownServer") + "\n" ;
+        errmsg = text("unknownServer") + "\n" ;
         return true;
       } catch (IOException e) {
         uiServices.logError("Couldn't get 2nd connection to: " + host);
-        errmsg = messages.getString("serverBusy15s") + "\n";
+        errmsg = text("serverBusy15s") + "\n";
         return true;
       }
 
@@ -561,92 +1123,107 @@ public class NdtTests implements Runnable {
   uiServices.setVariable("pub_clientIP", outSocket.getLocalAddress().getHostAddress().toString());
   uiServices.setVariable("pub_host", outSocket.getInetAddress().getHostAddress().toString());
 
-
-      OutputStream out = outSocket.getOutputStream();
-
-      // wait here for signal from server application 
-      // This signal tells the client to start pumping out data
-      if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+      if (received != 0) {
+        closeSockets(outSockets);
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_START) {
-        errmsg = messages.getString("outboundWrongMessage") + "\n";
+        closeSockets(outSockets);
+        errmsg = text("outboundWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
 
-      byte c = '0';
-      int i;
-      for (i=0; i<lth; i++) {
-        if (c == 'z')
-          c = '0';
-        buff2[i] = c++;
-      }
-      uiServices.logError("Send buffer size =" + i);
-      outSocket.setSoTimeout(15000); 
-      pkts = 0;
-      t = System.currentTimeMillis();
-      double stop_time = t + 10000; // ten seconds
-      do {
-        // if (Randomize) rng.nextBytes(buff2);
-        try {
-          out.write(buff2, 0, buff2.length);
+      long[] streamBytes;
+      ThroughputSampler sampler = newSampler(10000);
+      startLoadedProbe(10000);
+      if (outChannels != null) {
+        if (channelSender == null) {
+          channelSender = new ChannelSender();
         }
-        catch (SocketException e) {
-          System.out.println(e);
-          break;
+        uiServices.logError("Send buffer size =" + ChannelSender.writeSize(outChannels[0]));
+        t = System.currentTimeMillis();
+        sampler.start();
+        channelSender.send(outChannels, 10000, sampler);
+        streamBytes = new long[streams];
+        for (int k = 0; k < streams; k++) {
+          streamBytes[k] = channelSender.getBytes(k);
+        }
+      }
+      else {
+        byte buff2[] = client != null
+            ? client.streamPayload() : newStreamPayload();
+        uiServices.logError("Send buffer size =" + lth);
+        for (Socket socket : outSockets) {
+          socket.setSoTimeout(15000);
         }
-        pkts++;
-      } while (System.currentTimeMillis() < stop_time);
+        t = System.currentTimeMillis();
+        sampler.start();
+        long stop_time = (long) t + 10000; // ten seconds
+        streamBytes = runStreams(outSockets, true, buff2, stop_time, sampler,
+            null);
+      }
 
+      sampler.finish();
       t =  System.currentTimeMillis() - t;
+      endLoadedProbe("c2s");
+      uiServices.onThroughputSamples("c2s", sampleInterval, sampler.getSamples());
+      uiServices.onDataPhaseEnd("c2s", (int) t, sampler.getStopReason());
       if (t == 0) {
         t = 1;
       }
-      out.close();
-      outSocket.close();
-      System.out.println((8.0 * pkts * lth) / t + " kb/s outbound");
-      c2sspd = ((8.0 * pkts * lth) / 1000) / t;
+      closeSockets(outSockets);
+      long bytes = 0;
+      double[] streamSpd = new double[streams];
+      for (int k = 0; k < streams; k++) {
+        bytes += streamBytes[k];
+        streamSpd[k] = ((8.0 * streamBytes[k]) / 1000) / t;
+      }
+      System.out.println((8.0 * bytes) / t + " kb/s outbound");
+      c2sspd = ((8.0 * bytes) / 1000) / t;
+      uiServices.onStreamThroughput("c2s", c2sspd, streamSpd);
       /* receive the c2sspd from the server */
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_MSG) {
-        errmsg = messages.getString("outboundWrongMessage");
+        errmsg = text("outboundWrongMessage");
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      String tmpstr3 = new String(msg.body);
+      String tmpstr3 = new String(msg.body, 0, msg.length);
       sc2sspd = Double.parseDouble(tmpstr3) / 1000.0;
 
-      if (sc2sspd < 1.0) {
-        results.append(prtdbl(sc2sspd*1000) + "kb/s\n");
-        statistics.append(prtdbl(sc2sspd*1000) + "kb/s\n");
-        emailText += prtdbl(sc2sspd*1000) + "kb/s\n%0A";
-      } 
-      else {
-        results.append(prtdbl(sc2sspd) + "Mb/s\n");
-        statistics.append(prtdbl(sc2sspd) + "Mb/s\n");
-        emailText += prtdbl(sc2sspd) + "Mb/s\n%0A";
+      if (!headless) {
+        if (sc2sspd < 1.0) {
+          results.append(prtdbl(sc2sspd*1000) + "kb/s\n");
+          statistics.append(prtdbl(sc2sspd*1000) + "kb/s\n");
+          emailText += prtdbl(sc2sspd*1000) + "kb/s\n%0A";
+        } 
+        else {
+          results.append(prtdbl(sc2sspd) + "Mb/s\n");
+          statistics.append(prtdbl(sc2sspd) + "Mb/s\n");
+          emailText += prtdbl(sc2sspd) + "Mb/s\n%0A";
+        }
       }
 
     // Expose upload speed to JavaScript clients
            uiServices.setVariable("pub_c2sspd", sc2sspd);
     
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_FINALIZE) {
-        errmsg = messages.getString("outboundWrongMessage");
+        errmsg = text("outboundWrongMessage");
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
@@ -659,28 +1236,38 @@ public class NdtTests implements Runnable {
     byte buff[] = new byte[8192];
     Message msg = new Message();
     if ((tests & TEST_S2C) == TEST_S2C) {
-        showStatus(messages.getString("inboundTest"));
-        results.append(messages.getString("runningInboundTest") + " ");
-        statistics.append(messages.getString("runningInboundTest") + " ");
-        emailText += messages.getString("runningInboundTest") + " ";
+        if (!headless) {
+          showStatus(text("inboundTest"));
+          results.append(text("runningInboundTest") + " ");
+          statistics.append(text("runningInboundTest") + " ");
+          emailText += text("runningInboundTest") + " ";
+        }
       
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_PREPARE) {
-        errmsg = messages.getString("inboundWrongMessage") + "\n";
+        errmsg = text("inboundWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      int s2cport = Integer.parseInt(new String(msg.body));
+      int s2cport = Integer.parseInt(new String(msg.body, 0, msg.length));
+
+      DataConnections connections = new DataConnections(s2cport,
+          SocketTuning.DOWNLOAD, s2cReceiver == S2C_RECEIVER_CHANNEL);
 
-      Socket inSocket;
+      // wait here for signal from server application, while the connections
+      // are made
+      int received = ctl.recv_msg(msg);
+
+      Socket[] inSockets = connections.sockets;
+      SocketChannel[] inChannels = connections.channels;
       try {
-        inSocket = new Socket(host, s2cport);
-      } 
+        connections.await();
+      }
       catch (UnknownHostException e) {
         uiServices.logError("Don't know about host: " + host);
         errmsg = "unknown server\n" ;
@@ -692,53 +1279,83 @@ public class NdtTests implements Runnable {
         return true;
       }
 
-      InputStream srvin = inSocket.getInputStream();
-      int bytes = 0;
-      int inlth;
+      long bytes = 0;
+      long[] streamBytes;
 
-      // wait here for signal from server application 
-      if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+      if (received != 0) {
+        closeSockets(inSockets);
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_START) {
-        errmsg = messages.getString("serverFail") + "\n";
+        closeSockets(inSockets);
+        errmsg = text("serverFail") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
 
-      inSocket.setSoTimeout(15000);
+      for (Socket socket : inSockets) {
+        socket.setSoTimeout(15000);
+      }
+      ThroughputSampler sampler = newSampler(15000);
+      ReceiveStats readStats = new ReceiveStats();
+      startLoadedProbe(14500);
       t = System.currentTimeMillis();
+      sampler.start();
 
-      try {  
-        while ((inlth=srvin.read(buff,0,buff.length)) > 0) {
-          bytes += inlth;
-          if ((System.currentTimeMillis() - t) > 14500)
-            break;
+      if (inChannels != null) {
+        if (channelReceiver == null) {
+          channelReceiver = new ChannelReceiver();
         }
-      } 
-      catch (IOException e) {}
+        channelReceiver.receive(inChannels, 14500, sampler, readStats);
+        streamBytes = new long[streams];
+        for (int k = 0; k < streams; k++) {
+          streamBytes[k] = channelReceiver.getBytes(k);
+        }
+      }
+      else {
+        streamBytes = runStreams(inSockets, false, buff, (long) t + 14500,
+            sampler, readStats);
+      }
 
+      sampler.finish();
       t =  System.currentTimeMillis() - t;
+      if (sampler.isStopped()) {
+        // Stop the server's transfer now rather than once its time is up.
+        closeSockets(inSockets);
+      }
+      endLoadedProbe("s2c");
+      uiServices.onThroughputSamples("s2c", sampleInterval, sampler.getSamples());
+      uiServices.onDataPhaseEnd("s2c", (int) t, sampler.getStopReason());
+      if (t == 0) {
+        t = 1;
+      }
+      double[] streamSpd = new double[streams];
+      for (int k = 0; k < streams; k++) {
+        bytes += streamBytes[k];
+        streamSpd[k] = ((8.0 * streamBytes[k]) / 1000) / t;
+      }
       System.out.println(bytes + " bytes " + (8.0 * bytes)/t + " kb/s " + t/1000 + " secs");
       s2cspd = ((8.0 * bytes) / 1000) / t;
+      uiServices.onStreamThroughput("s2c", s2cspd, streamSpd);
+      uiServices.onReceiveStats("s2c", readStats);
 
       /* receive the s2cspd from the server */
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_MSG) {
-        errmsg = messages.getString("inboundWrongMessage") + "\n";
+        errmsg = text("inboundWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
       try {
-        String tmpstr3 = new String(msg.body);
+        String tmpstr3 = new String(msg.body, 0, msg.length);
         int k1 = tmpstr3.indexOf(" ");
         int k2 = tmpstr3.substring(k1+1).indexOf(" ");
         ss2cspd = Double.parseDouble(tmpstr3.substring(0, k1)) / 1000.0;
@@ -747,26 +1364,27 @@ public class NdtTests implements Runnable {
       }
       catch (Exception e) {
         e.printStackTrace();
-        errmsg = messages.getString("inboundWrongMessage") + "\n";
+        errmsg = text("inboundWrongMessage") + "\n";
         return true;
       }
 
-      if (s2cspd < 1.0) {
-        results.append(prtdbl(s2cspd*1000) + "kb/s\n");
-        statistics.append(prtdbl(s2cspd*1000) + "kb/s\n");
-        emailText += prtdbl(s2cspd*1000) + "kb/s\n%0A";
-      } else {
-        results.append(prtdbl(s2cspd) + "Mb/s\n");
-        statistics.append(prtdbl(s2cspd) + "Mb/s\n");
-        emailText += prtdbl(s2cspd) + "Mb/s\n%0A";
+      if (!headless) {
+        if (s2cspd < 1.0) {
+          results.append(prtdbl(s2cspd*1000) + "kb/s\n");
+          statistics.append(prtdbl(s2cspd*1000) + "kb/s\n");
+          emailText += prtdbl(s2cspd*1000) + "kb/s\n%0A";
+        } else {
+          results.append(prtdbl(s2cspd) + "Mb/s\n");
+          statistics.append(prtdbl(s2cspd) + "Mb/s\n");
+          emailText += prtdbl(s2cspd) + "Mb/s\n%0A";
+        }
       }
 
 
     // Expose download speed to JavaScript clients
            uiServices.setVariable("pub_s2cspd", s2cspd);
 
-      srvin.close();
-      inSocket.close();
+      closeSockets(inSockets);
 
       buff = Double.toString(s2cspd*1000).getBytes();
       String tmpstr4 = new String(buff, 0, buff.length);
@@ -774,29 +1392,31 @@ public class NdtTests implements Runnable {
       ctl.send_msg(TEST_MSG, buff);
 
       /* get web100 variables from server */
-      tmpstr = "";
+      result.s2c = new NdtResult();
+      Web100Parser snapshot = web100.snapshot(result.s2c);
 
       // Try setting a 5 second timer here to break out if the read fails.
       ctlSocket.setSoTimeout(5000);
       try {  
         for (;;) {
           if (ctl.recv_msg(msg) != 0) {
-            errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+            errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
             return true;
           }
           if (msg.type == TEST_FINALIZE) {
             break;
           }
           if (msg.type != TEST_MSG) {
-            errmsg = messages.getString("inboundWrongMessage") + "\n";
+            errmsg = text("inboundWrongMessage") + "\n";
             if (msg.type == MSG_ERROR) {
-                errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+                errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
             }
             return true;
           }
-          tmpstr += new String(msg.body);
+          snapshot.feed(msg.body, 0, msg.length);
         }
       } catch (IOException e) {}
+      snapshot.finish();
       ctlSocket.setSoTimeout(0);
     }
     return false;
@@ -806,31 +1426,33 @@ public class NdtTests implements Runnable {
   {
     Message msg = new Message();
     if ((tests & TEST_META) == TEST_META) {
-      showStatus(messages.getString("metaTest"));
-      results.append(messages.getString("sendingMetaInformation") + " ");
-      statistics.append(messages.getString("sendingMetaInformation") + " ");
-      emailText += messages.getString("sendingMetaInformation") + " ";
+      if (!headless) {
+        showStatus(text("metaTest"));
+        results.append(text("sendingMetaInformation") + " ");
+        statistics.append(text("sendingMetaInformation") + " ");
+        emailText += text("sendingMetaInformation") + " ";
+      }
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_PREPARE) {
-        errmsg = messages.getString("metaWrongMessage") + "\n";
+        errmsg = text("metaWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_START) {
-        errmsg = messages.getString("metaWrongMessage") + "\n";
+        errmsg = text("metaWrongMessage") + "\n";
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
@@ -844,19 +1466,21 @@ public class NdtTests implements Runnable {
       ctl.send_msg(TEST_MSG, new byte[0]);
 
       if (ctl.recv_msg(msg) != 0) {
-        errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+        errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
         return true;
       }
       if (msg.type != TEST_FINALIZE) {
-        errmsg = messages.getString("metaWrongMessage");
+        errmsg = text("metaWrongMessage");
         if (msg.type == MSG_ERROR) {
-            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body)) + "\n";
+            errmsg += "ERROR MSG: " + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + "\n";
         }
         return true;
       }
-      results.append(messages.getString("done") + "\n");
-      statistics.append(messages.getString("done") + "\n");
-      emailText += messages.getString("done") + "\n%0A";
+      if (!headless) {
+        results.append(text("done") + "\n");
+        statistics.append(text("done") + "\n");
+        emailText += text("done") + "\n%0A";
+      }
     }
     
     return false;
@@ -868,58 +1492,90 @@ public class NdtTests implements Runnable {
         int i, wait, swait=0;
 
         failed = false;
+        tests = requestedTests;
+        result = new NdtResult();
+        handshakeMillis = 0;
+        midMbps = 0;
+        web100Lines.clear();
+        web100 = new Web100Parser(result, new Web100Parser.Listener() {
+          public void onVariable(String name, String value, int field,
+              boolean snapshot) {
+            web100Lines.add(name + " " + value + "\n");
+            publish(field);
+            Number number = Web100Parser.toNumber(value);
+            if (number != null && !snapshot) {
+              uiServices.onResultVariable(Web100Parser.bareName(name), number);
+            }
+          }
+        });
           
       try {
        
+        InetAddress[] candidates = client != null
+            ? client.candidates(host, alternateHost)
+            : DualStack.candidates(host, alternateHost);
+
         // RAC Debug message
-         results.append(messages.getString("connectingTo") + " '" + host + "' [" + InetAddress.getByName(host) + "] " + messages.getString("toRunTest") + "\n");
+        if (!headless) {
+          results.append(text("connectingTo") + " '" + host + "' " + Arrays.asList(candidates) + " " + text("toRunTest") + "\n");
+        }
 
-          ctlSocket = new Socket(host, ctlport);
+          ctlSocket = connectControl(candidates, ctlport);
       } catch (UnknownHostException e) {
           uiServices.logError("Don't know about host: " + host);
-          errmsg = messages.getString("unknownServer") + "\n" ;
+          errmsg = text("unknownServer") + "\n" ;
           failed = true;
           return;
       } catch (IOException e) {
+          if (client != null) {
+            // The server may have moved; resolve it again next time.
+            client.forget(host, alternateHost);
+          }
           uiServices.logError("Couldn't get the connection to: " + host + " " +ctlport);
-          errmsg = messages.getString("serverNotRunning") + " (" + host + ":" + ctlport + ")\n" ;
+          errmsg = text("serverNotRunning") + " (" + host + ":" + ctlport + ")\n" ;
           failed = true;
           return;
       }
       Protocol ctl = new Protocol(ctlSocket);
+      if (transcript != null) {
+        recorder = new Transcript.Recorder(transcript);
+        ctl.setRecorder(recorder);
+      }
       Message msg = new Message();
       uiServices.incrementProgress();
 
       /* The beginning of the protocol */
 
-      if (ctlSocket.getInetAddress() instanceof Inet6Address) {
-          results.append(messages.getString("connected") + " " + host + messages.getString("usingIpv6") + "\n");
-      }
-      else {
-          results.append(messages.getString("connected") + " " + host + messages.getString("usingIpv4") + "\n");
+      if (!headless) {
+          if (ctlSocket.getInetAddress() instanceof Inet6Address) {
+              results.append(text("connected") + " " + host + text("usingIpv6") + "\n");
+          }
+          else {
+              results.append(text("connected") + " " + host + text("usingIpv4") + "\n");
+          }
       }
 
       /* write our test suite request */
       ctl.send_msg(MSG_LOGIN, tests);
       /* read the specially crafted data that kicks off the old clients */
       if (ctl.readn(msg, 13) != 13) {
-          errmsg = messages.getString("unsupportedClient") + "\n";
+          errmsg = text("unsupportedClient") + "\n";
           failed = true;
           return;
       }
 
       for (;;) {
           if (ctl.recv_msg(msg) != 0) {
-              errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+              errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
               failed = true;
               return;
           }
           if (msg.type != SRV_QUEUE) {
-              errmsg = messages.getString("loggingWrongMessage") + "\n";
+              errmsg = text("loggingWrongMessage") + "\n";
               failed = true;
               return;
           }
-          String tmpstr3 = new String(msg.body);
+          String tmpstr3 = new String(msg.body, 0, msg.length);
           wait = Integer.parseInt(tmpstr3);
           System.out.println("wait flag received = " + wait);
 
@@ -929,18 +1585,18 @@ public class NdtTests implements Runnable {
 
           if (wait == 9988) {
       if (swait == 0) {
-              errmsg = messages.getString("serverBusy") + "\n";
+              errmsg = text("serverBusy") + "\n";
               failed = true;
               return;
       } else {
-              errmsg = messages.getString("serverFault") + "\n";
+              errmsg = text("serverFault") + "\n";
               failed = true;
               return;
       }
           }
 
           if (wait == 9999) {
-              errmsg = messages.getString("serverBusy60s") + "\n";
+              errmsg = text("serverBusy60s") + "\n";
               failed = true;
               return;
           }
@@ -953,121 +1609,145 @@ public class NdtTests implements Runnable {
           // Each test should take less than 30 seconds, so tell them 45 sec * number of 
           // tests in the queue.
           wait = (wait * 45);
-          results.append(messages.getString("otherClient") + wait + messages.getString("seconds") +".\n");
+          if (!headless) {
+            results.append(text("otherClient") + wait + text("seconds") +".\n");
+          }
     swait = 1;
       }
 
       uiServices.onLoginSent();
 
       if (ctl.recv_msg(msg) != 0) {
-          errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+          errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
           failed = true;
           return;
       }
       if (msg.type != MSG_LOGIN) {
-          errmsg = messages.getString("versionWrongMessage") + "\n";
+          errmsg = text("versionWrongMessage") + "\n";
           failed = true;
           return;
       }
 
-      String vVersion = new String(msg.body);
+      String vVersion = new String(msg.body, 0, msg.length);
       if (!vVersion.startsWith("v")) {
-          errmsg = messages.getString("incompatibleVersion");
+          errmsg = text("incompatibleVersion");
           failed = true;
           return;
       }
       System.out.println("Server version: " + vVersion.substring(1));
 
       if (ctl.recv_msg(msg) != 0) {
-          errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+          errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
           failed = true;
           return;
       }
       if (msg.type != MSG_LOGIN) {
-          errmsg = messages.getString("testsuiteWrongMessage") + "\n";
+          errmsg = text("testsuiteWrongMessage") + "\n";
           failed = true;
           return;
       }
       uiServices.incrementProgress();
-      StringTokenizer tokenizer = new StringTokenizer(new String(msg.body), " ");
+      StringTokenizer tokenizer = new StringTokenizer(new String(msg.body, 0, msg.length), " ");
 
       while (tokenizer.hasMoreTokens()) {
+          if (deadline != null && deadline.hasExpired()) {
+              // Everything is closed; run() reports the time limit.
+              return;
+          }
           if (uiServices.wantToStop()) {
               ctl.send_msg(MSG_ERROR, "Manually stopped by the user".getBytes());
               ctl.close();
               ctlSocket.close();
-              errmsg = "\n" + messages.getString("stopped") + "\n";
+              errmsg = "\n" + text("stopped") + "\n";
               failed = true;
               return;
           }
           int testId = Integer.parseInt(tokenizer.nextToken());
+          int ctlMessages = ctl.getMessagesSent() + ctl.getMessagesReceived();
+          long ctlBytes = ctl.getBytesSent() + ctl.getBytesReceived();
           switch (testId) {
               case TEST_MID:
-                  uiServices.updateStatusPanel(messages.getString("middlebox"));
+                  uiServices.updateStatusPanel(text("middlebox"));
                   if (test_mid(ctl)) {
-                      results.append(errmsg);
-                      results.append(messages.getString("middleboxFail2") + "\n");
+                      if (!headless) {
+                          results.append(errmsg);
+                          results.append(text("middleboxFail2") + "\n");
+                      }
                       tests &= (~TEST_MID);
                   }
                   uiServices.incrementProgress();
                   break;
               case TEST_SFW:
-                  uiServices.updateStatusPanel(messages.getString("simpleFirewall"));
+                  uiServices.updateStatusPanel(text("simpleFirewall"));
                   if (test_sfw(ctl)) {
-                      results.append(errmsg);
-                      results.append(messages.getString("sfwFail") + "\n");
+                      if (!headless) {
+                          results.append(errmsg);
+                          results.append(text("sfwFail") + "\n");
+                      }
                       tests &= (~TEST_SFW);
                   }
                   uiServices.incrementProgress();
                   break;
               case TEST_C2S:
-                  uiServices.updateStatusPanel(messages.getString("c2sThroughput"));
+                  uiServices.updateStatusPanel(text("c2sThroughput"));
                   if (test_c2s(ctl)) {
-                      results.append(errmsg);
-                      results.append(messages.getString("c2sThroughputFailed") + "\n");
+                      if (!headless) {
+                          results.append(errmsg);
+                          results.append(text("c2sThroughputFailed") + "\n");
+                      }
                       tests &= (~TEST_C2S);
                   }
                   uiServices.incrementProgress();
                   break;
               case TEST_S2C:
-                  uiServices.updateStatusPanel(messages.getString("s2cThroughput"));
+                  uiServices.updateStatusPanel(text("s2cThroughput"));
                   if (test_s2c(ctl, ctlSocket)) {
-                      results.append(errmsg);
-                      results.append(messages.getString("s2cThroughputFailed") + "\n");
+                      if (!headless) {
+                          results.append(errmsg);
+                          results.append(text("s2cThroughputFailed") + "\n");
+                      }
                       tests &= (~TEST_S2C);
                   }
                   uiServices.incrementProgress();
                   break;
               case TEST_META:
-                  uiServices.updateStatusPanel(messages.getString("meta"));
+                  uiServices.updateStatusPanel(text("meta"));
                   if (test_meta(ctl, uiServices.getClientApp())) {
-                      results.append(errmsg);
-                      results.append(messages.getString("metaFailed") + "\n");
+                      if (!headless) {
+                          results.append(errmsg);
+                          results.append(text("metaFailed") + "\n");
+                      }
                       tests &= (~TEST_META);
                   }
                   break;
               default:
-                  errmsg = messages.getString("unknownID") + "\n";
+                  errmsg = text("unknownID") + "\n";
                   failed = true;
                   return;
           }
+          // Control-channel overhead of the test that just ran.
+          String name = testName(testId);
+          uiServices.setVariable("pub_" + name + "CtlMessages",
+              ctl.getMessagesSent() + ctl.getMessagesReceived() - ctlMessages);
+          uiServices.setVariable("pub_" + name + "CtlBytes",
+              (double) (ctl.getBytesSent() + ctl.getBytesReceived() - ctlBytes));
       }
       if (uiServices.wantToStop()) {
           ctl.send_msg(MSG_ERROR, "Manually stopped by the user".getBytes());
           ctl.close();
           ctlSocket.close();
-          errmsg = messages.getString("stopped") + "\n";
+          errmsg = text("stopped") + "\n";
           failed = true;
           return;
       }
 
-      uiServices.updateStatusPanel(messages.getString("receiving"));
+      uiServices.updateStatusPanel(text("receiving"));
       i = 0;
 
       try {  
           for (;;) {
               if (ctl.recv_msg(msg) != 0) {
-                  errmsg = messages.getString("protocolError") + hexStrToDecimalStr(new String(msg.body)) + " instead\n";
+                  errmsg = text("protocolError") + hexStrToDecimalStr(new String(msg.body, 0, msg.length)) + " instead\n";
                   failed = true;
                   return;
               }
@@ -1075,42 +1755,51 @@ public class NdtTests implements Runnable {
                   break;
               }
               if (msg.type != MSG_RESULTS) {
-                  errmsg = messages.getString("resultsWrongMessage") + "\n";
+                  errmsg = text("resultsWrongMessage") + "\n";
                   failed = true;
                   return;
               }
-              tmpstr += new String(msg.body);
+              web100.feed(msg.body, 0, msg.length);
               i++;
           }
       } catch (IOException e) {}
 
-      if (i == 0) {
-          results.append(messages.getString("resultsTimeout") + "\n");
-      }
-      uiServices.logError("Calling InetAddress.getLocalHost() twice");
-      try {
-          diagnosis.append(messages.getString("client") + ": " + InetAddress.getLocalHost() + "\n");
-      } catch (SecurityException e) {
-          diagnosis.append(messages.getString("client") + ": 127.0.0.1\n");
-          results.append(messages.getString("unableToObtainIP") + "\n");
-          uiServices.logError("Unable to obtain local IP address: using 127.0.0.1");
-      }
+      if (i == 0 && !headless) {
+          results.append(text("resultsTimeout") + "\n");
+      }
+      if (!headless) {
+          uiServices.logError("Calling InetAddress.getLocalHost() twice");
+          try {
+              diagnosis.append(text("client") + ": " + InetAddress.getLocalHost() + "\n");
+          } catch (SecurityException e) {
+              diagnosis.append(text("client") + ": 127.0.0.1\n");
+              results.append(text("unableToObtainIP") + "\n");
+              uiServices.logError("Unable to obtain local IP address: using 127.0.0.1");
+          }
 
-      try {
-          emailText += messages.getString("client") + ": " + InetAddress.getLocalHost() + "\n%0A";
-      } catch (SecurityException e) {
-          emailText += messages.getString("client") + ": " + "127.0.0.1" + "\n%0A";
+          try {
+              emailText += text("client") + ": " + InetAddress.getLocalHost() + "\n%0A";
+          } catch (SecurityException e) {
+              emailText += text("client") + ": " + "127.0.0.1" + "\n%0A";
+          }
       }
 
+      uiServices.setVariable("pub_ctlMessages",
+          ctl.getMessagesSent() + ctl.getMessagesReceived());
+      uiServices.setVariable("pub_ctlBytes",
+          (double) (ctl.getBytesSent() + ctl.getBytesReceived()));
       ctl.close();
       ctlSocket.close();
 
       try {
-          testResults(tmpstr);
+          web100.finish();
+          testResults();
       }
       catch (Exception ex) {
-          results.append(messages.getString("resultsParseError")  + "\n");
-          results.append(ex + "\n");
+          if (!headless) {
+              results.append(text("resultsParseError")  + "\n");
+              results.append(ex + "\n");
+          }
       }
       if ((tests & TEST_MID) == TEST_MID) {
           middleboxResults(tmpstr2);
@@ -1122,31 +1811,498 @@ public class NdtTests implements Runnable {
   }
 
 
-  class OsfwWorker implements Runnable
+  /**
+   * Runs the C2S or S2C data loop on every socket at once.
+   *
+   * The first socket is served by the calling thread and each of the others
+   * by a thread of its own.
+   *
+   * @param stats receives the reads of every socket of a download; ignored
+   *     for an upload
+   * @return the number of bytes moved over each socket
+   */
+  static long[] runStreams(Socket[] sockets, boolean upload, byte[] buff,
+      long stopTime, ThroughputSampler sampler, ReceiveStats stats)
+      throws IOException
   {
-    private ServerSocket srvSocket;
-    private int testTime;
-    private boolean finalized = false;
-    
-    OsfwWorker(ServerSocket srvSocket, int testTime)
+    StreamWorker[] workers = new StreamWorker[sockets.length];
+    Thread[] threads = new Thread[sockets.length];
+    for (int k = 1; k < sockets.length; k++) {
+      // Receivers each need a buffer to themselves; senders share the payload.
+      byte[] streamBuff = upload ? buff : new byte[buff.length];
+      workers[k] = new StreamWorker(sockets[k], upload, streamBuff, stopTime, sampler);
+      if (!upload) {
+        workers[k].stats = new ReceiveStats();
+      }
+      threads[k] = new Thread(workers[k]);
+      threads[k].start();
+    }
+
+    long[] bytes = new long[sockets.length];
+    if (upload) {
+      bytes[0] = pump(sockets[0].getOutputStream(), buff, stopTime, sampler);
+    } else {
+      bytes[0] = drain(sockets[0].getInputStream(), buff, stopTime, sampler,
+          stats);
+    }
+
+    for (int k = 1; k < sockets.length; k++) {
+      try {
+        threads[k].join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      bytes[k] = workers[k].bytes;
+      if (!upload) {
+        stats.merge(workers[k].stats);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes test data until stopTime, until the server goes away, or until the
+   * sampler says to stop.
+   */
+  static long pump(OutputStream out, byte[] buff, long stopTime,
+      ThroughputSampler sampler) throws IOException
+  {
+    long sent = 0;
+    do {
+      // if (Randomize) rng.nextBytes(buff2);
+      try {
+        out.write(buff, 0, buff.length);
+      }
+      catch (SocketException e) {
+        System.out.println(e);
+        break;
+      }
+      sent += buff.length;
+      sampler.add(buff.length);
+    } while (System.currentTimeMillis() < stopTime && !sampler.isStopped());
+    return sent;
+  }
+
+  /**
+   * Reads test data until stopTime, until the server closes the socket, or
+   * until the sampler says to stop.
+   *
+   * @param stats receives the size of each read and the gap before it
+   */
+  static long drain(InputStream in, byte[] buff, long stopTime,
+      ThroughputSampler sampler, ReceiveStats stats)
+  {
+    long received = 0;
+    int inlth;
+    stats.start(System.nanoTime());
+    try {  
+      while ((inlth=in.read(buff,0,buff.length)) > 0) {
+        long now = System.nanoTime();
+        received += inlth;
+        stats.add(inlth, now);
+        sampler.add(inlth, now);
+        if (System.currentTimeMillis() > stopTime || sampler.isStopped())
+          break;
+      }
+    } 
+    catch (IOException e) {}
+    return received;
+  }
+
+  /**
+   * Creates the sampler for a C2S or S2C data phase.
+   *
+   * @param expectedMillis the longest the data phase can run
+   */
+  private ThroughputSampler newSampler(long expectedMillis)
+  {
+    ThroughputSampler sampler = new ThroughputSampler(sampleInterval, expectedMillis);
+    if (deadline != null) {
+      deadline.setSampler(sampler);
+    }
+    if (convergenceThreshold > 0) {
+      sampler.setConvergence(convergenceWindow, convergenceThreshold,
+          MIN_ADAPTIVE_DURATION);
+    }
+    sampler.setByteBudget(byteBudget);
+    return sampler;
+  }
+
+  /**
+   * Opens the control connection to the first of the server's addresses to
+   * answer, and makes it the address of every later connection of the run.
+   *
+   * @param candidates from {@link DualStack#candidates(String, String)}
+   */
+  private Socket connectControl(InetAddress[] candidates, int port)
+      throws IOException
+  {
+    if (candidates.length == 1) {
+      serverAddress = candidates[0];
+      result.clientFamily = DualStack.family(serverAddress);
+      return connectSocket(port, SocketTuning.CONTROL);
+    }
+    return new ControlRace(candidates).connect(port);
+  }
+
+  /**
+   * Races blocking connections to the server's addresses, one thread each.
+   *
+   * @see DualStack
+   */
+  private class ControlRace
+  {
+    private final InetAddress[] addresses;
+    private final Socket[] sockets;
+    private final IOException[] errors;
+    private int started;
+    private int finished;
+    private int winner = -1;
+    private long winnerNanos;
+
+    ControlRace(InetAddress[] addresses)
     {
-      this.srvSocket = srvSocket;
-      this.testTime = testTime;
+      this.addresses = addresses;
+      sockets = new Socket[addresses.length];
+      errors = new IOException[addresses.length];
     }
 
-    public void finalize()
+    /** Runs the race and returns the winning connection. */
+    Socket connect(int port) throws IOException
     {
-      while (!finalized) {
-        try {
-          Thread.sleep(1000);
+      try {
+        synchronized (this) {
+          for (int k = 0; k < addresses.length && winner < 0; k++) {
+            // The next attempt starts once the earlier ones have all failed,
+            // or have had their head start.
+            long end = System.nanoTime() + DualStack.ATTEMPT_DELAY * 1000000L;
+            long left;
+            while (k > 0 && winner < 0 && finished < k
+                && (left = end - System.nanoTime()) > 0) {
+              wait(Math.max(1, left / 1000000L));
+            }
+            if (winner < 0) {
+              start(k, port);
+            }
+          }
+          while (winner < 0 && finished < started) {
+            wait();
+          }
+          if (winner < 0) {
+            throw errors[0];
+          }
+          for (int k = 0; k < addresses.length; k++) {
+            if (k == winner) {
+              continue;
+            }
+            result.clientRaceLoser = DualStack.family(addresses[k]);
+            if (sockets[k] == null) {
+              result.clientRaceLoserState = DualStack.LOSER_UNSTARTED;
+            } else if (errors[k] != null) {
+              result.clientRaceLoserState = DualStack.LOSER_FAILED;
+            } else {
+              result.clientRaceLoserState = DualStack.LOSER_PENDING;
+              // Cuts the loser's connect short; its thread then gives up.
+              sockets[k].close();
+            }
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closeSockets(sockets);
+        throw new InterruptedIOException("control connection race");
+      }
+      serverAddress = addresses[winner];
+      result.clientFamily = DualStack.family(serverAddress);
+      tuned(sockets[winner], SocketTuning.CONTROL, winnerNanos);
+      return sockets[winner];
+    }
+
+    /** Starts the k-th attempt. Called with the lock held. */
+    private void start(final int k, final int port) throws IOException
+    {
+      final Socket socket = new Socket();
+      watch(socket);
+      tune(socket, SocketTuning.CONTROL);
+      sockets[k] = socket;
+      started++;
+      new Thread(new Runnable() {
+        public void run() {
+          IOException error = null;
+          long start = System.nanoTime();
+          try {
+            socket.connect(new InetSocketAddress(addresses[k], port));
+          }
+          catch (IOException e) {
+            error = e;
+          }
+          long nanos = System.nanoTime() - start;
+          synchronized (ControlRace.this) {
+            finished++;
+            if (error != null) {
+              errors[k] = error;
+            } else if (winner < 0) {
+              winner = k;
+              winnerNanos = nanos;
+            } else {
+              closeSockets(new Socket[] { socket });
+            }
+            ControlRace.this.notifyAll();
+          }
+        }
+      }).start();
+    }
+  }
+
+  /**
+   * Opens a blocking connection to a server port.
+   *
+   * @param kind the {@link SocketTuning} connection kind
+   */
+  private Socket connectSocket(int port, int kind) throws IOException
+  {
+    Socket socket = new Socket();
+    // Registered before connecting, so the deadline can cut a slow connect.
+    watch(socket);
+    try {
+      InetSocketAddress address = new InetSocketAddress(serverAddress, port);
+      tune(socket, kind);
+      long start = System.nanoTime();
+      socket.connect(address);
+      tuned(socket, kind, System.nanoTime() - start);
+    }
+    catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
+  /** Applies {@link #tuning} to a socket that is about to connect. */
+  private void tune(Socket socket, int kind) throws IOException
+  {
+    int buffer = 0;
+    if (kind != SocketTuning.CONTROL) {
+      // The streams of a test share the path.
+      buffer = tuning.bufferSize(handshakeMillis, midMbps / streams);
+    }
+    boolean set = tuning.apply(socket, kind, buffer);
+    if (kind == SocketTuning.UPLOAD) {
+      result.clientSndbufAuto = !set;
+    } else if (kind == SocketTuning.DOWNLOAD) {
+      result.clientRcvbufAuto = !set;
+    }
+  }
+
+  /**
+   * Records what a new connection tells about the path, and the buffers it
+   * ended up with.
+   *
+   * @param connectNanos how long the connect took
+   */
+  private void tuned(Socket socket, int kind, long connectNanos)
+      throws IOException
+  {
+    switch (kind) {
+      case SocketTuning.CONTROL:
+        double millis = connectNanos / 1e6;
+        if (handshakeMillis == 0 || millis < handshakeMillis) {
+          handshakeMillis = millis;
+        }
+        break;
+      case SocketTuning.UPLOAD:
+        result.clientSndbuf = socket.getSendBufferSize();
+        result.clientRtt = handshakeMillis;
+        break;
+      case SocketTuning.DOWNLOAD:
+        result.clientRcvbuf = socket.getReceiveBufferSize();
+        result.clientRtt = handshakeMillis;
+        break;
+    }
+  }
+
+  /**
+   * Has the time limit close a {@link Socket}, {@link ServerSocket} or
+   * channel.
+   */
+  private void watch(Object resource)
+  {
+    if (deadline != null) {
+      deadline.add(resource);
+    }
+  }
+
+  /**
+   * Opens a blocking channel to a test server port.
+   *
+   * @param port the port announced by the server in TEST_PREPARE
+   * @param kind the {@link SocketTuning} connection kind
+   */
+  private SocketChannel openChannel(int port, int kind) throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+    watch(channel);
+    try {
+      InetSocketAddress address = new InetSocketAddress(serverAddress, port);
+      tune(channel.socket(), kind);
+      long start = System.nanoTime();
+      channel.connect(address);
+      tuned(channel.socket(), kind, System.nanoTime() - start);
+    }
+    catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Opens the data connections of a C2S or S2C test in the background.
+   *
+   * The connections are started as soon as TEST_PREPARE gives the port, one
+   * thread each, so their handshakes overlap each other and the wait for
+   * TEST_START on the control connection.
+   */
+  private class DataConnections
+  {
+    /** The connected sockets, once {@link #await()} returned. */
+    final Socket[] sockets = new Socket[streams];
+    /** Their channels, if the test uses channels; otherwise null. */
+    final SocketChannel[] channels;
+    private final Thread[] threads = new Thread[streams];
+    private final IOException[] errors = new IOException[streams];
+
+    /**
+     * @param kind the {@link SocketTuning} connection kind
+     * @param useChannels true to open {@link SocketChannel}s
+     */
+    DataConnections(final int port, final int kind, boolean useChannels)
+    {
+      channels = useChannels ? new SocketChannel[streams] : null;
+      for (int k = 0; k < streams; k++) {
+        final int i = k;
+        threads[k] = new Thread(new Runnable() {
+          public void run() {
+            try {
+              if (channels != null) {
+                channels[i] = openChannel(port, kind);
+                sockets[i] = channels[i].socket();
+              } else {
+                sockets[i] = connectSocket(port, kind);
+              }
+            }
+            catch (IOException e) {
+              errors[i] = e;
+            }
+          }
+        });
+        threads[k].start();
+      }
+    }
+
+    /**
+     * Waits for the connections to be made.
+     *
+     * @throws IOException the first connection failure; the connections that
+     *     were made are closed
+     */
+    void await() throws IOException
+    {
+      boolean interrupted = false;
+      for (Thread thread : threads) {
+        while (true) {
+          try {
+            thread.join();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
         }
-        catch (InterruptedException e) {
-          // do nothing.
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      for (IOException error : errors) {
+        if (error != null) {
+          closeSockets(sockets);
+          throw error;
         }
       }
     }
-    
+  }
+
+  private static void closeSockets(Socket[] sockets)
+  {
+    for (Socket socket : sockets) {
+      if (socket == null) {
+        continue;
+      }
+      try {
+        socket.close();
+      }
+      catch (IOException e) {
+        // do nothing
+      }
+    }
+  }
+
+  /** Drives one of the extra parallel connections of a C2S or S2C test. */
+  static class StreamWorker implements Runnable
+  {
+    private final Socket socket;
+    private final boolean upload;
+    private final byte[] buff;
+    private final long stopTime;
+    private final ThroughputSampler sampler;
+    /** The reads of a download; set before the worker starts. */
+    ReceiveStats stats;
+    long bytes;
+
+    StreamWorker(Socket socket, boolean upload, byte[] buff, long stopTime,
+        ThroughputSampler sampler)
+    {
+      this.socket = socket;
+      this.upload = upload;
+      this.buff = buff;
+      this.stopTime = stopTime;
+      this.sampler = sampler;
+    }
+
     public void run()
+    {
+      try {
+        if (upload) {
+          bytes = pump(socket.getOutputStream(), buff, stopTime, sampler);
+        } else {
+          bytes = drain(socket.getInputStream(), buff, stopTime, sampler,
+              stats);
+        }
+      }
+      catch (IOException e) {
+        System.out.println(e);
+      }
+    }
+  }
+
+  /**
+   * The server-to-client half of the simple firewall test: waits for the
+   * server to connect to the client's listening socket and checks its
+   * message. Runs on {@link #workers()}; the result is one of the SFW_*
+   * outcomes.
+   */
+  class OsfwWorker implements Callable<Integer>
+  {
+    private final ServerSocket srvSocket;
+    private final int testTime;
+
+    OsfwWorker(ServerSocket srvSocket, int testTime)
+    {
+      this.srvSocket = srvSocket;
+      this.testTime = testTime;
+    }
+
+    public Integer call()
     {
       Message msg = new Message();
       Socket sock = null;
@@ -1155,233 +2311,299 @@ public class NdtTests implements Runnable {
         srvSocket.setSoTimeout(testTime * 1000);
         try {
           sock = srvSocket.accept();
+          watch(sock);
         }
         catch (Exception e) {
           e.printStackTrace();
-          s2cResult = SFW_POSSIBLE;
-          srvSocket.close();
-          finalized = true;
-          return;
+          return SFW_POSSIBLE;
         }
         Protocol sfwCtl = new Protocol(sock);
 
         if (sfwCtl.recv_msg(msg) != 0) {
           System.out.println("Simple firewall test: unrecognized message");
-          s2cResult = SFW_UNKNOWN;
-          sock.close();
-          srvSocket.close();
-          finalized = true;
-          return;
+          return SFW_UNKNOWN;
         }
         if (msg.type != TEST_MSG) {
-          s2cResult = SFW_UNKNOWN;
-          sock.close();
-          srvSocket.close();
-          finalized = true;
-          return;
+          return SFW_UNKNOWN;
         }
-        if (! new String(msg.body).equals("Simple firewall test")) {
+        if (! new String(msg.body, 0, msg.length).equals("Simple firewall test")) {
           System.out.println("Simple firewall test: Improper message");
-          s2cResult = SFW_UNKNOWN;
-          sock.close();
-          srvSocket.close();
-          finalized = true;
-          return;
+          return SFW_UNKNOWN;
         }
-        s2cResult = SFW_NOFIREWALL;
+        return SFW_NOFIREWALL;
       }
       catch (IOException ex) {
-        s2cResult = SFW_UNKNOWN;
+        return SFW_UNKNOWN;
       }
+      finally {
+        try {
+          if (sock != null) {
+            sock.close();
+          }
+          srvSocket.close();
+        }
+        catch (IOException e) {
+          // do nothing
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the outcome of an {@link OsfwWorker}.
+   *
+   * The worker gives up by itself once the test time is over; the wait is
+   * bounded as well, in case the accept outlives its timeout.
+   */
+  private static int awaitOsfw(Future<Integer> osfwTest,
+      ServerSocket srvSocket, int testTime)
+  {
+    try {
+      return osfwTest.get(testTime * 1000L + SFW_GRACE, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      return SFW_POSSIBLE;
+    }
+    catch (ExecutionException e) {
+      return SFW_UNKNOWN;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return SFW_UNKNOWN;
+    }
+    finally {
+      // Ends a worker that is still waiting.
       try {
-        sock.close();
         srvSocket.close();
       }
       catch (IOException e) {
         // do nothing
       }
-      finalized = true;
     }
   }
 
-  public void testResults(String tmpstr) {
-    StringTokenizer tokens;
-    int i=0;
-    String sysvar, strval;
-    int sysval, Zero=0;
-    double sysval2, j;
+  /**
+   * The thread pool that runs the background parts of the tests, shared by
+   * all of them; its threads do not keep the process alive.
+   */
+  static synchronized ExecutorService workers()
+  {
+    if (workers == null) {
+      workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "NDT worker");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return workers;
+  }
+
+  /**
+   * Publishes a web100 variable that the UI shows on its own, as soon as it
+   * arrives.
+   *
+   * @param field the {@link NdtResult} field that was just set
+   */
+  private void publish(int field) {
+    switch (field) {
+      case NdtResult.LOSS:
+        uiServices.setVariable("pub_loss", result.loss);
+        break;
+      case NdtResult.AVG_RTT:
+        uiServices.setVariable("pub_avgrtt", result.avgrtt);
+        break;
+      case NdtResult.CWND_TIME:
+        uiServices.setVariable("pub_cwndtime", result.cwndtime);
+        uiServices.setVariable("pub_pctcwndtime", result.cwndtime*100.0);
+        break;
+      case NdtResult.SACKS_RCVD:
+        uiServices.setVariable("pub_SACKsRcvd", result.SACKsRcvd);
+        break;
+      case NdtResult.MAX_RWIN_RCVD:
+        uiServices.setVariable("pub_MaxRwinRcvd", result.MaxRwinRcvd);
+        break;
+      case NdtResult.CUR_RTO:
+        uiServices.setVariable("pub_CurRTO", result.CurrentRTO);
+        break;
+      case NdtResult.MAX_RTO:
+        uiServices.setVariable("pub_MaxRTO", result.MaxRTO);
+        break;
+      case NdtResult.MIN_RTO:
+        uiServices.setVariable("pub_MinRTO", result.MinRTO);
+        break;
+      case NdtResult.MIN_RTT:
+        uiServices.setVariable("pub_MinRTT", result.MinRTT);
+        break;
+      case NdtResult.MAX_RTT:
+        uiServices.setVariable("pub_MaxRTT", result.MaxRTT);
+        break;
+      case NdtResult.CUR_RWIN_RCVD:
+        uiServices.setVariable("pub_CurRwinRcvd", result.CurRwinRcvd);
+        break;
+      case NdtResult.MISMATCH:
+        uiServices.setVariable("pub_mismatch", result.mismatch);
+        break;
+      case NdtResult.CONGESTION:
+        uiServices.setVariable("pub_congestion", result.congestion);
+        break;
+      case NdtResult.BAD_CABLE:
+        uiServices.setVariable("pub_Bad_cable", result.bad_cable);
+        break;
+    }
+  }
+
+  public void testResults() {
+    int Zero=0;
+    double j;
     String osName, osArch, osVer, javaVer, javaVendor, client;
 
-    tokens = new StringTokenizer(tmpstr);
-    sysvar = null;
-    strval = null;
-    while(tokens.hasMoreTokens()) {
-      if(++i%2 == 1) {
-        sysvar = tokens.nextToken();
-      }
-      else {
-        strval = tokens.nextToken();
-        diagnosis.append(sysvar + " " + strval + "\n");
-        emailText += sysvar + " " + strval + "\n%0A";
-        if (strval.indexOf(".") == -1) {
-          sysval = Integer.parseInt(strval);
-          save_int_values(sysvar, sysval);
-        }
-        else {
-          sysval2 = Double.valueOf(strval).doubleValue();
-          save_dbl_values(sysvar, sysval2);
-        }
+    publishResults();
+    if (headless) {
+      // Only the raw variables; there is no report to interpret them for.
+      for (String line : web100Lines) {
+        diagnosis.append(line);
       }
+      return;
+    }
+    StringBuilder email = new StringBuilder();
+    for (String line : web100Lines) {
+      diagnosis.append(line);
+      email.append(line).append("%0A");
     }
+    emailText += email.toString();
 
     // Grab some client details from the applet environment
     osName = System.getProperty("os.name");
-    uiServices.setVariable("pub_osName", osName);
-      
     osArch = System.getProperty("os.arch");
-    uiServices.setVariable("pub_osArch", osArch);
-    
     osVer = System.getProperty("os.version");
-        uiServices.setVariable("pub_osVer", osVer);
-    
     javaVer = System.getProperty("java.version");
-    uiServices.setVariable("pub_javaVer", javaVer);
-    
     javaVendor = System.getProperty("java.vendor");
 
     if (osArch.startsWith("x86") == true) {
-      client = messages.getString("pc");
+      client = text("pc");
     }
     else {
-      client = messages.getString("workstation");
+      client = text("workstation");
     }
 
     // Calculate some variables and determine path conditions
     // Note: calculations now done in server and the results are shipped
     //    back to the client for printing.
 
-    if (CountRTT>0) {
+    if (result.CountRTT>0) {
       // Now write some messages to the screen
-      if (c2sData < 3) {
-        if (c2sData < 0) {
-          results.append(messages.getString("unableToDetectBottleneck") + "\n");
+      if (result.c2sData < 3) {
+        if (result.c2sData < 0) {
+          results.append(text("unableToDetectBottleneck") + "\n");
           emailText += "Server unable to determine bottleneck link type.\n%0A";
-          uiServices.setVariable("pub_AccessTech", "Connection type unknown");
           
         } 
         else {
-          results.append(messages.getString("your") + " " + client + " " + messages.getString("connectedTo") + " ");
-          emailText += messages.getString("your") + " " + client + " " + messages.getString("connectedTo") + " ";
-          if (c2sData == 1) {
-            results.append(messages.getString("dialup") + "\n");
-            emailText += messages.getString("dialup") +  "\n%0A";
+          results.append(text("your") + " " + client + " " + text("connectedTo") + " ");
+          emailText += text("your") + " " + client + " " + text("connectedTo") + " ";
+          if (result.c2sData == 1) {
+            results.append(text("dialup") + "\n");
+            emailText += text("dialup") +  "\n%0A";
             mylink = .064;
-            uiServices.setVariable("pub_AccessTech", "Dial-up Modem");
           } 
           else {
-            results.append(messages.getString("cabledsl") + "\n");
-            emailText += messages.getString("cabledsl") +  "\n%0A";
+            results.append(text("cabledsl") + "\n");
+            emailText += text("cabledsl") +  "\n%0A";
             mylink = 3;
-            uiServices.setVariable("pub_AccessTech", "Cable/DSL modem");
           }
         }
       } 
       else {
-        results.append(messages.getString("theSlowestLink") + " ");
-        emailText += messages.getString("theSlowestLink") + " ";
-        if (c2sData == 3) {
-          results.append(messages.getString("10mbps") + "\n");
-          emailText += messages.getString("10mbps") + "\n%0A";
+        results.append(text("theSlowestLink") + " ");
+        emailText += text("theSlowestLink") + " ";
+        if (result.c2sData == 3) {
+          results.append(text("10mbps") + "\n");
+          emailText += text("10mbps") + "\n%0A";
           mylink = 10;
-          uiServices.setVariable("pub_AccessTech", "10 Mbps Ethernet");
         } 
-        else if (c2sData == 4) {
-          results.append(messages.getString("45mbps") + "\n");
-          emailText += messages.getString("45mbps") + "\n%0A";
+        else if (result.c2sData == 4) {
+          results.append(text("45mbps") + "\n");
+          emailText += text("45mbps") + "\n%0A";
           mylink = 45;
-          uiServices.setVariable("pub_AccessTech", "45 Mbps T3/DS3 subnet");
         } 
-        else if (c2sData == 5) {
+        else if (result.c2sData == 5) {
           results.append("100 Mbps ");
           emailText += "100 Mbps ";
           mylink = 100;
-          uiServices.setVariable("pub_AccessTech", "100 Mbps Ethernet");
           
-          if (half_duplex == 0) {
-                        results.append(messages.getString("fullDuplex") + "\n");
-                        emailText += messages.getString("fullDuplex") + "\n%0A";
+          if (result.half_duplex == 0) {
+                        results.append(text("fullDuplex") + "\n");
+                        emailText += text("fullDuplex") + "\n%0A";
           } 
           else {
-                        results.append(messages.getString("halfDuplex") + "\n");
-                        emailText += messages.getString("halfDuplex") + "\n%0A";
+                        results.append(text("halfDuplex") + "\n");
+                        emailText += text("halfDuplex") + "\n%0A";
           }
         } 
-        else if (c2sData == 6) {
-          results.append(messages.getString("622mbps") + "\n");
-          emailText += messages.getString("622mbps") + "\n%0A";
+        else if (result.c2sData == 6) {
+          results.append(text("622mbps") + "\n");
+          emailText += text("622mbps") + "\n%0A";
           mylink = 622;
-          uiServices.setVariable("pub_AccessTech", "622 Mbps OC-12");
         } 
-        else if (c2sData == 7) {
-          results.append(messages.getString("1gbps") + "\n");
-          emailText += messages.getString("1gbps") + "\n%0A";
+        else if (result.c2sData == 7) {
+          results.append(text("1gbps") + "\n");
+          emailText += text("1gbps") + "\n%0A";
           mylink = 1000;
-          uiServices.setVariable("pub_AccessTech", "1.0 Gbps Gigabit Ethernet");
         } 
-        else if (c2sData == 8) {
-          results.append(messages.getString("2.4gbps") + "\n");
-          emailText += messages.getString("2.4gbps") + "\n%0A";
+        else if (result.c2sData == 8) {
+          results.append(text("2.4gbps") + "\n");
+          emailText += text("2.4gbps") + "\n%0A";
           mylink = 2400;
-          uiServices.setVariable("pub_AccessTech", "2.4 Gbps OC-48");
         } 
-        else if (c2sData == 9) {
-          results.append(messages.getString("10gbps") + "\n");
-          emailText += messages.getString("10gbps") + "\n%0A";
+        else if (result.c2sData == 9) {
+          results.append(text("10gbps") + "\n");
+          emailText += text("10gbps") + "\n%0A";
           mylink = 10000;
-          uiServices.setVariable("pub_AccessTech", "10 Gigabit Ethernet/OC-192");
           
         }
       }
 
-      if (mismatch == 1) {
-        results.append(messages.getString("oldDuplexMismatch") + "\n");
-                emailText += messages.getString("oldDuplexMismatch") + "\n%0A";
+      if (result.mismatch == 1) {
+        results.append(text("oldDuplexMismatch") + "\n");
+                emailText += text("oldDuplexMismatch") + "\n%0A";
       }
-        else if (mismatch == 2) {
-        results.append(messages.getString("duplexFullHalf") + "\n");
-                emailText += messages.getString("duplexFullHalf") + "\n%0A";
+        else if (result.mismatch == 2) {
+        results.append(text("duplexFullHalf") + "\n");
+                emailText += text("duplexFullHalf") + "\n%0A";
       }
-        else if (mismatch == 4) {
-        results.append(messages.getString("possibleDuplexFullHalf") + "\n");
-                emailText += messages.getString("possibleDuplexFullHalf") + "\n%0A";
+        else if (result.mismatch == 4) {
+        results.append(text("possibleDuplexFullHalf") + "\n");
+                emailText += text("possibleDuplexFullHalf") + "\n%0A";
       }
-        else if (mismatch == 3) {
-        results.append(messages.getString("duplexHalfFull") + "\n");
-                emailText += messages.getString("duplexHalfFull") + "\n%0A";
+        else if (result.mismatch == 3) {
+        results.append(text("duplexHalfFull") + "\n");
+                emailText += text("duplexHalfFull") + "\n%0A";
       }
-        else if (mismatch == 5) {
-        results.append(messages.getString("possibleDuplexHalfFull") + "\n");
-                emailText += messages.getString("possibleDuplexHalfFull") + "\n%0A";
+        else if (result.mismatch == 5) {
+        results.append(text("possibleDuplexHalfFull") + "\n");
+                emailText += text("possibleDuplexHalfFull") + "\n%0A";
       }
-        else if (mismatch == 7) {
-        results.append(messages.getString("possibleDuplexHalfFullWarning") + "\n");
-                emailText += messages.getString("possibleDuplexHalfFullWarning") + "\n%0A";
+        else if (result.mismatch == 7) {
+        results.append(text("possibleDuplexHalfFullWarning") + "\n");
+                emailText += text("possibleDuplexHalfFullWarning") + "\n%0A";
       }
       
-      if (mismatch == 0) {
-          if (bad_cable == 1) {
-                    results.append(messages.getString("excessiveErrors ") + "\n");
-                    emailText += messages.getString("excessiveErrors") + "\n%0A";
+      if (result.mismatch == 0) {
+          if (result.bad_cable == 1) {
+                    results.append(text("excessiveErrors ") + "\n");
+                    emailText += text("excessiveErrors") + "\n%0A";
           }
-          if (congestion == 1) {
-                    results.append(messages.getString("otherTraffic") + "\n");
-                    emailText += messages.getString("otherTraffic") + "\n%0A";
+          if (result.congestion == 1) {
+                    results.append(text("otherTraffic") + "\n");
+                    emailText += text("otherTraffic") + "\n%0A";
           }
-          if (((2*rwin)/rttsec) < mylink) {
-              j = (float)((mylink * avgrtt) * 1000) / 8 / 1024;
-              if (j > (float)MaxRwinRcvd) {
-                        results.append(messages.getString("receiveBufferShouldBe") + " " + prtdbl(j) + messages.getString("toMaximizeThroughput") + " \n");
-                        emailText += messages.getString("receiveBufferShouldBe") + " " + prtdbl(j) + messages.getString("toMaximizeThroughput") + "\n%0A";
+          if (((2*result.rwin)/result.rttsec) < mylink) {
+              j = (float)((mylink * result.avgrtt) * 1000) / 8 / 1024;
+              if (j > (float)result.MaxRwinRcvd) {
+                        results.append(text("receiveBufferShouldBe") + " " + prtdbl(j) + text("toMaximizeThroughput") + " \n");
+                        emailText += text("receiveBufferShouldBe") + " " + prtdbl(j) + text("toMaximizeThroughput") + "\n%0A";
               }
           }
       }
@@ -1389,120 +2611,118 @@ public class NdtTests implements Runnable {
       if ((tests & TEST_C2S) == TEST_C2S) {
         if (sc2sspd < (c2sspd  * (1.0 - VIEW_DIFF))) {
           // TODO:  distinguish the host buffering from the middleboxes buffering
-          uiServices.onPacketQueuingDetected();
-          results.append(messages.getString("c2sPacketQueuingDetected") + "\n");
+          results.append(text("c2sPacketQueuingDetected") + "\n");
         }
       }
       
       if ((tests & TEST_S2C) == TEST_S2C) {
         if (s2cspd < (ss2cspd  * (1.0 - VIEW_DIFF))) {
           // TODO:  distinguish the host buffering from the middleboxes buffering
-          uiServices.onPacketQueuingDetected();
-          results.append(messages.getString("s2cPacketQueuingDetected") + "\n");
+          results.append(text("s2cPacketQueuingDetected") + "\n");
         }
       }
 
-            statistics.append("\n\t------  " + messages.getString("clientInfo") + "------\n");
-      statistics.append(messages.getString("osData") + " " + messages.getString("name") + " = " + osName + ", " + messages.getString("architecture") + " = " + osArch);
-      statistics.append(", " + messages.getString("version") + " = " + osVer + "\n");
-      statistics.append(messages.getString("javaData") + ": " +  messages.getString("vendor") + " = " + javaVendor + ", " + messages.getString("version") + " = " + javaVer + "\n");
+            statistics.append("\n\t------  " + text("clientInfo") + "------\n");
+      statistics.append(text("osData") + " " + text("name") + " = " + osName + ", " + text("architecture") + " = " + osArch);
+      statistics.append(", " + text("version") + " = " + osVer + "\n");
+      statistics.append(text("javaData") + ": " +  text("vendor") + " = " + javaVendor + ", " + text("version") + " = " + javaVer + "\n");
       // statistics.append(" java.class.version=" + System.getProperty("java.class.version") + "\n");
 
-      statistics.append("\n\t------  " + messages.getString("web100Details") + "  ------\n");
-      if (c2sData == -2)
-        statistics.append(messages.getString("insufficient") + "\n");
-      else if (c2sData == -1)
-        statistics.append(messages.getString("ipcFail") + "\n");
-      else if (c2sData == 0)
-        statistics.append(messages.getString("rttFail") + "\n");
-      else if (c2sData == 1)
-        statistics.append(messages.getString("foundDialup") + "\n");
-      else if (c2sData == 2)
-        statistics.append(messages.getString("foundDsl") + "\n");
-      else if (c2sData == 3)
-        statistics.append(messages.getString("found10mbps") + "\n");
-      else if (c2sData == 4)
-        statistics.append(messages.getString("found45mbps") + "\n");
-      else if (c2sData == 5)
-        statistics.append(messages.getString("found100mbps") + "\n");
-      else if (c2sData == 6)
-        statistics.append(messages.getString("found622mbps") + "\n");
-      else if (c2sData == 7)
-        statistics.append(messages.getString("found1gbps") + "\n");
-      else if (c2sData == 8)
-        statistics.append(messages.getString("found2.4gbps") + "\n");
-      else if (c2sData == 9)
-        statistics.append(messages.getString("found10gbps") + "\n");
+      statistics.append("\n\t------  " + text("web100Details") + "  ------\n");
+      if (result.c2sData == -2)
+        statistics.append(text("insufficient") + "\n");
+      else if (result.c2sData == -1)
+        statistics.append(text("ipcFail") + "\n");
+      else if (result.c2sData == 0)
+        statistics.append(text("rttFail") + "\n");
+      else if (result.c2sData == 1)
+        statistics.append(text("foundDialup") + "\n");
+      else if (result.c2sData == 2)
+        statistics.append(text("foundDsl") + "\n");
+      else if (result.c2sData == 3)
+        statistics.append(text("found10mbps") + "\n");
+      else if (result.c2sData == 4)
+        statistics.append(text("found45mbps") + "\n");
+      else if (result.c2sData == 5)
+        statistics.append(text("found100mbps") + "\n");
+      else if (result.c2sData == 6)
+        statistics.append(text("found622mbps") + "\n");
+      else if (result.c2sData == 7)
+        statistics.append(text("found1gbps") + "\n");
+      else if (result.c2sData == 8)
+        statistics.append(text("found2.4gbps") + "\n");
+      else if (result.c2sData == 9)
+        statistics.append(text("found10gbps") + "\n");
  
-      if (half_duplex == 0)
-        statistics.append(messages.getString("linkFullDpx") + "\n");
+      if (result.half_duplex == 0)
+        statistics.append(text("linkFullDpx") + "\n");
       else
-        statistics.append(messages.getString("linkHalfDpx") + "\n");
+        statistics.append(text("linkHalfDpx") + "\n");
  
-      if (congestion == 0)
-        statistics.append(messages.getString("congestNo") + "\n");
+      if (result.congestion == 0)
+        statistics.append(text("congestNo") + "\n");
       else
-        statistics.append(messages.getString("congestYes") + "\n");
+        statistics.append(text("congestYes") + "\n");
  
-      if (bad_cable == 0)
-        statistics.append(messages.getString("cablesOk") + "\n");
+      if (result.bad_cable == 0)
+        statistics.append(text("cablesOk") + "\n");
       else
-        statistics.append(messages.getString("cablesNok") + "\n");
+        statistics.append(text("cablesNok") + "\n");
  
-      if (mismatch == 0)
-        statistics.append(messages.getString("duplexOk") + "\n");
-      else if (mismatch == 1) {
-        statistics.append(messages.getString("duplexNok") + " ");
-        emailText += messages.getString("duplexNok") + " ";
-      }
-        else if (mismatch == 2) {
-        statistics.append(messages.getString("duplexFullHalf") + "\n");
-        emailText += messages.getString("duplexFullHalf") + "\n%0A ";
-      }
-        else if (mismatch == 3) {
-        statistics.append(messages.getString("duplexHalfFull") + "\n");
-        emailText += messages.getString("duplexHalfFull") + "\n%0A ";
-      }
-
-      statistics.append("\n" + messages.getString("web100rtt") + " =  " + prtdbl(avgrtt) + " " + "ms" + "; ");
-      emailText += "\n%0A" +  messages.getString("web100rtt") + " = " + prtdbl(avgrtt) + " " + "ms" + "; ";
-
-      statistics.append(messages.getString("packetsize") + " = " + CurrentMSS + " " + messages.getString("bytes") + "; " + messages.getString("and") + " \n");
-      emailText += messages.getString("packetsize") + " = " + CurrentMSS + " " + messages.getString("bytes") + "; " + messages.getString("and") + " \n%0A";
-
-      if (PktsRetrans > 0) {
-                statistics.append(PktsRetrans + " " + messages.getString("pktsRetrans"));
-        statistics.append(", " + DupAcksIn + " " + messages.getString("dupAcksIn"));
-        statistics.append(", " + messages.getString("and") + " " + SACKsRcvd + " " + messages.getString("sackReceived") + "\n");
-        emailText += PktsRetrans + " " + messages.getString("pktsRetrans");
-        emailText += ", " + DupAcksIn + " " + messages.getString("dupAcksIn");
-        emailText += ", " + messages.getString("and") + " " + SACKsRcvd + " " + messages.getString("sackReceived") + "\n%0A";
-        if (Timeouts > 0) {
-                    statistics.append(messages.getString("connStalled") + " " + Timeouts + " " + messages.getString("timesPktLoss") + "\n");
+      if (result.mismatch == 0)
+        statistics.append(text("duplexOk") + "\n");
+      else if (result.mismatch == 1) {
+        statistics.append(text("duplexNok") + " ");
+        emailText += text("duplexNok") + " ";
+      }
+        else if (result.mismatch == 2) {
+        statistics.append(text("duplexFullHalf") + "\n");
+        emailText += text("duplexFullHalf") + "\n%0A ";
+      }
+        else if (result.mismatch == 3) {
+        statistics.append(text("duplexHalfFull") + "\n");
+        emailText += text("duplexHalfFull") + "\n%0A ";
+      }
+
+      statistics.append("\n" + text("web100rtt") + " =  " + prtdbl(result.avgrtt) + " " + "ms" + "; ");
+      emailText += "\n%0A" +  text("web100rtt") + " = " + prtdbl(result.avgrtt) + " " + "ms" + "; ";
+
+      statistics.append(text("packetsize") + " = " + result.CurrentMSS + " " + text("bytes") + "; " + text("and") + " \n");
+      emailText += text("packetsize") + " = " + result.CurrentMSS + " " + text("bytes") + "; " + text("and") + " \n%0A";
+
+      if (result.PktsRetrans > 0) {
+                statistics.append(result.PktsRetrans + " " + text("pktsRetrans"));
+        statistics.append(", " + result.DupAcksIn + " " + text("dupAcksIn"));
+        statistics.append(", " + text("and") + " " + result.SACKsRcvd + " " + text("sackReceived") + "\n");
+        emailText += result.PktsRetrans + " " + text("pktsRetrans");
+        emailText += ", " + result.DupAcksIn + " " + text("dupAcksIn");
+        emailText += ", " + text("and") + " " + result.SACKsRcvd + " " + text("sackReceived") + "\n%0A";
+        if (result.Timeouts > 0) {
+                    statistics.append(text("connStalled") + " " + result.Timeouts + " " + text("timesPktLoss") + "\n");
         }
   
-        statistics.append(messages.getString("connIdle") + " " + prtdbl(waitsec) + " " + messages.getString("seconds") + " (" + prtdbl((waitsec/timesec)*100) + messages.getString("pctOfTime") + ")\n");
-        emailText += messages.getString("connStalled") + " " + Timeouts + " " + messages.getString("timesPktLoss") + "\n%0A";
-        emailText += messages.getString("connIdle") + " " + prtdbl(waitsec) + " " + messages.getString("seconds") + " (" + prtdbl((waitsec/timesec)*100) + messages.getString("pctOfTime") + ")\n%0A";
+        statistics.append(text("connIdle") + " " + prtdbl(result.waitsec) + " " + text("seconds") + " (" + prtdbl((result.waitsec/result.timesec)*100) + text("pctOfTime") + ")\n");
+        emailText += text("connStalled") + " " + result.Timeouts + " " + text("timesPktLoss") + "\n%0A";
+        emailText += text("connIdle") + " " + prtdbl(result.waitsec) + " " + text("seconds") + " (" + prtdbl((result.waitsec/result.timesec)*100) + text("pctOfTime") + ")\n%0A";
       } 
-      else if (DupAcksIn > 0) {
-        statistics.append(messages.getString("noPktLoss1") + " - ");
-        statistics.append(messages.getString("ooOrder") + " " + prtdbl(order*100) + messages.getString("pctOfTime") + "\n");
-        emailText += messages.getString("noPktLoss1") + " - ";
-        emailText += messages.getString("ooOrder") + " " + prtdbl(order*100) + messages.getString("pctOfTime") + "\n%0A";
+      else if (result.DupAcksIn > 0) {
+        statistics.append(text("noPktLoss1") + " - ");
+        statistics.append(text("ooOrder") + " " + prtdbl(result.order*100) + text("pctOfTime") + "\n");
+        emailText += text("noPktLoss1") + " - ";
+        emailText += text("ooOrder") + " " + prtdbl(result.order*100) + text("pctOfTime") + "\n%0A";
       } 
       else {
-        statistics.append(messages.getString("noPktLoss2") + ".\n");
-        emailText += messages.getString("noPktLoss2") + ".\n%0A";
+        statistics.append(text("noPktLoss2") + ".\n");
+        emailText += text("noPktLoss2") + ".\n%0A";
       }
 
       if ((tests & TEST_C2S) == TEST_C2S) {
         if (c2sspd > sc2sspd) {
           if (sc2sspd < (c2sspd  * (1.0 - VIEW_DIFF))) {
-            statistics.append(messages.getString("c2s") + " " + messages.getString("qSeen") + ": " + prtdbl(100 * (c2sspd - sc2sspd) / c2sspd) + "%\n");
+            statistics.append(text("c2s") + " " + text("qSeen") + ": " + prtdbl(100 * (c2sspd - sc2sspd) / c2sspd) + "%\n");
           }
           else {
-            statistics.append(messages.getString("c2s") + " " + messages.getString("qSeen") + ": " + prtdbl(100 * (c2sspd - sc2sspd) / c2sspd) + "%\n");
+            statistics.append(text("c2s") + " " + text("qSeen") + ": " + prtdbl(100 * (c2sspd - sc2sspd) / c2sspd) + "%\n");
           }
         }
       }
@@ -1510,89 +2730,88 @@ public class NdtTests implements Runnable {
       if ((tests & TEST_S2C) == TEST_S2C) {
         if (ss2cspd > s2cspd) {
           if (s2cspd < (ss2cspd  * (1.0 - VIEW_DIFF))) {
-            statistics.append(messages.getString("s2c") + " " + messages.getString("qSeen") + ": " + prtdbl(100 * (ss2cspd - s2cspd) / ss2cspd) + "%\n");
+            statistics.append(text("s2c") + " " + text("qSeen") + ": " + prtdbl(100 * (ss2cspd - s2cspd) / ss2cspd) + "%\n");
           }
           else {
-            statistics.append(messages.getString("s2c") + " " + messages.getString("qSeen") + ": " + prtdbl(100 * (ss2cspd - s2cspd) / ss2cspd) + "%\n");
+            statistics.append(text("s2c") + " " + text("qSeen") + ": " + prtdbl(100 * (ss2cspd - s2cspd) / ss2cspd) + "%\n");
           }
         }
       }
       
-      if (rwintime > .015) {
-        statistics.append(messages.getString("thisConnIs") + " " + messages.getString("limitRx") + " " + prtdbl(rwintime*100) + messages.getString("pctOfTime") + ".\n");
-        emailText += messages.getString("thisConnIs") + " " + messages.getString("limitRx") + " " + prtdbl(rwintime*100) + messages.getString("pctOfTime") + ".\n%0A";
-        uiServices.setVariable("pub_pctRcvrLimited", rwintime*100);
+      if (result.rwintime > .015) {
+        statistics.append(text("thisConnIs") + " " + text("limitRx") + " " + prtdbl(result.rwintime*100) + text("pctOfTime") + ".\n");
+        emailText += text("thisConnIs") + " " + text("limitRx") + " " + prtdbl(result.rwintime*100) + text("pctOfTime") + ".\n%0A";
 
       // I think there is a bug here, it sometimes tells you to increase the buffer
       // size, but the new size is smaller than the current.
 
-        if (((2*rwin)/rttsec) < mylink) {
-                    statistics.append("  " + messages.getString("incrRxBuf") + " (" + prtdbl(MaxRwinRcvd/1024) + " KB) " + messages.getString("willImprove") + "\n");
+        if (((2*result.rwin)/result.rttsec) < mylink) {
+                    statistics.append("  " + text("incrRxBuf") + " (" + prtdbl(result.MaxRwinRcvd/1024) + " KB) " + text("willImprove") + "\n");
         }
       }
-      if (sendtime > .015) {
-                statistics.append(messages.getString("thisConnIs") + " " + messages.getString("limitTx") + " " + prtdbl(sendtime*100) + messages.getString("pctOfTime") + ".\n");
-                emailText += messages.getString("thisConnIs") + " " + messages.getString("limitTx") + " " + prtdbl(sendtime*100) + messages.getString("pctOfTime") + ".\n%0A";
-        if ((2*(swin/rttsec)) < mylink) {
-                    statistics.append("  " + messages.getString("incrTxBuf") + " (" + prtdbl(Sndbuf/2048) + " KB) " + messages.getString("willImprove") + "\n");
+      if (result.sendtime > .015) {
+                statistics.append(text("thisConnIs") + " " + text("limitTx") + " " + prtdbl(result.sendtime*100) + text("pctOfTime") + ".\n");
+                emailText += text("thisConnIs") + " " + text("limitTx") + " " + prtdbl(result.sendtime*100) + text("pctOfTime") + ".\n%0A";
+        if ((2*(result.swin/result.rttsec)) < mylink) {
+                    statistics.append("  " + text("incrTxBuf") + " (" + prtdbl(result.Sndbuf/2048) + " KB) " + text("willImprove") + "\n");
         }
       }
-      if (cwndtime > .005) {
-        statistics.append(messages.getString("thisConnIs") + " " + messages.getString("limitNet") + " " + prtdbl(cwndtime*100) + messages.getString("pctOfTime") + ".\n");
-        emailText += messages.getString("thisConnIs") + " " + messages.getString("limitNet") + " " + prtdbl(cwndtime*100) + messages.getString("pctOfTime") + ".\n%0A";
+      if (result.cwndtime > .005) {
+        statistics.append(text("thisConnIs") + " " + text("limitNet") + " " + prtdbl(result.cwndtime*100) + text("pctOfTime") + ".\n");
+        emailText += text("thisConnIs") + " " + text("limitNet") + " " + prtdbl(result.cwndtime*100) + text("pctOfTime") + ".\n%0A";
         // if (cwndtime > .15)
         //  statistics.append("  Contact your local network administrator to report a network problem\n");
         // if (order > .15)
         //  statistics.append("  Contact your local network admin and report excessive packet reordering\n");
       }
-      if ((spd < 4) && (loss > .01)) {
-        statistics.append(messages.getString("excLoss") + "\n");
+      if ((result.spd < 4) && (result.loss > .01)) {
+        statistics.append(text("excLoss") + "\n");
       }
       
-      statistics.append("\n" + messages.getString("web100tcpOpts") + " \n");
+      statistics.append("\n" + text("web100tcpOpts") + " \n");
       statistics.append("RFC 2018 Selective Acknowledgment: ");
-      if(SACKEnabled == Zero)
-        statistics.append(messages.getString("off") + "\n");
+      if(result.SACKEnabled == Zero)
+        statistics.append(text("off") + "\n");
       else
-        statistics.append(messages.getString("on") + "\n");
+        statistics.append(text("on") + "\n");
  
       statistics.append("RFC 896 Nagle Algorithm: ");
-      if(NagleEnabled == Zero)
-        statistics.append(messages.getString("off") + "\n");
+      if(result.NagleEnabled == Zero)
+        statistics.append(text("off") + "\n");
       else
-        statistics.append(messages.getString("on") + "\n");
+        statistics.append(text("on") + "\n");
  
       statistics.append("RFC 3168 Explicit Congestion Notification: ");
-      if(ECNEnabled == Zero)
-        statistics.append(messages.getString("off") + "\n");
+      if(result.ECNEnabled == Zero)
+        statistics.append(text("off") + "\n");
       else
-        statistics.append(messages.getString("on") + "\n");
+        statistics.append(text("on") + "\n");
  
       statistics.append("RFC 1323 Time Stamping: ");
-      if(TimestampsEnabled == 0)
-        statistics.append(messages.getString("off") + "\n");
+      if(result.TimestampsEnabled == 0)
+        statistics.append(text("off") + "\n");
       else
-        statistics.append(messages.getString("on") + "\n");
+        statistics.append(text("on") + "\n");
  
       statistics.append("RFC 1323 Window Scaling: ");
-      if (MaxRwinRcvd < 65535)
-          WinScaleRcvd = 0;
-      if((WinScaleRcvd == 0) || (WinScaleRcvd > 20))
-        statistics.append(messages.getString("off") + "\n");
+      if (result.MaxRwinRcvd < 65535)
+          result.WinScaleRcvd = 0;
+      if((result.WinScaleRcvd == 0) || (result.WinScaleRcvd > 20))
+        statistics.append(text("off") + "\n");
       else
-                statistics.append (messages.getString("on") + "; " + messages.getString("scalingFactors") + " -  " + messages.getString("server") + "=" + WinScaleRcvd + ", " + messages.getString("client") + "=" + WinScaleSent + "\n");
+                statistics.append (text("on") + "; " + text("scalingFactors") + " -  " + text("server") + "=" + result.WinScaleRcvd + ", " + text("client") + "=" + result.WinScaleSent + "\n");
       
       statistics.append("\n");
 
       if ((tests & TEST_SFW) == TEST_SFW) {
         switch (c2sResult) {
           case SFW_NOFIREWALL:
-            statistics.append(messages.getString("server") + " '" + host + "' " + messages.getString("firewallNo") + "\n");
-            emailText += messages.getString("server") + " '" + host + "' " + messages.getString("firewallNo") + "\n%0A";
+            statistics.append(text("server") + " '" + host + "' " + text("firewallNo") + "\n");
+            emailText += text("server") + " '" + host + "' " + text("firewallNo") + "\n%0A";
             break;
           case SFW_POSSIBLE:
-            statistics.append(messages.getString("server") + " '" + host + "' " + messages.getString("firewallYes") + "\n");
-            emailText += messages.getString("server") + " '" + host + "' " + messages.getString("firewallYes") + "\n%0A";
+            statistics.append(text("server") + " '" + host + "' " + text("firewallYes") + "\n");
+            emailText += text("server") + " '" + host + "' " + text("firewallYes") + "\n%0A";
             break;
           case SFW_UNKNOWN:
           case SFW_NOTTESTED:
@@ -1600,12 +2819,12 @@ public class NdtTests implements Runnable {
         }
         switch (s2cResult) {
           case SFW_NOFIREWALL:
-            statistics.append(messages.getString("client2") + " " + messages.getString("firewallNo") + "\n");
-            emailText += messages.getString("client2") + " " + messages.getString("firewallNo") + "\n%0A";
+            statistics.append(text("client2") + " " + text("firewallNo") + "\n");
+            emailText += text("client2") + " " + text("firewallNo") + "\n%0A";
             break;
           case SFW_POSSIBLE:
-            statistics.append(messages.getString("client2") + " " + messages.getString("firewallYes") + "\n");
-            emailText += messages.getString("client2") + " " + messages.getString("firewallYes") + "\n%0A";
+            statistics.append(text("client2") + " " + text("firewallYes") + "\n");
+            emailText += text("client2") + " " + text("firewallYes") + "\n%0A";
             break;
           case SFW_UNKNOWN:
           case SFW_NOTTESTED:
@@ -1617,23 +2836,74 @@ public class NdtTests implements Runnable {
 //        + (CurrentMSS*8/1024) + "kbits, RTT = " + prtdbl(avgrtt) + "msec, " + "and loss = " + loss + "\n");
       diagnosis.append("\n");
 
-            diagnosis.append(messages.getString("theoreticalLimit") + " " + prtdbl(estimate) + " " + "Mbps\n");
-      emailText += messages.getString("theoreticalLimit") + " " + prtdbl(estimate) + " Mbps\n%0A";
+            diagnosis.append(text("theoreticalLimit") + " " + prtdbl(result.estimate) + " " + "Mbps\n");
+      emailText += text("theoreticalLimit") + " " + prtdbl(result.estimate) + " Mbps\n%0A";
  
-            diagnosis.append(messages.getString("ndtServerHas") + " " + prtdbl(Sndbuf/2048) + " " + messages.getString("kbyteBufferLimits") + " " + prtdbl(swin/rttsec) + " Mbps\n");
-      emailText += messages.getString("ndtServerHas") + " " + prtdbl(Sndbuf/2048) + " " + messages.getString("kbyteBufferLimits") + " " + prtdbl(swin/rttsec) + " Mbps\n%0A";
+            diagnosis.append(text("ndtServerHas") + " " + prtdbl(result.Sndbuf/2048) + " " + text("kbyteBufferLimits") + " " + prtdbl(result.swin/result.rttsec) + " Mbps\n");
+      emailText += text("ndtServerHas") + " " + prtdbl(result.Sndbuf/2048) + " " + text("kbyteBufferLimits") + " " + prtdbl(result.swin/result.rttsec) + " Mbps\n%0A";
 
-            diagnosis.append(messages.getString("yourPcHas") + " " + prtdbl(MaxRwinRcvd/1024) + " " + messages.getString("kbyteBufferLimits") + " " + prtdbl(rwin/rttsec) + " Mbps\n");
-      emailText += messages.getString("yourPcHas") + " " + prtdbl(MaxRwinRcvd/1024) + " " + messages.getString("kbyteBufferLimits") + " " + prtdbl(rwin/rttsec) + " Mbps\n%0A";
+            diagnosis.append(text("yourPcHas") + " " + prtdbl(result.MaxRwinRcvd/1024) + " " + text("kbyteBufferLimits") + " " + prtdbl(result.rwin/result.rttsec) + " Mbps\n");
+      emailText += text("yourPcHas") + " " + prtdbl(result.MaxRwinRcvd/1024) + " " + text("kbyteBufferLimits") + " " + prtdbl(result.rwin/result.rttsec) + " Mbps\n%0A";
 
-      diagnosis.append(messages.getString("flowControlLimits") + " " +  prtdbl(cwin/rttsec) + " Mbps\n");
-      emailText += messages.getString("flowControlLimits") + " " +  prtdbl(cwin/rttsec) + " Mbps\n%0A";
+      diagnosis.append(text("flowControlLimits") + " " +  prtdbl(result.cwin/result.rttsec) + " Mbps\n");
+      emailText += text("flowControlLimits") + " " +  prtdbl(result.cwin/result.rttsec) + " Mbps\n%0A";
 
-      diagnosis.append("\n" + messages.getString("clientDataReports") + " '" + prttxt(c2sData) + "', " + messages.getString("clientAcksReport") + " '" + prttxt(c2sAck) + "'\n" + messages.getString("serverDataReports") + " '" + prttxt(s2cData) + "', " + messages.getString("serverAcksReport") + " '" + prttxt(s2cAck) + "'\n");
+      diagnosis.append("\n" + text("clientDataReports") + " '" + prttxt(result.c2sData) + "', " + text("clientAcksReport") + " '" + prttxt(result.c2sAck) + "'\n" + text("serverDataReports") + " '" + prttxt(result.s2cData) + "', " + text("serverAcksReport") + " '" + prttxt(result.s2cAck) + "'\n");
 
 
     }
   }  // testResults()
+
+  /**
+   * Publishes the variables and events that {@link #testResults()} derives
+   * from the results, in headless mode too.
+   */
+  private void publishResults() {
+    uiServices.setVariable("pub_osName", System.getProperty("os.name"));
+    uiServices.setVariable("pub_osArch", System.getProperty("os.arch"));
+    uiServices.setVariable("pub_osVer", System.getProperty("os.version"));
+    uiServices.setVariable("pub_javaVer", System.getProperty("java.version"));
+    if (result.CountRTT <= 0) {
+      return;
+    }
+    String accessTech = accessTech(result.c2sData);
+    if (accessTech != null) {
+      uiServices.setVariable("pub_AccessTech", accessTech);
+    }
+    if ((tests & TEST_C2S) == TEST_C2S
+        && sc2sspd < (c2sspd * (1.0 - VIEW_DIFF))) {
+      uiServices.onPacketQueuingDetected();
+    }
+    if ((tests & TEST_S2C) == TEST_S2C
+        && s2cspd < (ss2cspd * (1.0 - VIEW_DIFF))) {
+      uiServices.onPacketQueuingDetected();
+    }
+    if (result.rwintime > .015) {
+      uiServices.setVariable("pub_pctRcvrLimited", result.rwintime * 100);
+    }
+  }
+
+  /**
+   * The pub_AccessTech name of the bottleneck link type found by the server.
+   *
+   * @param c2sData the server's link type code
+   * @return the name, or null for an unknown code
+   */
+  private static String accessTech(int c2sData) {
+    switch (c2sData) {
+      case 1: return "Dial-up Modem";
+      case 0:
+      case 2: return "Cable/DSL modem";
+      case 3: return "10 Mbps Ethernet";
+      case 4: return "45 Mbps T3/DS3 subnet";
+      case 5: return "100 Mbps Ethernet";
+      case 6: return "622 Mbps OC-12";
+      case 7: return "1.0 Gbps Gigabit Ethernet";
+      case 8: return "2.4 Gbps OC-48";
+      case 9: return "10 Gigabit Ethernet/OC-192";
+      default: return c2sData < 0 ? "Connection type unknown" : null;
+    }
+  }
   
   
 
@@ -1684,35 +2954,39 @@ public class NdtTests implements Runnable {
     // results.append("mss=" + mss + " winsrecv=" + winsrecv + " winssent=" +
     //  winssent + "\n");
 
+    boolean preserved = false;
+    try {
+      preserved = InetAddress.getByName(ssip).equals(InetAddress.getByName(csip));
+    }
+    catch (UnknownHostException e) {
+      preserved = ssip.equals(csip);
+    }
+    uiServices.setVariable("pub_natBox", preserved ? "no" : "yes");
+    if (headless) {
+      // The rest is only text.
+      return;
+    }
+
     if (mss == 1456)
-      statistics.append(messages.getString("packetSizePreserved") + "\n");
+      statistics.append(text("packetSizePreserved") + "\n");
     else
-      statistics.append(messages.getString("middleboxModifyingMss") + "\n");
+      statistics.append(text("middleboxModifyingMss") + "\n");
 
     // if ((winsrecv == -1) && (winssent == -1))
     //     statistics.append("Window scaling option is preserved End-to-End\n");
     // else
     //     statistics.append("Information: Network Middlebox is modifying Window scaling option\n");
 
-    boolean preserved = false;
-    try {
-      preserved = InetAddress.getByName(ssip).equals(InetAddress.getByName(csip));
-    }
-    catch (UnknownHostException e) {
-      preserved = ssip.equals(csip);
-    }
     if (preserved) {
-      statistics.append(messages.getString("serverIpPreserved") + "\n");
-      uiServices.setVariable("pub_natBox", "no");
+      statistics.append(text("serverIpPreserved") + "\n");
     }
     else {
-      uiServices.setVariable("pub_natBox", "yes");
-            statistics.append(messages.getString("serverIpModified") + "\n");
-      statistics.append("\t" + messages.getString("serverSays") + " [" + ssip + "], " + messages.getString("clientSays") +" [" + csip + "]\n");
+            statistics.append(text("serverIpModified") + "\n");
+      statistics.append("\t" + text("serverSays") + " [" + ssip + "], " + text("clientSays") +" [" + csip + "]\n");
     }
 
     if (ccip.equals("127.0.0.1")) {
-      statistics.append(messages.getString("clientIpNotFound") + "\n");
+      statistics.append(text("clientIpNotFound") + "\n");
     }
     else {
       try {
@@ -1726,10 +3000,10 @@ public class NdtTests implements Runnable {
       }
 
       if (preserved)
-        statistics.append(messages.getString("clientIpPreserved") + "\n");
+        statistics.append(text("clientIpPreserved") + "\n");
       else {
-                statistics.append(messages.getString("clientIpModified") + "\n");
-                statistics.append("\t" + messages.getString("serverSays") + " [" + scip + "], " + messages.getString("clientSays") +" [" + ccip + "]\n");
+                statistics.append(text("clientIpModified") + "\n");
+                statistics.append("\t" + text("serverSays") + " [" + scip + "], " + text("clientSays") +" [" + ccip + "]\n");
       }
     }
   } // middleboxResults()
@@ -1761,11 +3035,11 @@ public class NdtTests implements Runnable {
     String str = null;
 
     if (val == -1)
-      str = messages.getString("systemFault");
+      str = text("systemFault");
     else if (val == 0)
-      str = messages.getString("rtt");
+      str = text("rtt");
     else if (val == 1)
-      str = messages.getString("dialup2");
+      str = text("dialup2");
     else if (val == 2)
       str = "T1";
     else if (val == 3)
@@ -1787,196 +3061,18 @@ public class NdtTests implements Runnable {
   
   
 
-  /* This routine saves the specific value into the variable of the
-  * same name.  There should probably be an easier way to do this.
-  */
-  public void save_dbl_values(String sysvar, double sysval) {
-    if(sysvar.equals("bw:")) 
-      estimate = sysval;
-    else if(sysvar.equals("loss:")) { 
-      loss = sysval;
-      uiServices.setVariable("pub_loss", loss);
-    }
-    else if(sysvar.equals("avgrtt:")) {
-      avgrtt = sysval;
-      uiServices.setVariable("pub_avgrtt", avgrtt);
-    }
-    else if(sysvar.equals("waitsec:")) 
-      waitsec = sysval;
-    else if(sysvar.equals("timesec:")) 
-      timesec = sysval;
-    else if(sysvar.equals("order:")) 
-      order = sysval;
-    else if(sysvar.equals("rwintime:")) 
-      rwintime = sysval;
-    else if(sysvar.equals("sendtime:")) 
-      sendtime = sysval;
-    else if(sysvar.equals("cwndtime:")) {
-      cwndtime = sysval;
-      uiServices.setVariable("pub_cwndtime", cwndtime);
-      uiServices.setVariable("pub_pctcwndtime", cwndtime*100.0);
-    }
-    else if(sysvar.equals("rttsec:")) 
-      rttsec = sysval;
-    else if(sysvar.equals("rwin:")) 
-      rwin = sysval;
-    else if(sysvar.equals("swin:")) 
-      swin = sysval;
-    else if(sysvar.equals("cwin:")) 
-      cwin = sysval;
-    else if(sysvar.equals("spd:")) 
-      spd = sysval;
-    else if(sysvar.equals("aspd:")) 
-      aspd = sysval;
-  } // save_dbl_values()
-
-
-
-  public void save_int_values(String sysvar, int sysval) {
-    /*  Values saved for interpretation:
-    * SumRTT 
-    * CountRTT
-    * CurrentMSS
-    * Timeouts
-    * PktsRetrans
-    * SACKsRcvd
-    * DupAcksIn
-    * MaxRwinRcvd
-    * MaxRwinSent
-    * Sndbuf
-    * Rcvbuf
-    * DataPktsOut
-    * SndLimTimeRwin
-    * SndLimTimeCwnd
-    * SndLimTimeSender
-    */   
-    if(sysvar.equals("MSSSent:")) 
-      MSSSent = sysval;
-    else if(sysvar.equals("MSSRcvd:")) 
-      MSSRcvd = sysval;
-    else if(sysvar.equals("ECNEnabled:")) 
-      ECNEnabled = sysval;
-    else if(sysvar.equals("NagleEnabled:")) 
-      NagleEnabled = sysval;
-    else if(sysvar.equals("SACKEnabled:")) 
-      SACKEnabled = sysval;
-    else if(sysvar.equals("TimestampsEnabled:")) 
-      TimestampsEnabled = sysval;
-    else if(sysvar.equals("WinScaleRcvd:")) 
-      WinScaleRcvd = sysval;
-    else if(sysvar.equals("WinScaleSent:")) 
-      WinScaleSent = sysval;
-    else if(sysvar.equals("SumRTT:")) 
-      SumRTT = sysval;
-    else if(sysvar.equals("CountRTT:")) 
-      CountRTT = sysval;
-    else if(sysvar.equals("CurMSS:"))
-      CurrentMSS = sysval;
-    else if(sysvar.equals("Timeouts:")) 
-      Timeouts = sysval;
-    else if(sysvar.equals("PktsRetrans:")) 
-      PktsRetrans = sysval;
-    else if(sysvar.equals("SACKsRcvd:")) {
-      SACKsRcvd = sysval;
-      uiServices.setVariable("pub_SACKsRcvd", SACKsRcvd);
-    }
-    else if(sysvar.equals("DupAcksIn:")) 
-      DupAcksIn = sysval;
-    else if(sysvar.equals("MaxRwinRcvd:")) {
-      MaxRwinRcvd = sysval;
-      uiServices.setVariable("pub_MaxRwinRcvd", MaxRwinRcvd);
-    }
-    else if(sysvar.equals("MaxRwinSent:")) 
-      MaxRwinSent = sysval;
-    else if(sysvar.equals("Sndbuf:")) 
-      Sndbuf = sysval;
-    else if(sysvar.equals("X_Rcvbuf:")) 
-      Rcvbuf = sysval;
-    else if(sysvar.equals("DataPktsOut:")) 
-      DataPktsOut = sysval;
-    else if(sysvar.equals("FastRetran:")) 
-      FastRetran = sysval;
-    else if(sysvar.equals("AckPktsOut:")) 
-      AckPktsOut = sysval;
-    else if(sysvar.equals("SmoothedRTT:")) 
-      SmoothedRTT = sysval;
-    else if(sysvar.equals("CurCwnd:")) 
-      CurrentCwnd = sysval;
-    else if(sysvar.equals("MaxCwnd:")) 
-      MaxCwnd = sysval;
-    else if(sysvar.equals("SndLimTimeRwin:")) 
-      SndLimTimeRwin = sysval;
-    else if(sysvar.equals("SndLimTimeCwnd:")) 
-      SndLimTimeCwnd = sysval;
-    else if(sysvar.equals("SndLimTimeSender:")) 
-      SndLimTimeSender = sysval;
-    else if(sysvar.equals("DataBytesOut:")) 
-      DataBytesOut = sysval;
-    else if(sysvar.equals("AckPktsIn:")) 
-      AckPktsIn = sysval;
-    else if(sysvar.equals("SndLimTransRwin:"))
-      SndLimTransRwin = sysval;
-    else if(sysvar.equals("SndLimTransCwnd:"))
-      SndLimTransCwnd = sysval;
-    else if(sysvar.equals("SndLimTransSender:"))
-      SndLimTransSender = sysval;
-    else if(sysvar.equals("MaxSsthresh:"))
-      MaxSsthresh = sysval;
-    else if(sysvar.equals("CurRTO:")) {
-      CurrentRTO = sysval;
-      uiServices.setVariable("pub_CurRTO", CurrentRTO);
-    }
-    else if(sysvar.equals("MaxRTO:")) {
-      uiServices.setVariable("pub_MaxRTO", sysval);
-    }
-    else if(sysvar.equals("MinRTO:")) {
-      uiServices.setVariable("pub_MinRTO", sysval);
-    }
-    else if(sysvar.equals("MinRTT:")) {
-      uiServices.setVariable("pub_MinRTT", sysval);
-    }
-    else if(sysvar.equals("MaxRTT:")) {
-      uiServices.setVariable("pub_MaxRTT", sysval);
-    }
-    else if(sysvar.equals("CurRwinRcvd:")) {
-      uiServices.setVariable("pub_CurRwinRcvd", sysval);
-    }   
-    else if(sysvar.equals("Timeouts:")) {
-      uiServices.setVariable("pub_Timeouts", sysval);
-    } 
-    else if(sysvar.equals("c2sData:"))
-      c2sData = sysval;
-    else if(sysvar.equals("c2sAck:"))
-      c2sAck = sysval;
-    else if(sysvar.equals("s2cData:"))
-      s2cData = sysval;
-    else if(sysvar.equals("s2cAck:"))
-      s2cAck = sysval;
-    else if(sysvar.equals("PktsOut:"))
-      PktsOut = sysval;
-    else if(sysvar.equals("mismatch:")) {
-      mismatch = sysval;
-      uiServices.setVariable("pub_mismatch", mismatch);
-    }
-    else if(sysvar.equals("congestion:")) {
-      congestion = sysval;
-      uiServices.setVariable("pub_congestion", congestion);
-    }
-    else if(sysvar.equals("bad_cable:")) {
-      bad_cable = sysval;
-      uiServices.setVariable("pub_Bad_cable", bad_cable);
-    }
-    else if(sysvar.equals("half_duplex:"))
-      half_duplex = sysval;
-    else if(sysvar.equals("CongestionSignals:"))
-      CongestionSignals = sysval;
-    else if(sysvar.equals("RcvWinScale:")) {
-      if (RcvWinScale > 15)
-        RcvWinScale = 0;
-      else
-        RcvWinScale = sysval;
+
+  /**
+   * Looks up a message in the bundle.
+   *
+   * @return the localized message, or the key itself in headless mode
+   */
+  private String text(String key) {
+    if (headless) {
+      return key;
     }
-  }  // save_int_values()
+    return messages.getString(key);
+  }
 
   private void showStatus(String s) {
     uiServices.updateStatus(s);
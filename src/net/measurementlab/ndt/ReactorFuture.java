@@ -0,0 +1,94 @@
+package net.measurementlab.ndt;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The {@link Future} of a measurement that runs on a {@link NdtReactor}.
+ *
+ * The measurement completes it from the I/O thread. Cancelling it runs the
+ * measurement's abort task on the I/O thread, which should close the
+ * measurement's channels; waiters see a {@link CancellationException} right
+ * away.
+ */
+class ReactorFuture<V> implements Future<V> {
+  private final NdtReactor reactor;
+  private final Runnable abort;
+  private final CountDownLatch latch = new CountDownLatch(1);
+  private volatile V value;
+  private volatile Throwable error;
+  private volatile boolean cancelled;
+
+  /**
+   * @param reactor runs the measurement
+   * @param abort run on the I/O thread when the future is cancelled
+   */
+  ReactorFuture(NdtReactor reactor, Runnable abort) {
+    this.reactor = reactor;
+    this.abort = abort;
+  }
+
+  /**
+   * Completes the future, unless it is already complete.
+   *
+   * @param value the result, if error is null
+   * @param error the reason the measurement failed, or null
+   */
+  void set(V value, Throwable error) {
+    if (latch.getCount() == 0) {
+      return;
+    }
+    this.value = value;
+    this.error = error;
+    latch.countDown();
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (latch.getCount() == 0) {
+      return false;
+    }
+    cancelled = true;
+    try {
+      reactor.execute(abort);
+    } catch (IOException e) {
+      // The reactor is gone, and the channels with it.
+    }
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isDone() {
+    return latch.getCount() == 0;
+  }
+
+  public V get() throws InterruptedException, ExecutionException {
+    latch.await();
+    return value();
+  }
+
+  public V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!latch.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return value();
+  }
+
+  private V value() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    if (error != null) {
+      throw new ExecutionException(error);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,157 @@
+package net.measurementlab.ndt;
+
+/**
+ * Fixed-bucket histograms of the reads of a download: how many bytes each
+ * read returned, and how long the client waited between reads.
+ *
+ * The total alone cannot tell a smooth transfer from one that stops for half
+ * a second whenever the radio changes state. Gaps longer than
+ * {@link #STALL_MILLIS} are also counted as stalls, which is where cellular
+ * RRC promotion delays and WiFi power-save wakeups show up.
+ *
+ * Nothing is allocated once the instance exists, so the receive loops can
+ * record every read. An instance is not thread-safe; each connection keeps
+ * its own and they are {@link #merge merged} when the data phase ends.
+ */
+public final class ReceiveStats {
+  /** Upper bounds of the read size buckets, in bytes. */
+  private static final int[] SIZE_BOUNDS =
+      {512, 1024, 2048, 4096, 8192, 16384, 32768, 65536};
+
+  /** Upper bounds of the gap buckets, in milliseconds. */
+  private static final int[] GAP_BOUNDS =
+      {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+  /** A gap longer than this, in milliseconds, counts as a stall. */
+  public static final int STALL_MILLIS = 200;
+
+  /** {@link #GAP_BOUNDS} in nanoseconds. */
+  private static final long[] GAP_BOUNDS_NANOS = new long[GAP_BOUNDS.length];
+
+  static {
+    for (int i = 0; i < GAP_BOUNDS.length; ++i) {
+      GAP_BOUNDS_NANOS[i] = GAP_BOUNDS[i] * 1000000L;
+    }
+  }
+
+  private static final long STALL_NANOS = STALL_MILLIS * 1000000L;
+
+  /** Reads per size bucket; the last bucket is for larger reads. */
+  private final long[] sizes = new long[SIZE_BOUNDS.length + 1];
+
+  /** Gaps per bucket; the last bucket is for longer gaps. */
+  private final long[] gaps = new long[GAP_BOUNDS.length + 1];
+
+  private long reads;
+  private long stalls;
+  private long stallNanos;
+  private long maxGapNanos;
+
+  /** When the last read returned, in {@link System#nanoTime()} units. */
+  private long lastNanos;
+
+  /**
+   * Starts timing gaps, so the wait for the first byte counts as one.
+   *
+   * @param nowNanos the current {@link System#nanoTime()}
+   */
+  void start(long nowNanos) {
+    lastNanos = nowNanos;
+  }
+
+  /**
+   * Records a read that returned data.
+   *
+   * @param bytes the number of bytes the read returned
+   * @param nowNanos the {@link System#nanoTime()} when it returned
+   */
+  void add(int bytes, long nowNanos) {
+    int i = 0;
+    while (i < SIZE_BOUNDS.length && bytes > SIZE_BOUNDS[i]) {
+      ++i;
+    }
+    sizes[i]++;
+
+    long gap = nowNanos - lastNanos;
+    lastNanos = nowNanos;
+    i = 0;
+    while (i < GAP_BOUNDS_NANOS.length && gap >= GAP_BOUNDS_NANOS[i]) {
+      ++i;
+    }
+    gaps[i]++;
+    if (gap > STALL_NANOS) {
+      stalls++;
+      stallNanos += gap;
+    }
+    if (gap > maxGapNanos) {
+      maxGapNanos = gap;
+    }
+    reads++;
+  }
+
+  /** Adds the reads recorded by another connection to these. */
+  void merge(ReceiveStats other) {
+    for (int i = 0; i < sizes.length; ++i) {
+      sizes[i] += other.sizes[i];
+    }
+    for (int i = 0; i < gaps.length; ++i) {
+      gaps[i] += other.gaps[i];
+    }
+    reads += other.reads;
+    stalls += other.stalls;
+    stallNanos += other.stallNanos;
+    maxGapNanos = Math.max(maxGapNanos, other.maxGapNanos);
+  }
+
+  /** The number of reads that returned data. */
+  public long getReads() {
+    return reads;
+  }
+
+  /**
+   * The upper bounds of the read size buckets, in bytes. Bucket i counts the
+   * reads of more than bound i-1 and at most bound i bytes.
+   */
+  public int[] getSizeBounds() {
+    return SIZE_BOUNDS.clone();
+  }
+
+  /**
+   * The number of reads in each size bucket; there is one more bucket than
+   * bounds, for the reads larger than the last bound.
+   */
+  public long[] getSizes() {
+    return sizes.clone();
+  }
+
+  /**
+   * The upper bounds of the gap buckets, in milliseconds. Bucket i counts the
+   * gaps of at least bound i-1 and less than bound i.
+   */
+  public int[] getGapBounds() {
+    return GAP_BOUNDS.clone();
+  }
+
+  /**
+   * The number of gaps in each bucket; there is one more bucket than bounds,
+   * for the gaps at least as long as the last bound.
+   */
+  public long[] getGaps() {
+    return gaps.clone();
+  }
+
+  /** The number of gaps longer than {@link #STALL_MILLIS}. */
+  public long getStalls() {
+    return stalls;
+  }
+
+  /** The total length of the stalls, in milliseconds. */
+  public double getStallMillis() {
+    return stallNanos / 1e6;
+  }
+
+  /** The longest gap between reads, in milliseconds. */
+  public double getMaxGapMillis() {
+    return maxGapNanos / 1e6;
+  }
+}
@@ -0,0 +1,177 @@
+package net.measurementlab.ndt;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.StringTokenizer;
+
+/**
+ * The socket options that a client applies to every connection it opens.
+ *
+ * Control connections (the NDT control channel and the simple firewall test)
+ * carry short request/response messages, so they get TCP_NODELAY. Data
+ * connections get buffers sized to the path: once the middlebox test has
+ * given a rate and the control handshake an RTT, the buffer on the busy side
+ * of each C2S and S2C connection is raised to a few times the
+ * bandwidth-delay product, before the connection is made so that the window
+ * scale is negotiated for it.
+ *
+ * On Linux, setting SO_SNDBUF or SO_RCVBUF switches the kernel's buffer
+ * auto-tuning off for that socket, and auto-tuning grows a buffer up to the
+ * last field of tcp_wmem or tcp_rmem. So a buffer is only set when the target
+ * is above that ceiling, and when the socket option may go above it
+ * (wmem_max, rmem_max); otherwise auto-tuning is left on. Where the limits
+ * cannot be read, auto-tuning is always left on.
+ */
+public final class SocketTuning {
+  /** A control connection: TCP_NODELAY, default buffers. */
+  static final int CONTROL = 0;
+  /** A data connection the client writes to. */
+  static final int UPLOAD = 1;
+  /** A data connection the client reads from. */
+  static final int DOWNLOAD = 2;
+
+  /** Smallest buffer the auto-sizing picks, in bytes. */
+  public static final int MIN_BUFFER = 64 * 1024;
+
+  /** Largest buffer the auto-sizing picks, in bytes. */
+  public static final int MAX_BUFFER = 4 * 1024 * 1024;
+
+  /**
+   * Multiple of the bandwidth-delay product measured by the middlebox test.
+   * The server caps the middlebox test's window, so the throughput tests can
+   * go well past its rate.
+   */
+  static final int BDP_HEADROOM = 4;
+
+  /** Linux's auto-tuning ceiling and socket option limit for send buffers. */
+  private static final int SEND_CEILING =
+      readLimit("/proc/sys/net/ipv4/tcp_wmem", 2);
+  private static final int SEND_MAX =
+      readLimit("/proc/sys/net/core/wmem_max", 0);
+  /** The same for receive buffers. */
+  private static final int RECEIVE_CEILING =
+      readLimit("/proc/sys/net/ipv4/tcp_rmem", 2);
+  private static final int RECEIVE_MAX =
+      readLimit("/proc/sys/net/core/rmem_max", 0);
+
+  private boolean noDelay = true;
+  private boolean autoSize = true;
+  private int bufferSize;
+
+  /**
+   * Sets TCP_NODELAY on control connections. The default is true.
+   */
+  public void setNoDelay(boolean noDelay) {
+    this.noDelay = noDelay;
+  }
+
+  /**
+   * Sets whether data connection buffers are sized from the path. The default
+   * is true.
+   */
+  public void setAutoSize(boolean autoSize) {
+    this.autoSize = autoSize;
+  }
+
+  /**
+   * Uses a fixed buffer size for data connections instead of sizing it from
+   * the path.
+   *
+   * @param bytes the buffer size; 0 leaves the OS default
+   */
+  public void setBufferSize(int bytes) {
+    bufferSize = bytes;
+    autoSize = false;
+  }
+
+  /**
+   * The data connection buffer size for a path.
+   *
+   * @param rttMillis the round-trip time to the server, in ms; 0 if unknown
+   * @param mbps a throughput measured on the path, in Mb/s; 0 if unknown
+   * @return the size to use, in bytes; 0 to leave the OS default
+   */
+  int bufferSize(double rttMillis, double mbps) {
+    if (!autoSize) {
+      return bufferSize;
+    }
+    if (rttMillis <= 0 || mbps <= 0) {
+      return 0;
+    }
+    // Mb/s times ms is kilobits.
+    double bdp = mbps * rttMillis * 1000 / 8;
+    return (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, BDP_HEADROOM * bdp));
+  }
+
+  /**
+   * Applies the options to a socket that is not connected yet.
+   *
+   * @param kind {@link #CONTROL}, {@link #UPLOAD} or {@link #DOWNLOAD}
+   * @param buffer the data connection buffer size from
+   *     {@link #bufferSize(double, double)}; ignored for control connections
+   * @return true if the buffer was set, false if it was left to the kernel's
+   *     auto-tuning
+   */
+  boolean apply(Socket socket, int kind, int buffer) throws SocketException {
+    switch (kind) {
+      case CONTROL:
+        socket.setTcpNoDelay(noDelay);
+        return false;
+      case UPLOAD:
+        if (setBuffer(buffer, SEND_CEILING, SEND_MAX)) {
+          socket.setSendBufferSize(buffer);
+          return true;
+        }
+        return false;
+      case DOWNLOAD:
+        if (setBuffer(buffer, RECEIVE_CEILING, RECEIVE_MAX)) {
+          socket.setReceiveBufferSize(buffer);
+          return true;
+        }
+        return false;
+    }
+    return false;
+  }
+
+  /**
+   * Whether setting a buffer beats auto-tuning. A fixed size asked for with
+   * {@link #setBufferSize(int)} is always set.
+   */
+  private boolean setBuffer(int buffer, int ceiling, int max) {
+    if (buffer <= 0) {
+      return false;
+    }
+    if (!autoSize) {
+      return true;
+    }
+    return ceiling > 0 && buffer > ceiling && max > ceiling;
+  }
+
+  /**
+   * Reads one field of a Linux sysctl file.
+   *
+   * @return the value, or 0 if it cannot be read, e.g. off Linux
+   */
+  private static int readLimit(String path, int field) {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+        StringTokenizer tokenizer = new StringTokenizer(reader.readLine());
+        for (int i = 0; i < field; ++i) {
+          tokenizer.nextToken();
+        }
+        return Integer.parseInt(tokenizer.nextToken());
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      return 0;
+    } catch (RuntimeException e) {
+      // A missing or malformed field.
+      return 0;
+    }
+  }
+}
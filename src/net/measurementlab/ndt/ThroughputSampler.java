@@ -0,0 +1,222 @@
+package net.measurementlab.ndt;
+
+/**
+ * Records the number of bytes transferred in each fixed-length interval of a
+ * throughput test.
+ *
+ * The intervals are measured with {@link System#nanoTime()}, so wall-clock
+ * adjustments during a test do not distort the curve. Bytes are attributed to
+ * the interval in which the read or write that moved them returned. The
+ * parallel connections of a multi-stream test can share one sampler.
+ *
+ * Since the sampler sees every byte of a test, it also decides when a data
+ * phase should end early. The data loops poll {@link #isStopped()}.
+ */
+class ThroughputSampler {
+  /** Stop reason used when the throughput settled down. */
+  static final String STOP_CONVERGED = "converged";
+
+  /** Stop reason used when the data phase moved its byte budget. */
+  static final String STOP_BUDGET = "budget";
+
+  /** Stop reason used when the measurement ran out of time. */
+  static final String STOP_DEADLINE = "deadline";
+
+  /** Length of one sample interval, in nanoseconds. */
+  private final long intervalNanos;
+
+  /** Length of one sample interval, in milliseconds. */
+  private final int intervalMillis;
+
+  /** Bytes moved in each completed interval. */
+  private long[] samples;
+
+  /** Number of completed intervals in {@link #samples}. */
+  private int count;
+
+  /** Bytes moved so far in the current interval. */
+  private long current;
+
+  /** When the current interval ends, in {@link System#nanoTime()} units. */
+  private long intervalEnd;
+
+  /** Why the data phase should end early; null while it should keep going. */
+  private volatile String stopReason;
+
+  /** Number of samples checked for convergence; 0 disables the check. */
+  private int convergenceWindow;
+
+  /** Largest coefficient of variation that counts as converged. */
+  private double convergenceThreshold;
+
+  /** Samples to collect before checking for convergence. */
+  private int convergenceMinSamples;
+
+  /** Bytes after which the data phase ends; 0 means no limit. */
+  private long byteBudget;
+
+  /** Bytes moved since {@link #start()}. */
+  private long total;
+
+  /**
+   * @param intervalMillis length of one sample interval
+   * @param expectedMillis expected test duration, used to size the buffer
+   */
+  ThroughputSampler(int intervalMillis, long expectedMillis) {
+    this.intervalMillis = intervalMillis;
+    intervalNanos = intervalMillis * 1000000L;
+    samples = new long[(int) (expectedMillis / intervalMillis) + 2];
+  }
+
+  /**
+   * Ends the data phase once the throughput settles down.
+   *
+   * The throughput counts as settled when the coefficient of variation
+   * (standard deviation over mean) of the last few samples drops below the
+   * threshold.
+   *
+   * @param windowMillis length of the sliding window of samples that is checked
+   * @param threshold largest coefficient of variation that counts as settled,
+   *     e.g. 0.1; 0 disables the check
+   * @param minMillis the phase always runs for at least this long
+   */
+  void setConvergence(int windowMillis, double threshold, int minMillis) {
+    convergenceWindow = Math.max(2, windowMillis / intervalMillis);
+    convergenceThreshold = threshold;
+    convergenceMinSamples = Math.max(convergenceWindow,
+        minMillis / intervalMillis);
+  }
+
+  /**
+   * Ends the data phase once it has moved a number of bytes.
+   *
+   * The budget is checked each time bytes are added, so a phase can go over
+   * by about what one read or write moves, usually no more than a socket
+   * buffer.
+   *
+   * @param bytes the budget; 0 disables the check
+   */
+  void setByteBudget(long bytes) {
+    byteBudget = bytes;
+  }
+
+  /**
+   * Asks the data loops to end the current phase.
+   *
+   * @param reason reported by {@link #getStopReason()}; only the first reason
+   *     given is kept
+   */
+  synchronized void stop(String reason) {
+    if (stopReason == null) {
+      stopReason = reason;
+    }
+  }
+
+  /** True if the data loops should stop before their time is up. */
+  boolean isStopped() {
+    return stopReason != null;
+  }
+
+  /** Why the data phase was ended early, or null if it was not. */
+  String getStopReason() {
+    return stopReason;
+  }
+
+  /** Discards any previous samples and starts the first interval now. */
+  synchronized void start() {
+    count = 0;
+    current = 0;
+    total = 0;
+    stopReason = null;
+    intervalEnd = System.nanoTime() + intervalNanos;
+  }
+
+  /** Accounts for bytes that were just transferred. */
+  void add(long bytes) {
+    add(bytes, System.nanoTime());
+  }
+
+  /**
+   * Accounts for bytes transferred at the given time.
+   *
+   * @param now a {@link System#nanoTime()} reading
+   */
+  synchronized void add(long bytes, long now) {
+    if (now >= intervalEnd) {
+      advance(now);
+    }
+    current += bytes;
+    total += bytes;
+    if (byteBudget > 0 && total >= byteBudget) {
+      stop(STOP_BUDGET);
+    }
+  }
+
+  /**
+   * Closes all the intervals that ended by now.
+   *
+   * The interval in progress is not reported, so every sample covers the same
+   * amount of time.
+   */
+  synchronized void finish() {
+    advance(System.nanoTime());
+  }
+
+  /** The length of one sample interval, in milliseconds. */
+  int getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /** The number of completed intervals. */
+  synchronized int getCount() {
+    return count;
+  }
+
+  /** The bytes moved in the i-th completed interval. */
+  synchronized long getSample(int i) {
+    return samples[i];
+  }
+
+  /** A copy of the bytes moved in each completed interval. */
+  synchronized long[] getSamples() {
+    long[] result = new long[count];
+    System.arraycopy(samples, 0, result, 0, count);
+    return result;
+  }
+
+  /** Closes the current interval and any empty ones that ended by now. */
+  private void advance(long now) {
+    while (now >= intervalEnd) {
+      if (count == samples.length) {
+        long[] grown = new long[samples.length * 2];
+        System.arraycopy(samples, 0, grown, 0, count);
+        samples = grown;
+      }
+      samples[count++] = current;
+      current = 0;
+      intervalEnd += intervalNanos;
+    }
+    if (convergenceThreshold > 0 && count >= convergenceMinSamples
+        && hasConverged()) {
+      stop(STOP_CONVERGED);
+    }
+  }
+
+  /** True if the samples in the convergence window are close enough. */
+  private boolean hasConverged() {
+    double sum = 0;
+    for (int i = count - convergenceWindow; i < count; ++i) {
+      sum += samples[i];
+    }
+    double mean = sum / convergenceWindow;
+    if (mean == 0) {
+      return false;
+    }
+    double squares = 0;
+    for (int i = count - convergenceWindow; i < count; ++i) {
+      double delta = samples[i] - mean;
+      squares += delta * delta;
+    }
+    return Math.sqrt(squares / convergenceWindow) / mean < convergenceThreshold;
+  }
+}
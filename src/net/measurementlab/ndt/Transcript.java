@@ -0,0 +1,207 @@
+package net.measurementlab.ndt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * A recording of the control channel of one run: every message the client
+ * sent or received, and when.
+ *
+ * The binary format is compact, so a corpus of field runs stays small. It
+ * starts with the magic number "NDTT" and a version byte, followed by one
+ * record per message:
+ * <ul>
+ * <li>the direction, 1 byte: {@link #RECEIVED}, {@link #SENT} or {@link #RAW};
+ * <li>microseconds since the previous record, or since recording started,
+ *     as an unsigned LEB128 varint;
+ * <li>the message type, 1 byte;
+ * <li>the body length, 2 bytes, big-endian;
+ * <li>the body.
+ * </ul>
+ * The bytes the client reads outside the framing, i.e. the kickoff that
+ * follows the login, are recorded as {@link #RAW} with type 0.
+ *
+ * {@link NdtTests#setTranscript} and {@link AsyncNdtClient#setTranscript}
+ * record a run, and {@link LocalNdtServer#setReplay} plays one back to a
+ * client.
+ */
+public final class Transcript {
+  /** "NDTT" */
+  private static final int MAGIC = 0x4e445454;
+
+  private static final int VERSION = 1;
+
+  /** A message the server sent to the client. */
+  static final byte RECEIVED = 0;
+
+  /** A message the client sent to the server. */
+  static final byte SENT = 1;
+
+  /** Bytes from the server that are not a framed message. */
+  static final byte RAW = 2;
+
+  private final ArrayList<Record> records;
+
+  private Transcript(ArrayList<Record> records) {
+    this.records = records;
+  }
+
+  /**
+   * Reads a transcript written by a {@link Recorder}.
+   *
+   * @throws IOException if the stream fails or does not hold a transcript
+   */
+  public static Transcript read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a transcript");
+    }
+    int version = data.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported transcript version " + version);
+    }
+    ArrayList<Record> records = new ArrayList<Record>();
+    long micros = 0;
+    int direction;
+    while ((direction = data.read()) != -1) {
+      if (direction != RECEIVED && direction != SENT && direction != RAW) {
+        throw new IOException("Bad transcript record " + records.size());
+      }
+      micros += readVarint(data);
+      byte type = data.readByte();
+      byte[] body = new byte[data.readUnsignedShort()];
+      data.readFully(body);
+      records.add(new Record((byte) direction, micros, type, body));
+    }
+    return new Transcript(records);
+  }
+
+  private static long readVarint(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new EOFException("Bad varint");
+  }
+
+  /** The number of messages. */
+  public int size() {
+    return records.size();
+  }
+
+  /**
+   * The i-th message's direction: {@link #RECEIVED}, {@link #SENT} or
+   * {@link #RAW}.
+   */
+  byte direction(int i) {
+    return records.get(i).direction;
+  }
+
+  /** When the i-th message went by, in microseconds since the start. */
+  long micros(int i) {
+    return records.get(i).micros;
+  }
+
+  /** The i-th message's type. */
+  byte type(int i) {
+    return records.get(i).type;
+  }
+
+  /** The i-th message's body; not to be modified. */
+  byte[] body(int i) {
+    return records.get(i).body;
+  }
+
+  private static final class Record {
+    final byte direction;
+    final long micros;
+    final byte type;
+    final byte[] body;
+
+    Record(byte direction, long micros, byte type, byte[] body) {
+      this.direction = direction;
+      this.micros = micros;
+      this.type = type;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Writes a transcript as the messages go by.
+   *
+   * A failing stream does not fail the run: recording stops, and
+   * {@link #flush()} reports the error.
+   */
+  public static final class Recorder {
+    private final DataOutputStream out;
+    private long lastNanos = System.nanoTime();
+    private boolean started;
+    private IOException error;
+
+    /** @param out receives the transcript; it is flushed but never closed */
+    public Recorder(OutputStream out) {
+      this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /** Records a message; the body is copied out before this returns. */
+    synchronized void record(byte direction, byte type, byte[] body,
+        int offset, int length) {
+      if (error != null) {
+        return;
+      }
+      long now = System.nanoTime();
+      try {
+        if (!started) {
+          out.writeInt(MAGIC);
+          out.writeByte(VERSION);
+          started = true;
+        }
+        out.writeByte(direction);
+        writeVarint(Math.max(0, (now - lastNanos) / 1000));
+        out.writeByte(type);
+        out.writeShort(length);
+        out.write(body, offset, length);
+      } catch (IOException e) {
+        error = e;
+      }
+      lastNanos = now;
+    }
+
+    private void writeVarint(long value) throws IOException {
+      while ((value & ~0x7fL) != 0) {
+        out.writeByte((int) (value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.writeByte((int) value);
+    }
+
+    /**
+     * Writes out what has been recorded.
+     *
+     * @throws IOException the first error of the stream, if any
+     */
+    public synchronized void flush() throws IOException {
+      if (error == null) {
+        try {
+          out.flush();
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+  }
+}
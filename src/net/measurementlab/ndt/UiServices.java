@@ -83,6 +83,71 @@ public interface UiServices {
    */
   public void onFailure(String errorMessage);
 
+  /**
+   * Called after the data phase of a throughput test with the bytes moved in
+   * each fixed-length interval of the test.
+   *
+   * @param test "c2s" for the upload test, "s2c" for the download test
+   * @param intervalMillis length of each interval, in milliseconds
+   * @param bytes number of bytes transferred in each interval, in order
+   */
+  public void onThroughputSamples(String test, int intervalMillis, long[] bytes);
+
+  /**
+   * Called when the data phase of a throughput test ends.
+   *
+   * @param test "c2s" for the upload test, "s2c" for the download test
+   * @param durationMillis how long the data phase ran, in milliseconds
+   * @param stopReason why the data phase was ended before its time ran out,
+   *     e.g. "converged"; null if it ran until the time ran out or the server
+   *     closed the connection
+   */
+  public void onDataPhaseEnd(String test, int durationMillis,
+      String stopReason);
+
+  /**
+   * Called after the data phase of a throughput test with the throughput that
+   * the client measured on each of the test's parallel connections.
+   *
+   * @param test "c2s" for the upload test, "s2c" for the download test
+   * @param totalMbps aggregate throughput of all the connections, in Mb/s
+   * @param streamMbps throughput of each connection, in Mb/s
+   */
+  public void onStreamThroughput(String test, double totalMbps,
+      double[] streamMbps);
+
+  /**
+   * Called after the data phase of the download test with histograms of the
+   * size of each read and of the gaps between reads, summed over all of the
+   * test's connections.
+   *
+   * @param test "s2c"
+   * @param reads the read statistics
+   */
+  public void onReceiveStats(String test, ReceiveStats reads);
+
+  /**
+   * Called with the round-trip times to the server measured while the link
+   * was idle, or while a throughput test kept it busy. Only called if latency
+   * probes were turned on.
+   *
+   * @param test "idle" for the times measured before the tests, "c2s" or
+   *     "s2c" for the times measured during that test's data phase
+   * @param rtt the round-trip times
+   */
+  public void onLatency(String test, LatencyStats rtt);
+
+  /**
+   * Called for each numeric variable in the results the server sends at the
+   * end of the tests, as soon as it arrives. The variables also go to the
+   * diagnosis view as "name: value" text. The snapshot sent at the end of the
+   * S2C test only goes to the diagnosis view and to {@link NdtResult#s2c}.
+   *
+   * @param name the variable's web100 name, e.g. "CurMSS"
+   * @param value a {@link Long} for an integer, a {@link Double} otherwise
+   */
+  public void onResultVariable(String name, Number value);
+
   /**
    * Called when packet queuing is detected.
    */
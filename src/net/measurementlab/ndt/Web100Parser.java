@@ -0,0 +1,131 @@
+package net.measurementlab.ndt;
+
+/**
+ * Parses the web100 variables sent by the NDT server, one message at a time.
+ *
+ * The server splits its "name: value" list across several TEST_MSG or
+ * MSG_RESULTS messages, and a token may straddle two of them. The parser keeps
+ * the unfinished token between calls to {@link #feed}, so the messages never
+ * have to be joined into one string.
+ */
+class Web100Parser {
+  /** Receives each variable as soon as its value is complete. */
+  interface Listener {
+    /**
+     * @param name the variable name as sent by the server, e.g. "CurMSS:"
+     * @param value the value as sent by the server
+     * @param field the {@link NdtResult} field that was set, or -1 if the
+     *     variable is not kept or its value does not parse
+     * @param snapshot true if the variable belongs to a single test's
+     *     snapshot, see {@link #snapshot}, rather than to the final results
+     */
+    void onVariable(String name, String value, int field, boolean snapshot);
+  }
+
+  private final NdtResult result;
+  private final Listener listener;
+
+  /** Also receives the typed values; null unless this parses a snapshot. */
+  private final NdtResult merged;
+
+  /** The token being read; it may continue in the next message. */
+  private final StringBuilder token = new StringBuilder(32);
+
+  /** The name whose value is being read, or null while reading a name. */
+  private String name;
+
+  /**
+   * @param result receives the typed values
+   * @param listener told about every variable; may be null
+   */
+  Web100Parser(NdtResult result, Listener listener) {
+    this(result, listener, null);
+  }
+
+  private Web100Parser(NdtResult result, Listener listener,
+      NdtResult merged) {
+    this.result = result;
+    this.listener = listener;
+    this.merged = merged;
+  }
+
+  /**
+   * A parser for the variables of a single test, e.g. the ones the server
+   * sends at the end of the S2C test. They go to the snapshot as well as to
+   * this parser's result and listener, which is told they are a snapshot.
+   *
+   * @param snapshot receives only the test's variables
+   */
+  Web100Parser snapshot(NdtResult snapshot) {
+    return new Web100Parser(snapshot, listener, result);
+  }
+
+  /** Parses the next part of the variable list. */
+  void feed(byte[] data, int offset, int length) {
+    int end = offset + length;
+    for (int i = offset; i < end; ++i) {
+      int c = data[i] & 0xff;
+      if (c <= ' ') {
+        endToken();
+      } else {
+        token.append((char) c);
+      }
+    }
+  }
+
+  /**
+   * Ends the variable list. A trailing name without a value is dropped.
+   */
+  void finish() {
+    endToken();
+    name = null;
+  }
+
+  private void endToken() {
+    if (token.length() == 0) {
+      return;
+    }
+    String text = token.toString();
+    token.setLength(0);
+    if (name == null) {
+      name = text;
+      return;
+    }
+    int field = result.set(name, text);
+    if (merged != null) {
+      merged.set(name, text);
+    }
+    if (listener != null) {
+      listener.onVariable(name, text, field, merged != null);
+    }
+    name = null;
+  }
+
+  /** A variable name as sent by the server, without its trailing colon. */
+  static String bareName(String name) {
+    return name.endsWith(":") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  /**
+   * A variable's value as a number: a {@link Long} for an integer, a
+   * {@link Double} otherwise.
+   *
+   * @return the number, or null if the value is not a finite number
+   */
+  static Number toNumber(String value) {
+    try {
+      return Long.valueOf(value);
+    } catch (NumberFormatException e) {
+      // Not an integer.
+    }
+    try {
+      double number = Double.parseDouble(value);
+      if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+        return Double.valueOf(number);
+      }
+    } catch (NumberFormatException e) {
+      // Not a number at all.
+    }
+    return null;
+  }
+}